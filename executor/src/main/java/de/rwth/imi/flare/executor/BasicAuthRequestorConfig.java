@@ -1,12 +1,13 @@
 package de.rwth.imi.flare.executor;
 
+import de.rwth.imi.flare.requestor.BasicRequestAuthenticator;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.RequestAuthenticator;
 import java.util.Optional;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.net.URI;
 
 public class BasicAuthRequestorConfig implements FhirRequestorConfig {
@@ -22,28 +23,21 @@ public class BasicAuthRequestorConfig implements FhirRequestorConfig {
 
     @Override
     public Optional<Authenticator> getAuthentication() {
-        return Optional.of(this.createAuth());
+        return Optional.empty();
     }
 
+    /**
+     * Sends the credentials with every request instead of waiting for a 401 challenge
+     * @return RequestAuthenticator containing credentials for the FHIR server
+     */
     @Override
-    public URI getBaseURI() {
-        return this.baseURI;
+    public RequestAuthenticator getRequestAuthenticator() {
+        return new BasicRequestAuthenticator(this.user, this.password);
     }
 
-    /**
-     * Creates a basic Authenticator
-     * @return Authenticator containing credentials for the FHIR server
-     */
-    @NotNull
-    private Authenticator createAuth() {
-        return new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(
-                        BasicAuthRequestorConfig.this.user,
-                        BasicAuthRequestorConfig.this.password.toCharArray());
-            }
-        };
+    @Override
+    public URI getBaseURI() {
+        return this.baseURI;
     }
 
     /**
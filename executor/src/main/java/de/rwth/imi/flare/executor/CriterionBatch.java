@@ -0,0 +1,88 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.requestor.FhirRequestor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects the criteria of a query that are evaluated one by one, so that once all of them are known their
+ * first pages can be requested in batch Bundles of at most {@code batchSize} searches each.
+ * Cancelling the result of a criterion stops paging its search, also if it is cancelled while its batch is in
+ * flight. Batches whose criteria are all cancelled before they are sent are skipped.
+ */
+class CriterionBatch {
+    private final FhirRequestor requestor;
+    private final PatientIdDictionary dictionary;
+    private final int batchSize;
+    private final Executor executor;
+    private final List<Criterion> criteria = new ArrayList<>();
+    private final List<CompletableFuture<PatientBitmap>> results = new ArrayList<>();
+
+    CriterionBatch(FhirRequestor requestor, PatientIdDictionary dictionary, int batchSize, Executor executor) {
+        this.requestor = requestor;
+        this.dictionary = dictionary;
+        this.batchSize = batchSize;
+        this.executor = executor;
+    }
+
+    /**
+     * @return patients fitting the criterion, completed after {@link #dispatch()}
+     */
+    CompletableFuture<PatientBitmap> add(Criterion criterion) {
+        CompletableFuture<PatientBitmap> result = new CompletableFuture<>();
+        this.criteria.add(criterion);
+        this.results.add(result);
+        return result;
+    }
+
+    /**
+     * Sends the batches of all criteria added so far
+     */
+    void dispatch() {
+        for (int start = 0; start < this.criteria.size(); start += this.batchSize) {
+            int end = Math.min(start + this.batchSize, this.criteria.size());
+            List<Criterion> batchCriteria = List.copyOf(this.criteria.subList(start, end));
+            List<CompletableFuture<PatientBitmap>> batchResults = List.copyOf(this.results.subList(start, end));
+            CompletableFuture.supplyAsync(() -> batchResults.stream().allMatch(CompletableFuture::isDone)
+                            ? null
+                            : this.requestor.executeBatch(batchCriteria), this.executor)
+                    .whenComplete((streams, error) -> {
+                        for (int i = 0; i < batchResults.size(); i++) {
+                            CompletableFuture<PatientBitmap> result = batchResults.get(i);
+                            if (error != null) {
+                                result.completeExceptionally(error);
+                            } else if (streams != null && result.isDone()) {
+                                // Cancelled while the batch was in flight, stops prefetching its pages
+                                streams.get(i).close();
+                            } else if (streams != null) {
+                                // Remaining pages of each criterion are fetched in parallel
+                                CompletableFuture<PatientBitmap> patients = PatientIdCollector.collect(
+                                        streams.get(i).map(FlareResource::getPatientId), this.dictionary, this.executor);
+                                patients.whenComplete(completeWith(result));
+                                result.whenComplete((value, resultError) -> {
+                                    if (result.isCancelled()) {
+                                        patients.cancel(true);
+                                    }
+                                });
+                            }
+                        }
+                    });
+        }
+    }
+
+    private static <T> BiConsumer<T, Throwable> completeWith(CompletableFuture<T> target) {
+        return (value, error) -> {
+            if (error != null) {
+                target.completeExceptionally(error);
+            } else {
+                target.complete(value);
+            }
+        };
+    }
+}
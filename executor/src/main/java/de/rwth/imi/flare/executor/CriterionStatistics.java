@@ -0,0 +1,136 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.requestor.FlareStatisticsConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Caches the number of resources the FHIR server counts for each criterion, as cardinality estimate for planning
+ * queries. An estimate is gathered by a _summary=count search on first use, once it is older than the configured
+ * maximum age it is still used, but refreshed in the background. Beyond the configured number of entries the least
+ * recently used estimates are dropped.
+ */
+class CriterionStatistics {
+    static final long UNKNOWN = -1;
+
+    private final ToLongFunction<Criterion> counter;
+    private final Function<Criterion, String> keyFunction;
+    private final long maxAgeNanos;
+    private final Executor executor;
+    private final LongSupplier nanoClock;
+    // Guarded by itself, in access order
+    private final Map<String, Statistic> statistics;
+
+    /**
+     * @param counter counts the resources matching a criterion, UNKNOWN if the server does not report a total
+     * @param keyFunction identifies the search of a criterion, e.g. its url
+     * @param executor runs the counts
+     */
+    CriterionStatistics(ToLongFunction<Criterion> counter, Function<Criterion, String> keyFunction,
+                        FlareStatisticsConfig config, Executor executor) {
+        this(counter, keyFunction, config, executor, System::nanoTime);
+    }
+
+    /**
+     * @param counter counts the resources matching a criterion, UNKNOWN if the server does not report a total
+     * @param keyFunction identifies the search of a criterion, e.g. its url
+     * @param executor runs the counts
+     * @param nanoClock tells the age of the estimates, like {@link System#nanoTime()}
+     */
+    CriterionStatistics(ToLongFunction<Criterion> counter, Function<Criterion, String> keyFunction,
+                        FlareStatisticsConfig config, Executor executor, LongSupplier nanoClock) {
+        this.counter = counter;
+        this.keyFunction = keyFunction;
+        this.maxAgeNanos = TimeUnit.SECONDS.toNanos(config.getMaxAgeSeconds());
+        this.executor = executor;
+        this.nanoClock = nanoClock;
+        int maxEntries = config.getMaxEntries();
+        this.statistics = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Statistic> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return whether estimates are cached, otherwise every estimate is counted anew
+     */
+    boolean isEnabled() {
+        return this.maxAgeNanos > 0;
+    }
+
+    /**
+     * @return estimate, waiting for the server only if none has been gathered yet, UNKNOWN if the server can not
+     * count the criterion
+     */
+    CompletableFuture<Long> estimate(Criterion criterion) {
+        if (!isEnabled()) {
+            return count(criterion);
+        }
+        return statisticOf(criterion).get(criterion);
+    }
+
+    /**
+     * Returns without waiting, missing and outdated estimates are gathered in the background for later queries
+     * @return estimate gathered so far, UNKNOWN if there is none
+     */
+    long cachedEstimate(Criterion criterion) {
+        if (!isEnabled()) {
+            return UNKNOWN;
+        }
+        CompletableFuture<Long> estimate = statisticOf(criterion).get(criterion);
+        return estimate.isDone() ? estimate.join() : UNKNOWN;
+    }
+
+    private Statistic statisticOf(Criterion criterion) {
+        String key = this.keyFunction.apply(criterion);
+        synchronized (this.statistics) {
+            return this.statistics.computeIfAbsent(key, unused -> new Statistic());
+        }
+    }
+
+    private CompletableFuture<Long> count(Criterion criterion) {
+        return CompletableFuture.supplyAsync(() -> this.counter.applyAsLong(criterion), this.executor)
+                .exceptionally(e -> UNKNOWN);
+    }
+
+    private class Statistic {
+        // Guarded by this
+        private boolean gathered;
+        private long estimate = UNKNOWN;
+        private long gatheredAtNanos;
+        private CompletableFuture<Long> refresh;
+
+        synchronized CompletableFuture<Long> get(Criterion criterion) {
+            CompletableFuture<Long> pending = this.refresh;
+            if (pending == null && (!this.gathered || nanoClock.getAsLong() - this.gatheredAtNanos > maxAgeNanos)) {
+                pending = CompletableFuture.supplyAsync(() -> counter.applyAsLong(criterion), executor);
+                this.refresh = pending;
+                pending.whenComplete((count, error) -> {
+                    synchronized (this) {
+                        // Failed counts are not cached, the next use tries again
+                        if (error == null) {
+                            this.gathered = true;
+                            this.estimate = count;
+                            this.gatheredAtNanos = nanoClock.getAsLong();
+                        }
+                        this.refresh = null;
+                    }
+                });
+            }
+            if (this.gathered) {
+                return CompletableFuture.completedFuture(this.estimate);
+            }
+            return pending.exceptionally(e -> UNKNOWN);
+        }
+    }
+}
@@ -4,12 +4,25 @@ import de.rwth.imi.flare.api.FlareResource;
 import de.rwth.imi.flare.api.model.CriteriaGroup;
 import de.rwth.imi.flare.api.model.Criterion;
 import de.rwth.imi.flare.api.model.Query;
+import de.rwth.imi.flare.api.model.plan.CriterionPlan;
+import de.rwth.imi.flare.api.model.plan.EvaluationStrategy;
+import de.rwth.imi.flare.api.model.plan.GroupPlan;
+import de.rwth.imi.flare.api.model.plan.QueryPlan;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
+import de.rwth.imi.flare.requestor.BulkExportFailedException;
+import de.rwth.imi.flare.requestor.BulkExportRequestor;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
 import de.rwth.imi.flare.requestor.FhirRequestor;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FhirResponseException;
+import de.rwth.imi.flare.requestor.ReverseChainPlanner;
+import de.rwth.imi.flare.requestor.SearchProfile;
 
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 
@@ -18,11 +31,22 @@ import java.util.stream.Collectors;
  * and then executing a recombination of the different result sets according to the cnf
  */
 public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
+    // Shared by all executors, so patients keep their code across queries
+    private static final PatientIdDictionary PATIENT_IDS = new PatientIdDictionary();
     private FhirRequestorConfig config;
+    private FhirRequestor requestor;
+    private BulkExportRequestor bulkExportRequestor;
+    private final ReverseChainPlanner reverseChainPlanner = new ReverseChainPlanner();
+    private CriterionStatistics statistics;
+    private QueryPlanner planner;
     private Executor futureExecutor;
 
     public void setConfig(FhirRequestorConfig config){
         this.config = config;
+        FhirHttpClient client = new FhirHttpClient(config);
+        this.requestor = new FhirRequestor(config, client);
+        this.bulkExportRequestor = new BulkExportRequestor(config, client);
+        initStatistics();
     }
 
     public void setFutureExecutor(Executor futureExecutor){
@@ -30,25 +54,310 @@ public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
     }
 
     public FlareExecutor(FhirRequestorConfig config){
+        this(config, new FhirHttpClient(config));
+    }
+
+    /**
+     * @param client client all requests of this executor are sent through, its concurrency limit
+     *               therefore applies to all queries evaluated
+     */
+    public FlareExecutor(FhirRequestorConfig config, FhirHttpClient client){
         this.config = config;
-        FlareThreadPoolConfig poolConfig =  this.config.getThreadPoolConfig();
-        this.futureExecutor = new ThreadPoolExecutor(poolConfig.getCorePoolSize(), poolConfig.getMaxPoolSize(), poolConfig.getKeepAliveTimeSeconds(),
+        // Single requestor per config, so all criteria share one pooled http client
+        this.requestor = new FhirRequestor(config, client);
+        this.bulkExportRequestor = new BulkExportRequestor(config, client);
+        initStatistics();
+        this.futureExecutor = newFutureExecutor(this.config.getThreadPoolConfig());
+    }
+
+    /**
+     * Blocking fetches, e.g. restricted and reverse chained searches, batches, counts and exports, occupy a thread
+     * until they are exhausted. On a virtual thread per fetch they do not queue for one of the pool's threads,
+     * the number of requests sent to the FHIR server is bounded by the connection permits of the client either way.
+     */
+    static ExecutorService newFutureExecutor(FlareThreadPoolConfig poolConfig){
+        if(poolConfig.isVirtualThreads()){
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("flare-fetch-", 0).factory());
+        }
+        // With an unbounded queue the pool never grows beyond its core size, so all threads are core threads
+        int poolSize = Math.max(poolConfig.getCorePoolSize(), poolConfig.getMaxPoolSize());
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(poolSize, poolSize, poolConfig.getKeepAliveTimeSeconds(),
                 TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        threadPool.allowCoreThreadTimeOut(poolConfig.getKeepAliveTimeSeconds() > 0);
+        return threadPool;
+    }
+
+    /**
+     * Starts with empty statistics, as estimates gathered from another server or config do not apply
+     */
+    private void initStatistics() {
+        // Resolved on use, so later calls to the setters are picked up
+        this.statistics = new CriterionStatistics(criterion -> this.requestor.count(criterion),
+                criterion -> this.requestor.translateCriterion(criterion), this.config.getStatisticsConfig(),
+                command -> this.futureExecutor.execute(command));
+        this.planner = new QueryPlanner(this.statistics);
     }
 
+    /**
+     * If semi-joins or bulk exports are enabled, which gather cardinality estimates anyway, criteria are started in
+     * ascending order of the estimates cached so far, otherwise in the order of the query.
+     * Cancelling the returned future cancels all FHIR requests of the query still outstanding.
+     */
     @Override
     public CompletableFuture<Integer> calculatePatientCount(Query mappedQuery) {
-        CompletableFuture<Set<String>> includedIds = getIncludedIds(mappedQuery);
-        CompletableFuture<Set<String>> excludedIds = getExcludedIds(mappedQuery);
-        CompletableFuture<Set<String>> resultingIds = includedIds.thenCombineAsync(excludedIds, (strings, strings2) ->
-        {
-            if(strings2 != null){
-                strings.removeAll(strings2);
+        QueryFetches fetches = new QueryFetches();
+        CompletableFuture<Integer> patientCount = countPatients(orderByCachedEstimates(mappedQuery), fetches);
+        // Once the count is known, failed or nobody waits for it anymore, the remaining fetches are wasted
+        patientCount.whenComplete((count, error) -> fetches.cancel());
+        return patientCount;
+    }
+
+    /**
+     * Only orders the query if estimates are gathered for semi-joins or bulk exports anyway, otherwise looking them
+     * up would start a count on the server for every new criterion
+     */
+    private Query orderByCachedEstimates(Query query) {
+        return isSemiJoinEnabled() || isBulkExportEnabled() ? this.planner.order(query) : query;
+    }
+
+    private CompletableFuture<Integer> countPatients(Query mappedQuery, QueryFetches fetches) {
+        if(isSinglePatientCriterion(mappedQuery)){
+            return countSinglePatientCriterion(mappedQuery, fetches);
+        }
+        if(isExclusionOnly(mappedQuery)){
+            return countExclusionOnly(mappedQuery, fetches);
+        }
+        Optional<String> reverseChainedQuery = reverseChainInclusionOnly(mappedQuery);
+        if(reverseChainedQuery.isPresent()){
+            return countReverseChained(reverseChainedQuery.get(), mappedQuery, fetches);
+        }
+        if(isSemiJoinEnabled() && hasSeveralParts(mappedQuery)){
+            return countSemiJoined(mappedQuery, fetches);
+        }
+
+        CriterionBatch batch = newCriterionBatch();
+        CompletableFuture<PatientBitmap> includedIds = getIncludedIds(mappedQuery, batch, fetches);
+        CompletableFuture<PatientBitmap> excludedIds = getExcludedIds(mappedQuery, batch, fetches);
+        if(batch != null){
+            batch.dispatch();
+        }
+        return difference(includedIds, excludedIds, fetches).thenApply(PatientBitmap::cardinality);
+    }
+
+    /**
+     * @return patients included but not excluded. If no patient is included the result is decided without
+     * waiting for the excluded ones, the outstanding fetches of the query are cancelled then.
+     */
+    private static CompletableFuture<PatientBitmap> difference(CompletableFuture<PatientBitmap> includedIds,
+                                                               CompletableFuture<PatientBitmap> excludedIds,
+                                                               QueryFetches fetches) {
+        return includedIds.thenCompose(included -> {
+            if(included.isEmpty()){
+                fetches.cancel();
+                return CompletableFuture.completedFuture(included);
             }
-            return strings;
-        }, this.futureExecutor);
+            return excludedIds.thenApply(included::andNot);
+        });
+    }
 
-        return resultingIds.thenApply(Set::size);
+    /**
+     * A query consisting of a single Patient criterion matches exactly one Patient resource per patient,
+     * so its result equals the total of the search
+     */
+    private boolean isSinglePatientCriterion(Query query) {
+        List<CriteriaGroup> inclusionCriteria = query.getInclusionCriteria();
+        if(inclusionCriteria == null || inclusionCriteria.size() != 1 || hasExclusionCriteria(query)){
+            return false;
+        }
+        List<Criterion> criteria = inclusionCriteria.get(0).getCriteria();
+        return criteria.size() == 1 && "Patient".equals(criteria.get(0).getMapping().getFhirResourceType());
+    }
+
+    private boolean isExclusionOnly(Query query) {
+        return !hasCriteria(query.getInclusionCriteria()) && hasExclusionCriteria(query);
+    }
+
+    private static boolean hasCriteria(List<CriteriaGroup> groups) {
+        return groups != null && groups.stream().anyMatch(group -> !group.getCriteria().isEmpty());
+    }
+
+    private static boolean hasExclusionCriteria(Query query) {
+        return !getExclusionGroups(query).isEmpty();
+    }
+
+    /**
+     * A patient is excluded if they match all sets of alternatives of any of the exclusion groups. Expanded
+     * criteria keep this structure, otherwise each exclusion criterion is a set of its own.
+     * @return the exclusion groups, without the empty ones
+     */
+    private static List<List<CriteriaGroup>> getExclusionGroups(Query query) {
+        List<List<CriteriaGroup>> exclusionGroups = query.getExpandedExclusionCriteria();
+        if(exclusionGroups == null){
+            exclusionGroups = query.getExclusionCriteria() == null ? List.of() : query.getExclusionCriteria().stream()
+                    .map(group -> group.getCriteria().stream().map(criterion -> new CriteriaGroup(List.of(criterion))).toList())
+                    .toList();
+        }
+        return exclusionGroups.stream().filter(group -> !group.isEmpty()).toList();
+    }
+
+    /**
+     * Answers the query with a single _summary=count request, falls back to fetching the patients
+     * if the server does not report a total
+     */
+    private CompletableFuture<Integer> countSinglePatientCriterion(Query query, QueryFetches fetches) {
+        Criterion criterion = query.getInclusionCriteria().get(0).getCriteria().get(0);
+        return fetches.track(CompletableFuture.supplyAsync(() -> this.requestor.count(criterion), this.futureExecutor))
+                .thenCompose(total -> total >= 0
+                        ? CompletableFuture.completedFuture(Math.toIntExact(total))
+                        : fetches.track(getPatientsFittingCriterion(criterion)).thenApply(PatientBitmap::cardinality));
+    }
+
+    /**
+     * Counts all patients on the server and subtracts the excluded ones, falls back to fetching all patients
+     * if the server does not report a total
+     */
+    private CompletableFuture<Integer> countExclusionOnly(Query query, QueryFetches fetches) {
+        CompletableFuture<Long> totalPatients = fetches.track(CompletableFuture.supplyAsync(
+                () -> this.requestor.countAll("Patient"), this.futureExecutor));
+        CriterionBatch batch = newCriterionBatch();
+        CompletableFuture<PatientBitmap> excludedIdsFuture = getExcludedIds(query, batch, fetches);
+        if(batch != null){
+            batch.dispatch();
+        }
+        return totalPatients.thenCompose(total -> total >= 0
+                ? excludedIdsFuture.thenApply(excludedIds -> Math.toIntExact(Math.max(0, total - excludedIds.cardinality())))
+                : difference(getAllPatientIds(fetches), excludedIdsFuture, fetches).thenApply(PatientBitmap::cardinality));
+    }
+
+    /**
+     * Get the ids of all patients on the server
+     */
+    private CompletableFuture<PatientBitmap> getAllPatientIds(QueryFetches fetches) {
+        return fetches.track(PatientIdCollector.collect(() -> this.requestor.executePatientSearch("")
+                .map(FlareResource::getPatientId), PATIENT_IDS, this.futureExecutor));
+    }
+
+    /**
+     * Rewrites a query without exclusion criteria into a single Patient search, if all of its groups can be
+     * reverse chained
+     * @return Patient search parameters, empty if the query can not be rewritten
+     */
+    private Optional<String> reverseChainInclusionOnly(Query query) {
+        if(!isReverseChainingSupported() || !hasCriteria(query.getInclusionCriteria())
+                || hasExclusionCriteria(query)){
+            return Optional.empty();
+        }
+        List<String> parameters = new ArrayList<>();
+        for (CriteriaGroup group : query.getInclusionCriteria()) {
+            Optional<String> groupParameters = this.reverseChainPlanner.anyOf(group.getCriteria());
+            if(groupParameters.isEmpty()){
+                return Optional.empty();
+            }
+            parameters.add(groupParameters.get());
+        }
+        return Optional.of(String.join("&", parameters));
+    }
+
+    /**
+     * Answers the query with a single _summary=count Patient search, falls back to fetching the patients
+     * if the server does not report a total and to evaluating the criteria one by one if it rejects the search
+     */
+    private CompletableFuture<Integer> countReverseChained(String parameters, Query query, QueryFetches fetches) {
+        return fetches.track(CompletableFuture.supplyAsync(() -> this.requestor.countPatients(parameters), this.futureExecutor))
+                .thenCompose(total -> total >= 0
+                        ? CompletableFuture.completedFuture(Math.toIntExact(total))
+                        : getPatientIdsFittingPatientSearch(parameters, () -> getIncludedIds(query, null, fetches), fetches)
+                                .thenApply(PatientBitmap::cardinality))
+                .exceptionallyCompose(e -> isRejectedByServer(e)
+                        ? getIncludedIds(query, null, fetches).thenApply(PatientBitmap::cardinality)
+                        : CompletableFuture.failedFuture(e));
+    }
+
+    private boolean isSemiJoinEnabled() {
+        return this.config.getSemiJoinConfig().getMaxDrivingPatients() > 0;
+    }
+
+    /**
+     * @return whether the query has more than one inclusion group or any exclusion criteria, which could be
+     * restricted to the patients of a single inclusion group
+     */
+    private static boolean hasSeveralParts(Query query) {
+        return hasCriteria(query.getInclusionCriteria())
+                && (query.getInclusionCriteria().size() > 1 || hasExclusionCriteria(query));
+    }
+
+    /**
+     * Evaluates the inclusion group the server counts the fewest resources for first. No patient outside of this
+     * group can be part of the result, so if it matches few enough patients, all other criteria are only searched
+     * among them. Otherwise the other criteria are evaluated as usual.
+     */
+    private CompletableFuture<Integer> countSemiJoined(Query query, QueryFetches fetches) {
+        List<CriteriaGroup> inclusionGroups = query.getInclusionCriteria();
+        List<CompletableFuture<Long>> estimates = inclusionGroups.stream().map(this.planner::estimateResources).toList();
+        return CompletableFuture.allOf(estimates.toArray(new CompletableFuture[0]))
+                .thenCompose(unused -> {
+                    int drivingGroup = 0;
+                    for (int i = 1; i < estimates.size(); i++) {
+                        if(estimates.get(i).join() < estimates.get(drivingGroup).join()){
+                            drivingGroup = i;
+                        }
+                    }
+                    CriteriaGroup group = inclusionGroups.get(drivingGroup);
+                    return getIdsFittingInclusionGroup(group, null, fetches)
+                            .thenCompose(drivingIds -> getIdsSemiJoined(query, group, drivingIds, fetches));
+                })
+                .thenApply(PatientBitmap::cardinality);
+    }
+
+    /**
+     * Evaluates all groups but the driving one, restricted to the driving group's patients if there are at most
+     * maxDrivingPatients of them
+     * @return ids of the patients matching the query
+     */
+    private CompletableFuture<PatientBitmap> getIdsSemiJoined(Query query, CriteriaGroup drivingGroup, PatientBitmap drivingIds,
+                                                              QueryFetches fetches) {
+        if(drivingIds.isEmpty()){
+            return CompletableFuture.completedFuture(drivingIds);
+        }
+        List<CompletableFuture<PatientBitmap>> includedIdsByGroup = new ArrayList<>();
+        includedIdsByGroup.add(CompletableFuture.completedFuture(drivingIds));
+        List<CriteriaGroup> otherGroups = query.getInclusionCriteria().stream()
+                .filter(group -> group != drivingGroup)
+                .toList();
+        CompletableFuture<PatientBitmap> excludedIds;
+        if(drivingIds.cardinality() > this.config.getSemiJoinConfig().getMaxDrivingPatients()){
+            // Restricting the searches would take more requests than scanning all patients
+            CriterionBatch batch = newCriterionBatch();
+            otherGroups.forEach(group -> includedIdsByGroup.add(getIdsFittingInclusionGroup(group, batch, fetches)));
+            excludedIds = getExcludedIds(query, batch, fetches);
+            if(batch != null){
+                batch.dispatch();
+            }
+        } else {
+            List<String> drivingPatients = PATIENT_IDS.decodeAll(drivingIds);
+            otherGroups.forEach(group -> includedIdsByGroup.add(union(group.getCriteria().stream()
+                    .map(criterion -> getPatientIdsFittingCriterionAmong(criterion, drivingPatients, fetches)).toList())));
+            excludedIds = union(getExclusionGroups(query).stream()
+                    .map(group -> intersection(group.stream()
+                            .map(alternatives -> union(alternatives.getCriteria().stream()
+                                    .map(criterion -> getPatientIdsFittingCriterionAmong(criterion, drivingPatients, fetches)).toList()))
+                            .toList()))
+                    .toList());
+        }
+        return difference(intersection(includedIdsByGroup), excludedIds, fetches);
+    }
+
+    /**
+     * Get all ids among the given patients fulfilling a given criterion, searches all patients if the server
+     * rejects the restricted search
+     */
+    private CompletableFuture<PatientBitmap> getPatientIdsFittingCriterionAmong(Criterion criterion, List<String> patientIds,
+                                                                                QueryFetches fetches) {
+        return fetches.track(PatientIdCollector.collect(() -> this.requestor.executeForPatients(criterion, patientIds)
+                        .map(FlareResource::getPatientId), PATIENT_IDS, this.futureExecutor))
+                .exceptionallyCompose(e -> isRejectedByServer(e)
+                        ? fetches.track(getPatientsFittingCriterion(criterion))
+                        : CompletableFuture.failedFuture(e));
     }
 
     /**
@@ -58,14 +367,15 @@ public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
      */
     @Override
     public List<List<List<String>>> translateMappedQuery(Query mappedQuery) {
-        //create new FhirRequestor by provided config
-        FhirRequestor translator = new FhirRequestor(config);
         //split criterions into inculsion and exclusion
         List<CriteriaGroup> inclusionCriteria = mappedQuery.getInclusionCriteria();
-        List<CriteriaGroup> exclusionCriteria = mappedQuery.getExclusionCriteria();
+        //each exclusion group is listed with the criteria of all of its sets of alternatives
+        List<CriteriaGroup> exclusionCriteria = getExclusionGroups(mappedQuery).stream()
+                .map(group -> new CriteriaGroup(criteriaOf(group).stream().flatMap(List::stream).toList()))
+                .toList();
         //translate criterions
-        List<List<String>> translatedInclusionCriteria = iterateCriterion(translator, inclusionCriteria);
-        List<List<String>> translatedExclusionCriteria = iterateCriterion(translator, exclusionCriteria);
+        List<List<String>> translatedInclusionCriteria = iterateCriterion(this.requestor, inclusionCriteria);
+        List<List<String>> translatedExclusionCriteria = iterateCriterion(this.requestor, exclusionCriteria);
         //create new ArrayList and recombine inclusion and exclusion criterions into StructuredQuery format
         List<List<List<String>>> combinedCriteria = new ArrayList<>();
         combinedCriteria.add(translatedInclusionCriteria);
@@ -74,6 +384,103 @@ public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
         return combinedCriteria;
     }
 
+    /**
+     * Plans the query as {@link #calculatePatientCount(Query)} evaluates it, after gathering the estimates of all
+     * of its criteria
+     */
+    @Override
+    public QueryPlan planQuery(Query mappedQuery) {
+        Map<Criterion, Long> estimates = this.planner.estimateAll(mappedQuery).join();
+        Query query = QueryPlanner.order(mappedQuery, estimates::get);
+        List<CriteriaGroup> inclusionGroups = query.getInclusionCriteria() == null ? List.of() : query.getInclusionCriteria();
+        List<List<CriteriaGroup>> exclusionGroups = getExclusionGroups(query);
+        if(isSinglePatientCriterion(query)){
+            return new QueryPlan(planGroups(inclusionGroups, group -> Optional.of(EvaluationStrategy.COUNT), estimates, false),
+                    List.of(), null);
+        }
+        if(reverseChainInclusionOnly(query).isPresent()){
+            return new QueryPlan(planGroups(inclusionGroups, group -> Optional.of(EvaluationStrategy.REVERSE_CHAINED), estimates, false),
+                    List.of(), null);
+        }
+        if(isSemiJoinEnabled() && hasSeveralParts(query)){
+            // The cheapest group drives, the others are restricted to its patients unless it matches too many
+            CriteriaGroup drivingGroup = inclusionGroups.get(0);
+            return new QueryPlan(planGroups(inclusionGroups, group -> group == drivingGroup
+                            ? Optional.empty()
+                            : Optional.of(EvaluationStrategy.RESTRICTED), estimates, false),
+                    planExclusionGroups(exclusionGroups, group -> Optional.of(EvaluationStrategy.RESTRICTED), estimates, false), 0);
+        }
+        boolean batched = newCriterionBatch() != null;
+        Function<CriteriaGroup, Optional<EvaluationStrategy>> inclusionStrategy = group -> isReverseChainingSupported()
+                ? this.reverseChainPlanner.anyOf(group.getCriteria()).map(parameters -> EvaluationStrategy.REVERSE_CHAINED)
+                : Optional.empty();
+        Function<List<CriteriaGroup>, Optional<EvaluationStrategy>> exclusionStrategy = group -> isReverseChainingSupported()
+                ? this.reverseChainPlanner.allOfAnyOf(criteriaOf(group)).map(parameters -> EvaluationStrategy.REVERSE_CHAINED)
+                : Optional.empty();
+        return new QueryPlan(planGroups(inclusionGroups, inclusionStrategy, estimates, batched),
+                planExclusionGroups(exclusionGroups, exclusionStrategy, estimates, batched), null);
+    }
+
+    /**
+     * @param groupStrategy strategy shared by all criteria of an exclusion group, empty if each set of alternatives
+     *                      is evaluated on its own
+     */
+    private List<List<GroupPlan>> planExclusionGroups(List<List<CriteriaGroup>> groups,
+                                                      Function<List<CriteriaGroup>, Optional<EvaluationStrategy>> groupStrategy,
+                                                      Map<Criterion, Long> estimates, boolean batched) {
+        return groups.stream().map(group -> {
+            Optional<EvaluationStrategy> sharedStrategy = groupStrategy.apply(group);
+            return planGroups(group, alternatives -> sharedStrategy, estimates, batched);
+        }).toList();
+    }
+
+    /**
+     * Evaluates each criterion with a search of its own, see {@link QueryProfiler}, in the order
+     * {@link #calculatePatientCount(Query)} starts them.
+     * Cancelling the returned future cancels all FHIR requests of the query still outstanding.
+     */
+    @Override
+    public CompletableFuture<QueryProfile> explainQuery(Query mappedQuery) {
+        Query query = orderByCachedEstimates(mappedQuery);
+        QueryFetches fetches = new QueryFetches();
+        QueryProfiler profiler = new QueryProfiler(
+                (criterion, profile) -> fetches.track(getPatientsFittingCriterion(criterion, profile)),
+                this.requestor::translateCriterion,
+                () -> fetches.track(CompletableFuture.supplyAsync(() -> this.requestor.countAll("Patient"), this.futureExecutor)));
+        CompletableFuture<QueryProfile> profile = profiler.profile(
+                query.getInclusionCriteria() == null ? List.of() : query.getInclusionCriteria(), getExclusionGroups(query));
+        profile.whenComplete((result, error) -> fetches.cancel());
+        return profile;
+    }
+
+    /**
+     * @param groupStrategy strategy shared by all criteria of a group, empty if each criterion is evaluated on its own
+     * @param batched whether criteria evaluated on their own are collected in a {@link CriterionBatch}
+     */
+    private List<GroupPlan> planGroups(List<CriteriaGroup> groups, Function<CriteriaGroup, Optional<EvaluationStrategy>> groupStrategy,
+                                       Map<Criterion, Long> estimates, boolean batched) {
+        return groups.stream().map(group -> {
+            Optional<EvaluationStrategy> sharedStrategy = groupStrategy.apply(group);
+            List<CriterionPlan> criteria = group.getCriteria().stream()
+                    .map(criterion -> new CriterionPlan(this.requestor.translateCriterion(criterion), estimates.get(criterion),
+                            sharedStrategy.orElseGet(() -> strategyOf(estimates.get(criterion), batched))))
+                    .toList();
+            return new GroupPlan(QueryPlanner.estimate(group, estimates::get), criteria);
+        }).toList();
+    }
+
+    /**
+     * @return strategy {@link #getPatientIdsFittingCriterion(Criterion, CriterionBatch, QueryFetches)} uses
+     */
+    private EvaluationStrategy strategyOf(long estimate, boolean batched) {
+        if(isBulkExportEnabled()){
+            return estimate < this.config.getBulkExportConfig().getMinEstimatedResources()
+                    ? EvaluationStrategy.SEARCH
+                    : EvaluationStrategy.BULK_EXPORT;
+        }
+        return batched ? EvaluationStrategy.BATCH : EvaluationStrategy.SEARCH;
+    }
+
     /**
      * Iterates over a criterion (inclusion or exclusion) and returns it as a translated component of the StructuredQuery format.
      * @param translator FhirRequestor specified earlier
@@ -94,126 +501,197 @@ public class FlareExecutor implements de.rwth.imi.flare.api.Executor {
         return termCodeList;
     }
 
+    /**
+     * @return batch collecting the criteria evaluated one by one, null if the server does not support batches
+     * or criteria are estimated for bulk exports
+     */
+    private CriterionBatch newCriterionBatch() {
+        int batchSize = this.config.getPagingConfig().getBatchSize();
+        if(!this.config.getServerCapabilities().isBatchSupported() || batchSize <= 1 || isBulkExportEnabled()){
+            return null;
+        }
+        return new CriterionBatch(this.requestor, PATIENT_IDS, batchSize, this.futureExecutor);
+    }
+
     /**
      * Build intersection of all group sets
+     * @param batch collects the criteria to be evaluated, null to evaluate them right away
      */
-    private CompletableFuture<Set<String>> getIncludedIds(Query query) {
-        if(query.getInclusionCriteria() == null){
-            return CompletableFuture.completedFuture(new HashSet<>());
+    private CompletableFuture<PatientBitmap> getIncludedIds(Query query, CriterionBatch batch, QueryFetches fetches) {
+        if(query.getInclusionCriteria() == null || query.getInclusionCriteria().isEmpty()){
+            return CompletableFuture.completedFuture(new PatientBitmap());
         }
         // Async fetch all ids per group
-        List<CompletableFuture<Set<String>>> includedIdsByGroup =
-                query.getInclusionCriteria().stream().map(this::getIdsFittingInclusionGroup).toList();
-
-        // Wait for async exec to finish
-        CompletableFuture<Void> groupExecutionFinished = CompletableFuture
-                .allOf(includedIdsByGroup.toArray(new CompletableFuture[0]));
-
-        return groupExecutionFinished.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> includedGroupsIterator = includedIdsByGroup.iterator();
-            try {
-                Set<String> evaluableCriterion = null;
-                if(includedGroupsIterator.hasNext()){
-                    evaluableCriterion = includedGroupsIterator.next().get();
-                }
-                while (includedGroupsIterator.hasNext()) {
-                    evaluableCriterion.retainAll(includedGroupsIterator.next().get());
-                }
-                return evaluableCriterion;
-            } catch (InterruptedException | ExecutionException e) {
-                throw new CompletionException(e);
+        List<CompletableFuture<PatientBitmap>> includedIdsByGroup = new ArrayList<>();
+        List<String> reverseChainedParameters = new ArrayList<>();
+        List<CriteriaGroup> reverseChainedGroups = new ArrayList<>();
+        for (CriteriaGroup group : query.getInclusionCriteria()) {
+            Optional<String> parameters = isReverseChainingSupported()
+                    ? this.reverseChainPlanner.anyOf(group.getCriteria())
+                    : Optional.empty();
+            if(parameters.isPresent()){
+                reverseChainedParameters.add(parameters.get());
+                reverseChainedGroups.add(group);
+            } else {
+                includedIdsByGroup.add(getIdsFittingInclusionGroup(group, batch, fetches));
             }
-        });
+        }
+        // All rewritable groups are intersected by the server within a single Patient search
+        if(!reverseChainedGroups.isEmpty()){
+            includedIdsByGroup.add(getPatientIdsFittingPatientSearch(String.join("&", reverseChainedParameters),
+                    () -> intersection(reverseChainedGroups.stream()
+                            .map(group -> getIdsFittingInclusionGroup(group, null, fetches)).toList()),
+                    fetches));
+        }
+        return intersection(includedIdsByGroup);
     }
 
     /**
      * Union all criteria sets for a given group
      */
-    private CompletableFuture<Set<String>> getIdsFittingInclusionGroup(CriteriaGroup group) {
-        final List<CompletableFuture<Set<String>>> idsPerCriterion = group.getCriteria().stream()
-                .map(this::getPatientIdsFittingCriterion).toList();
-
-        // Wait for all queries to finish execution
-        CompletableFuture<Void> allPatientIdsReceived = CompletableFuture.allOf(idsPerCriterion.toArray(new CompletableFuture[0]));
-
-        //Return union of found ids
-        return allPatientIdsReceived.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> iterator = idsPerCriterion.iterator();
-            try {
-                Set<String> ret = iterator.next().get();
-                while (iterator.hasNext()) {
-                    ret.addAll(iterator.next().get());
-                }
-                return ret;
-            } catch (ExecutionException | InterruptedException e) {
-                throw new CompletionException(e);
-            }
-        });
+    private CompletableFuture<PatientBitmap> getIdsFittingInclusionGroup(CriteriaGroup group, CriterionBatch batch,
+                                                                         QueryFetches fetches) {
+        return union(group.getCriteria().stream()
+                .map(criterion -> getPatientIdsFittingCriterion(criterion, batch, fetches))
+                .toList());
     }
 
     /**
      * Build union of all group sets
      */
-    private CompletableFuture<Set<String>> getExcludedIds(Query query) {
-        if(query.getExclusionCriteria() == null){
-            return CompletableFuture.completedFuture(new HashSet<>());
-        }
-
-        // Execute all group queries and wait for execution to finish
-        List<CompletableFuture<Set<String>>> excludedIdsByGroup =
-                query.getExclusionCriteria().stream().map(this::getIdsFittingExclusionGroup).toList();
-        CompletableFuture<Void> allPatientIdsReceived = CompletableFuture
-                .allOf(excludedIdsByGroup.toArray(new CompletableFuture[0]));
-
-        // Build union of all groups
-        return allPatientIdsReceived.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> groupIdsIterator = excludedIdsByGroup.iterator();
-            Set<String> ret = new HashSet<>();
-            while (groupIdsIterator.hasNext()) {
-                try {
-                    ret.addAll(groupIdsIterator.next().get());
-                } catch (InterruptedException | ExecutionException e) {
-                    throw new CompletionException(e);
-                }
-            }
-            return ret;
-        });
+    private CompletableFuture<PatientBitmap> getExcludedIds(Query query, CriterionBatch batch, QueryFetches fetches) {
+        // Execute all group queries, each group the server can intersect becomes a single Patient search
+        List<CompletableFuture<PatientBitmap>> excludedIdsByGroup = getExclusionGroups(query).stream()
+                .map(group -> isReverseChainingSupported()
+                        ? this.reverseChainPlanner.allOfAnyOf(criteriaOf(group))
+                                .map(parameters -> getPatientIdsFittingPatientSearch(parameters,
+                                        () -> getIdsFittingExclusionGroup(group, null, fetches), fetches))
+                                .orElseGet(() -> getIdsFittingExclusionGroup(group, batch, fetches))
+                        : getIdsFittingExclusionGroup(group, batch, fetches))
+                .toList();
+        return union(excludedIdsByGroup);
     }
 
     /**
-     * Intersect all criteria sets for a given group
+     * Intersect the unions of all sets of alternatives for a given group
      */
-    private CompletableFuture<Set<String>> getIdsFittingExclusionGroup(CriteriaGroup group) {
-        final List<CompletableFuture<Set<String>>> idsPerCriterion = new ArrayList<>();
-        for (Criterion criterion : group.getCriteria()) {
-            CompletableFuture<Set<String>> evaluableCriterion = getPatientIdsFittingCriterion(criterion);
-            idsPerCriterion.add(evaluableCriterion);
+    private CompletableFuture<PatientBitmap> getIdsFittingExclusionGroup(List<CriteriaGroup> group, CriterionBatch batch,
+                                                                         QueryFetches fetches) {
+        return intersection(group.stream()
+                .map(alternatives -> getIdsFittingInclusionGroup(alternatives, batch, fetches))
+                .toList());
+    }
+
+    private static List<List<Criterion>> criteriaOf(List<CriteriaGroup> groups) {
+        return groups.stream().map(CriteriaGroup::getCriteria).toList();
+    }
+
+    private static CompletableFuture<PatientBitmap> intersection(List<CompletableFuture<PatientBitmap>> idSets) {
+        return PatientSetAccumulator.intersection(idSets);
+    }
+
+    private static CompletableFuture<PatientBitmap> union(List<CompletableFuture<PatientBitmap>> idSets) {
+        return PatientSetAccumulator.union(idSets);
+    }
+
+    private boolean isReverseChainingSupported() {
+        return this.config.getServerCapabilities().isReverseChainingSupported();
+    }
+
+    /**
+     * Get all ids matching a Patient search built by the {@link ReverseChainPlanner}
+     * @param fallback evaluates the rewritten criteria one by one, used if the server rejects the Patient search
+     */
+    private CompletableFuture<PatientBitmap> getPatientIdsFittingPatientSearch(
+            String parameters, Supplier<CompletableFuture<PatientBitmap>> fallback, QueryFetches fetches) {
+        return fetches.track(PatientIdCollector.collect(() -> this.requestor.executePatientSearch(parameters)
+                        .map(FlareResource::getPatientId), PATIENT_IDS, this.futureExecutor))
+                .exceptionallyCompose(e -> isRejectedByServer(e) ? fallback.get() : CompletableFuture.failedFuture(e));
+    }
+
+    /**
+     * @return whether the error is a 4xx response, as sent by servers not supporting a search parameter
+     */
+    private static boolean isRejectedByServer(Throwable error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if(cause instanceof FhirResponseException responseException){
+                return responseException.getStatusCode() / 100 == 4;
+            }
+            cause = cause.getCause();
         }
-        // Wait for all queries to finish execution
-        CompletableFuture<Void> allPatientIdsReceived = CompletableFuture.allOf(idsPerCriterion.toArray(new CompletableFuture[0]));
+        return false;
+    }
 
-        // Return intersection of found ids
-        return allPatientIdsReceived.thenApply(unused -> {
-            Iterator<CompletableFuture<Set<String>>> iterator = idsPerCriterion.iterator();
-            try {
-                Set<String> ret = iterator.next().get();
-                while (iterator.hasNext()) {
-                    ret.retainAll(iterator.next().get());
-                }
-                return ret;
-            } catch (ExecutionException | InterruptedException e) {
-                throw new CompletionException(e);
+    /**
+     * Criteria searching the same url, e.g. leaves several exclusion criteria expand to, are fetched only once
+     * @param batch collects the criterion to be evaluated, null to evaluate it right away
+     */
+    private CompletableFuture<PatientBitmap> getPatientIdsFittingCriterion(Criterion criterion, CriterionBatch batch,
+                                                                           QueryFetches fetches) {
+        return fetches.share(this.requestor.translateCriterion(criterion), () -> {
+            if(isBulkExportEnabled()){
+                return getPatientIdsFittingEstimatedCriterion(criterion, fetches);
             }
+            return batch == null ? getPatientsFittingCriterion(criterion) : batch.add(criterion);
         });
     }
 
+    /**
+     * @return whether the error is an export the server completed with errors, so its output is incomplete
+     */
+    private static boolean isFailedExport(Throwable error) {
+        Throwable cause = error;
+        while (cause != null) {
+            if(cause instanceof BulkExportFailedException){
+                return true;
+            }
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    private boolean isBulkExportEnabled() {
+        return this.config.getBulkExportConfig().getMinEstimatedResources() > 0;
+    }
+
+    /**
+     * Get all ids fulfilling a given criterion, using a bulk $export if the server counts enough matching
+     * resources, and a regular search otherwise or if the server rejects the export or reports errors for it
+     */
+    private CompletableFuture<PatientBitmap> getPatientIdsFittingEstimatedCriterion(Criterion criterion, QueryFetches fetches) {
+        long minEstimatedResources = this.config.getBulkExportConfig().getMinEstimatedResources();
+        // Without an estimate the regular search is the safe choice
+        return this.statistics.estimate(criterion)
+                .thenCompose(estimate -> estimate < minEstimatedResources
+                        ? fetches.track(getPatientsFittingCriterion(criterion))
+                        // Cancelling the export stops polling and cancels it on the server
+                        : fetches.track(this.bulkExportRequestor.exportPatientIdsAsync(criterion))
+                                .thenApply(patientIds -> PATIENT_IDS.encodeAll(patientIds.iterator()))
+                                .exceptionallyCompose(e -> isRejectedByServer(e) || isFailedExport(e)
+                                        ? fetches.track(getPatientsFittingCriterion(criterion))
+                                        : CompletableFuture.failedFuture(e)));
+    }
+
     /**
      * Get all ids fulfilling a given criterion
      */
     public CompletableFuture<Set<String>> getPatientIdsFittingCriterion(Criterion criterion) {
-        FhirRequestor requestor = new FhirRequestor(config);
-        return CompletableFuture.supplyAsync(() -> requestor.execute(criterion)
-                .map(FlareResource::getPatientId)
-                .collect(Collectors.toSet()), this.futureExecutor);
+        return getPatientsFittingCriterion(criterion).thenApply(patients -> new HashSet<>(PATIENT_IDS.decodeAll(patients)));
+    }
+
+    private CompletableFuture<PatientBitmap> getPatientsFittingCriterion(Criterion criterion) {
+        return getPatientsFittingCriterion(criterion, null);
+    }
+
+    /**
+     * @param profile records the requests and pages of the search, null if it is not profiled
+     */
+    private CompletableFuture<PatientBitmap> getPatientsFittingCriterion(Criterion criterion, SearchProfile profile) {
+        try {
+            return PatientIdCollector.collect(this.requestor.executeAsync(criterion, profile), PATIENT_IDS);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 }
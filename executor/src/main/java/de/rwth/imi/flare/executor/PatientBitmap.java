@@ -0,0 +1,406 @@
+package de.rwth.imi.flare.executor;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of patients encoded by a {@link PatientIdDictionary}, compressed like a Roaring bitmap: the ids are grouped
+ * by their upper 16 bits, each group stores the lower 16 bits as a sorted array while it has at most 4096 members,
+ * and as a bitmap of 2^16 bits once it is denser.<br>
+ * Set operations return new bitmaps and never modify their operands, so results can be shared. The returned
+ * bitmaps may share groups with their operands, {@link #add(int)} must therefore only be used while building a
+ * bitmap, before it takes part in any set operation. Building a bitmap is not thread safe.
+ */
+final class PatientBitmap {
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    // Upper 16 bits of the ids in each container, sorted
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    PatientBitmap() {
+        this(new char[4], new Container[4], 0);
+    }
+
+    private PatientBitmap(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    /**
+     * @param id dictionary encoded patient id, not negative
+     */
+    void add(int id) {
+        char key = (char) (id >>> 16);
+        int index = Arrays.binarySearch(this.keys, 0, this.size, key);
+        if (index < 0) {
+            index = -index - 1;
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.containers = Arrays.copyOf(this.containers, this.size * 2);
+            }
+            System.arraycopy(this.keys, index, this.keys, index + 1, this.size - index);
+            System.arraycopy(this.containers, index, this.containers, index + 1, this.size - index);
+            this.keys[index] = key;
+            this.containers[index] = new ArrayContainer(new char[4], 0);
+            this.size++;
+        }
+        this.containers[index] = this.containers[index].add((char) id);
+    }
+
+    /**
+     * @return number of patients in the set
+     */
+    int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < this.size; i++) {
+            cardinality += this.containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Passes all ids of the set in ascending order
+     */
+    void forEach(IntConsumer consumer) {
+        for (int i = 0; i < this.size; i++) {
+            this.containers[i].forEach(this.keys[i] << 16, consumer);
+        }
+    }
+
+    /**
+     * @return patients contained in this or the other set
+     */
+    PatientBitmap or(PatientBitmap other) {
+        Builder result = new Builder(this.size + other.size);
+        int i = 0;
+        int j = 0;
+        while (i < this.size && j < other.size) {
+            if (this.keys[i] < other.keys[j]) {
+                result.append(this.keys[i], this.containers[i++]);
+            } else if (this.keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j++]);
+            } else {
+                result.append(this.keys[i], or(this.containers[i++], other.containers[j++]));
+            }
+        }
+        while (i < this.size) {
+            result.append(this.keys[i], this.containers[i++]);
+        }
+        while (j < other.size) {
+            result.append(other.keys[j], other.containers[j++]);
+        }
+        return result.build();
+    }
+
+    /**
+     * @return patients contained in both sets
+     */
+    PatientBitmap and(PatientBitmap other) {
+        Builder result = new Builder(Math.min(this.size, other.size));
+        int i = 0;
+        int j = 0;
+        while (i < this.size && j < other.size) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.append(this.keys[i], and(this.containers[i++], other.containers[j++]));
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * @return patients contained in this set but not in the other one
+     */
+    PatientBitmap andNot(PatientBitmap other) {
+        Builder result = new Builder(this.size);
+        int j = 0;
+        for (int i = 0; i < this.size; i++) {
+            while (j < other.size && other.keys[j] < this.keys[i]) {
+                j++;
+            }
+            boolean shared = j < other.size && other.keys[j] == this.keys[i];
+            result.append(this.keys[i], shared ? andNot(this.containers[i], other.containers[j]) : this.containers[i]);
+        }
+        return result.build();
+    }
+
+    private static Container or(Container a, Container b) {
+        if (a instanceof ArrayContainer x && b instanceof ArrayContainer y && x.size + y.size <= MAX_ARRAY_SIZE) {
+            return x.merge(y);
+        }
+        long[] words = a.toWords();
+        b.orInto(words);
+        return Container.fromWords(words);
+    }
+
+    private static Container and(Container a, Container b) {
+        if (a instanceof ArrayContainer x) {
+            return x.filter(b, true);
+        }
+        if (b instanceof ArrayContainer y) {
+            return y.filter(a, true);
+        }
+        long[] words = a.toWords();
+        long[] otherWords = ((BitmapContainer) b).words;
+        for (int i = 0; i < BITMAP_WORDS; i++) {
+            words[i] &= otherWords[i];
+        }
+        return Container.fromWords(words);
+    }
+
+    private static Container andNot(Container a, Container b) {
+        if (a instanceof ArrayContainer x) {
+            return x.filter(b, false);
+        }
+        long[] words = a.toWords();
+        b.andNotInto(words);
+        return Container.fromWords(words);
+    }
+
+    /**
+     * Collects the containers of a result in ascending key order, dropping empty ones
+     */
+    private static class Builder {
+        private final char[] keys;
+        private final Container[] containers;
+        private int size;
+
+        Builder(int capacity) {
+            this.keys = new char[Math.max(capacity, 4)];
+            this.containers = new Container[Math.max(capacity, 4)];
+        }
+
+        void append(char key, Container container) {
+            if (container != null) {
+                this.keys[this.size] = key;
+                this.containers[this.size++] = container;
+            }
+        }
+
+        PatientBitmap build() {
+            return new PatientBitmap(this.keys, this.containers, this.size);
+        }
+    }
+
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        /**
+         * @return container holding the value, possibly a new one of another kind
+         */
+        abstract Container add(char value);
+
+        abstract void forEach(int high, IntConsumer consumer);
+
+        /**
+         * @return new bitmap words holding the values of this container
+         */
+        abstract long[] toWords();
+
+        abstract void orInto(long[] words);
+
+        abstract void andNotInto(long[] words);
+
+        /**
+         * @return the smaller container kind for the values, null if there are none
+         */
+        static Container fromWords(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            if (cardinality > MAX_ARRAY_SIZE) {
+                return new BitmapContainer(words, cardinality);
+            }
+            char[] values = new char[cardinality];
+            int size = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[size++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, size);
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int size;
+
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int cardinality() {
+            return this.size;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(this.values, 0, this.size, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(this.values, 0, this.size, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (this.size == MAX_ARRAY_SIZE) {
+                long[] words = toWords();
+                words[value >>> 6] |= 1L << value;
+                return new BitmapContainer(words, this.size + 1);
+            }
+            index = -index - 1;
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, Math.min(this.size * 2, MAX_ARRAY_SIZE));
+            }
+            System.arraycopy(this.values, index, this.values, index + 1, this.size - index);
+            this.values[index] = value;
+            this.size++;
+            return this;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < this.size; i++) {
+                consumer.accept(high | this.values[i]);
+            }
+        }
+
+        @Override
+        long[] toWords() {
+            long[] words = new long[BITMAP_WORDS];
+            orInto(words);
+            return words;
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < this.size; i++) {
+                words[this.values[i] >>> 6] |= 1L << this.values[i];
+            }
+        }
+
+        @Override
+        void andNotInto(long[] words) {
+            for (int i = 0; i < this.size; i++) {
+                words[this.values[i] >>> 6] &= ~(1L << this.values[i]);
+            }
+        }
+
+        ArrayContainer merge(ArrayContainer other) {
+            char[] merged = new char[this.size + other.size];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < this.size && j < other.size) {
+                char a = this.values[i];
+                char b = other.values[j];
+                merged[k++] = a <= b ? a : b;
+                i += a <= b ? 1 : 0;
+                j += b <= a ? 1 : 0;
+            }
+            while (i < this.size) {
+                merged[k++] = this.values[i++];
+            }
+            while (j < other.size) {
+                merged[k++] = other.values[j++];
+            }
+            return new ArrayContainer(merged, k);
+        }
+
+        /**
+         * @param keep whether the values contained in other or those not contained in it are kept
+         */
+        Container filter(Container other, boolean keep) {
+            char[] filtered = new char[this.size];
+            int k = 0;
+            for (int i = 0; i < this.size; i++) {
+                if (other.contains(this.values[i]) == keep) {
+                    filtered[k++] = this.values[i];
+                }
+            }
+            return k == 0 ? null : new ArrayContainer(filtered, k);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return this.cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (this.words[value >>> 6] & 1L << value) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            if (!contains(value)) {
+                this.words[value >>> 6] |= 1L << value;
+                this.cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = this.words[i];
+                while (word != 0) {
+                    consumer.accept(high | i * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        long[] toWords() {
+            return this.words.clone();
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] |= this.words[i];
+            }
+        }
+
+        @Override
+        void andNotInto(long[] words) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] &= ~this.words[i];
+            }
+        }
+    }
+}
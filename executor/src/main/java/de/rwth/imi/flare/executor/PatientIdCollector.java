@@ -0,0 +1,111 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.FlareResource;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Subscribes to the results of a criterion and collects all published patients into a bitmap,
+ * without occupying a thread while the requestor waits for the FHIR server.
+ * Cancelling the collected result cancels the subscription, so the search stops paging.
+ */
+class PatientIdCollector implements Flow.Subscriber<FlareResource> {
+    private final PatientIdDictionary dictionary;
+    // Only accessed by the publisher's signals, which are serialized
+    private final PatientBitmap patients = new PatientBitmap();
+    private final CompletableFuture<PatientBitmap> result = new CompletableFuture<>();
+
+    private PatientIdCollector(PatientIdDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @param dictionary encodes the ids of the published patients
+     * @return future completed with all patients once the publisher completes
+     */
+    static CompletableFuture<PatientBitmap> collect(Flow.Publisher<FlareResource> publisher, PatientIdDictionary dictionary) {
+        PatientIdCollector collector = new PatientIdCollector(dictionary);
+        publisher.subscribe(collector);
+        return collector.result;
+    }
+
+    /**
+     * Collects the patients of a blocking search on the executor. Cancelling the returned future stops reading
+     * the search, so it fetches no further pages, or skips it if it has not been started yet.
+     * @param search starts the search, called on the executor
+     * @param dictionary encodes the ids of the patients found
+     * @return future completed with all patients once the search is exhausted
+     */
+    static CompletableFuture<PatientBitmap> collect(Supplier<Stream<String>> search, PatientIdDictionary dictionary,
+                                                    Executor executor) {
+        return collect(search, () -> {}, dictionary, executor);
+    }
+
+    /**
+     * Collects the patients of a blocking search that has already been started, e.g. whose first page was
+     * fetched in a batch, on the executor. Cancelling the returned future stops reading the search, if it has not
+     * been read yet it is closed, so it stops prefetching pages.
+     * @param patientIds patients found by the started search
+     * @param dictionary encodes the ids of the patients found
+     * @return future completed with all patients once the search is exhausted
+     */
+    static CompletableFuture<PatientBitmap> collect(Stream<String> patientIds, PatientIdDictionary dictionary,
+                                                    Executor executor) {
+        return collect(() -> patientIds, patientIds::close, dictionary, executor);
+    }
+
+    /**
+     * @param skipped called instead of the search if the result is done before it is started
+     */
+    private static CompletableFuture<PatientBitmap> collect(Supplier<Stream<String>> search, Runnable skipped,
+                                                            PatientIdDictionary dictionary, Executor executor) {
+        CompletableFuture<PatientBitmap> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (result.isDone()) {
+                skipped.run();
+                return;
+            }
+            try (Stream<String> patientIds = search.get()) {
+                PatientBitmap patients = new PatientBitmap();
+                Iterator<String> iterator = patientIds.iterator();
+                while (!result.isDone() && iterator.hasNext()) {
+                    patients.add(dictionary.encode(iterator.next()));
+                }
+                result.complete(patients);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.result.whenComplete((patients, error) -> {
+            if (this.result.isCancelled()) {
+                subscription.cancel();
+            }
+        });
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(FlareResource item) {
+        this.patients.add(this.dictionary.encode(item.getPatientId()));
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        this.result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        this.result.complete(this.patients);
+    }
+}
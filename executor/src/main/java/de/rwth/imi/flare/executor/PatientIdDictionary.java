@@ -0,0 +1,59 @@
+package de.rwth.imi.flare.executor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps patient ids to dense ints, so sets of patients can be stored as {@link PatientBitmap}s.
+ * A single dictionary is meant to be shared by all queries, ids are never removed, so it grows to the number of
+ * distinct patients the FHIR server returned.
+ */
+class PatientIdDictionary {
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    // Guarded by this
+    private String[] ids = new String[1024];
+    private int size;
+
+    /**
+     * @return code of the id, assigned on first use
+     */
+    int encode(String id) {
+        Integer code = this.codes.get(id);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            return this.codes.computeIfAbsent(id, unused -> {
+                if (this.size == this.ids.length) {
+                    this.ids = Arrays.copyOf(this.ids, this.size * 2);
+                }
+                this.ids[this.size] = id;
+                return this.size++;
+            });
+        }
+    }
+
+    /**
+     * @return set of the given ids
+     */
+    PatientBitmap encodeAll(Iterator<String> ids) {
+        PatientBitmap bitmap = new PatientBitmap();
+        ids.forEachRemaining(id -> bitmap.add(encode(id)));
+        return bitmap;
+    }
+
+    /**
+     * @return ids of the patients in the set
+     */
+    List<String> decodeAll(PatientBitmap bitmap) {
+        List<String> ids = new ArrayList<>(bitmap.cardinality());
+        synchronized (this) {
+            bitmap.forEach(code -> ids.add(this.ids[code]));
+        }
+        return ids;
+    }
+}
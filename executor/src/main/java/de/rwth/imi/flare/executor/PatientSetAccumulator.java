@@ -0,0 +1,97 @@
+package de.rwth.imi.flare.executor;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BinaryOperator;
+
+/**
+ * Combines patient sets while they complete, instead of waiting for all of them and merging them one after another
+ * on the thread completing the last one. Each completed set is merged with another completed one right away, so
+ * merging overlaps with the fetches still outstanding, and only the last merge is left once the last set arrives.
+ * The accumulator holds a single pending set, merged sets are not retained. Cancelling a combined set cancels
+ * the sets it is combined from.
+ */
+class PatientSetAccumulator {
+    private final BinaryOperator<PatientBitmap> operator;
+    // Whether an empty set decides the result, as for intersections
+    private final boolean emptyDecides;
+    private final CompletableFuture<PatientBitmap> result = new CompletableFuture<>();
+    // Guarded by this
+    private PatientBitmap pending;
+    private int unmerged;
+
+    private PatientSetAccumulator(BinaryOperator<PatientBitmap> operator, boolean emptyDecides, int sets) {
+        this.operator = operator;
+        this.emptyDecides = emptyDecides;
+        this.unmerged = sets;
+    }
+
+    /**
+     * @return future completed with the union once all sets are complete
+     */
+    static CompletableFuture<PatientBitmap> union(List<CompletableFuture<PatientBitmap>> idSets) {
+        return accumulate(idSets, PatientBitmap::or, false);
+    }
+
+    /**
+     * As soon as one set or partial intersection turns out empty, so is the intersection, the sets still
+     * outstanding are cancelled then instead of waited for.
+     * @return future completed with the intersection once all sets are complete or the result is empty
+     */
+    static CompletableFuture<PatientBitmap> intersection(List<CompletableFuture<PatientBitmap>> idSets) {
+        CompletableFuture<PatientBitmap> result = accumulate(idSets, PatientBitmap::and, true);
+        result.thenAccept(set -> idSets.forEach(ids -> ids.cancel(true)));
+        return result;
+    }
+
+    private static CompletableFuture<PatientBitmap> accumulate(List<CompletableFuture<PatientBitmap>> idSets,
+                                                               BinaryOperator<PatientBitmap> operator,
+                                                               boolean emptyDecides) {
+        if (idSets.isEmpty()) {
+            return CompletableFuture.completedFuture(new PatientBitmap());
+        }
+        PatientSetAccumulator accumulator = new PatientSetAccumulator(operator, emptyDecides, idSets.size());
+        for (CompletableFuture<PatientBitmap> ids : idSets) {
+            ids.whenComplete((set, error) -> {
+                if (error != null) {
+                    accumulator.result.completeExceptionally(error);
+                } else {
+                    accumulator.add(set);
+                }
+            });
+        }
+        // Cancelling the result, e.g. a union intersected with an empty set, cancels the sets it combines
+        accumulator.result.whenComplete((set, error) -> {
+            if (accumulator.result.isCancelled()) {
+                idSets.forEach(ids -> ids.cancel(true));
+            }
+        });
+        return accumulator.result;
+    }
+
+    private void add(PatientBitmap set) {
+        PatientBitmap merged = set;
+        while (!this.result.isDone()) {
+            if (this.emptyDecides && merged.isEmpty()) {
+                this.result.complete(merged);
+                return;
+            }
+            PatientBitmap partner;
+            synchronized (this) {
+                if (this.pending == null) {
+                    if (this.unmerged == 1) {
+                        this.result.complete(merged);
+                    } else {
+                        this.pending = merged;
+                    }
+                    return;
+                }
+                partner = this.pending;
+                this.pending = null;
+                this.unmerged--;
+            }
+            // Merged outside the lock, so sets completing meanwhile are merged concurrently
+            merged = this.operator.apply(partner, merged);
+        }
+    }
+}
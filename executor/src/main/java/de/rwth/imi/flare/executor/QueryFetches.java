@@ -0,0 +1,87 @@
+package de.rwth.imi.flare.executor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Outstanding fetches of a single query. All of them are cancelled together once the result of the query is
+ * decided or nobody waits for it anymore, fetches tracked after the cancellation are cancelled right away.
+ * Searches occurring several times within the query share a single fetch.
+ */
+class QueryFetches {
+    private final Set<CompletableFuture<?>> fetches = ConcurrentHashMap.newKeySet();
+    // Guarded by this
+    private final Map<String, SharedFetch> shared = new HashMap<>();
+    private volatile boolean cancelled;
+
+    /**
+     * @param fetch future that stops fetching from the FHIR server when it is cancelled
+     * @return the given future
+     */
+    <T> CompletableFuture<T> track(CompletableFuture<T> fetch) {
+        this.fetches.add(fetch);
+        fetch.whenComplete((result, error) -> this.fetches.remove(fetch));
+        // Checked after adding, so either this or a concurrent cancel() cancels the fetch
+        if (this.cancelled) {
+            fetch.cancel(true);
+        }
+        return fetch;
+    }
+
+    /**
+     * @param key identifies the search, e.g. its url
+     * @param fetch starts the search, called for the first use of the key only
+     * @return patients found by the search. Each use gets a future of its own, the shared fetch is cancelled
+     * once all uses are.
+     */
+    synchronized CompletableFuture<PatientBitmap> share(String key, Supplier<CompletableFuture<PatientBitmap>> fetch) {
+        SharedFetch sharedFetch = this.shared.get(key);
+        if (sharedFetch == null || sharedFetch.source.isCancelled()) {
+            sharedFetch = new SharedFetch(track(fetch.get()));
+            this.shared.put(key, sharedFetch);
+        }
+        return sharedFetch.use();
+    }
+
+    /**
+     * Cancels all fetches tracked so far and later on
+     */
+    void cancel() {
+        this.cancelled = true;
+        this.fetches.forEach(fetch -> fetch.cancel(true));
+    }
+
+    private class SharedFetch {
+        private final CompletableFuture<PatientBitmap> source;
+        // Guarded by QueryFetches.this
+        private int uses;
+
+        SharedFetch(CompletableFuture<PatientBitmap> source) {
+            this.source = source;
+        }
+
+        CompletableFuture<PatientBitmap> use() {
+            this.uses++;
+            CompletableFuture<PatientBitmap> use = this.source.thenApply(Function.identity());
+            use.whenComplete((result, error) -> {
+                if (use.isCancelled()) {
+                    release();
+                }
+            });
+            return use;
+        }
+
+        private void release() {
+            synchronized (QueryFetches.this) {
+                if (--this.uses == 0) {
+                    this.source.cancel(true);
+                }
+            }
+        }
+    }
+}
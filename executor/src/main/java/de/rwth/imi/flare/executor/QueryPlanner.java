@@ -0,0 +1,123 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.Query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToLongFunction;
+
+/**
+ * Orders the evaluation of a query by the cardinality estimates of its criteria.<br>
+ * Criteria are started in the order of the query, so cheaper ones get the threads, connections and batch slots
+ * first: their results are there early, and an empty group decides the query while the expensive criteria
+ * are still paging, which are cancelled then. Criteria without estimate are considered the most expensive.
+ * The planner only reorders, the executor picks how each criterion is evaluated.
+ */
+class QueryPlanner {
+    private final CriterionStatistics statistics;
+
+    QueryPlanner(CriterionStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Orders by the estimates cached so far, without waiting for the server
+     * @return the query with its groups, and the criteria within them, in ascending order of their estimates
+     */
+    Query order(Query query) {
+        if (!this.statistics.isEnabled()) {
+            return query;
+        }
+        return order(query, this.statistics::cachedEstimate);
+    }
+
+    /**
+     * @param estimates estimate of each criterion, negative if unknown
+     */
+    static Query order(Query query, ToLongFunction<Criterion> estimates) {
+        if (query.getExpandedExclusionCriteria() == null) {
+            return new Query(order(query.getInclusionCriteria(), estimates), order(query.getExclusionCriteria(), estimates));
+        }
+        // Expanded exclusion criteria replace the parsed ones, which may lack a mapping
+        return new Query(order(query.getInclusionCriteria(), estimates), query.getExclusionCriteria(),
+                query.getExpandedExclusionCriteria().stream().map(groups -> order(groups, estimates)).toList());
+    }
+
+    private static List<CriteriaGroup> order(List<CriteriaGroup> groups, ToLongFunction<Criterion> estimates) {
+        if (groups == null) {
+            return null;
+        }
+        List<CriteriaGroup> ordered = new ArrayList<>(groups.size());
+        for (CriteriaGroup group : groups) {
+            ordered.add(new CriteriaGroup(group.getCriteria().stream()
+                    .sorted(Comparator.comparingLong(criterion -> cost(estimates.applyAsLong(criterion))))
+                    .toList()));
+        }
+        ordered.sort(Comparator.comparingLong(group -> cost(estimate(group, estimates))));
+        return ordered;
+    }
+
+    /**
+     * @return sum of the estimates of all criteria of the group, negative if one of them is unknown
+     */
+    static long estimate(CriteriaGroup group, ToLongFunction<Criterion> estimates) {
+        long sum = 0;
+        for (Criterion criterion : group.getCriteria()) {
+            long estimate = estimates.applyAsLong(criterion);
+            if (estimate < 0) {
+                return CriterionStatistics.UNKNOWN;
+            }
+            sum = sum + estimate < 0 ? Long.MAX_VALUE : sum + estimate;
+        }
+        return sum;
+    }
+
+    /**
+     * Gathers the estimates of all criteria of the query, waiting for the server where none is cached
+     * @return estimate of each criterion, identified by identity
+     */
+    CompletableFuture<Map<Criterion, Long>> estimateAll(Query query) {
+        List<CriteriaGroup> groups = new ArrayList<>();
+        if (query.getInclusionCriteria() != null) {
+            groups.addAll(query.getInclusionCriteria());
+        }
+        if (query.getExpandedExclusionCriteria() != null) {
+            query.getExpandedExclusionCriteria().forEach(groups::addAll);
+        } else if (query.getExclusionCriteria() != null) {
+            groups.addAll(query.getExclusionCriteria());
+        }
+        return estimateAll(groups);
+    }
+
+    /**
+     * @return estimate of the group, waiting for the server where none is cached, Long.MAX_VALUE if the server
+     * can not count one of its criteria
+     */
+    CompletableFuture<Long> estimateResources(CriteriaGroup group) {
+        return estimateAll(List.of(group)).thenApply(estimates -> cost(estimate(group, estimates::get)));
+    }
+
+    private CompletableFuture<Map<Criterion, Long>> estimateAll(List<CriteriaGroup> groups) {
+        Map<Criterion, CompletableFuture<Long>> pending = new IdentityHashMap<>();
+        groups.forEach(group -> group.getCriteria()
+                .forEach(criterion -> pending.put(criterion, this.statistics.estimate(criterion))));
+        return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0])).thenApply(unused -> {
+            Map<Criterion, Long> estimates = new IdentityHashMap<>();
+            pending.forEach((criterion, estimate) -> estimates.put(criterion, estimate.join()));
+            return estimates;
+        });
+    }
+
+    /**
+     * @return the estimate, unknown ones as the highest possible
+     */
+    private static long cost(long estimate) {
+        return estimate < 0 ? Long.MAX_VALUE : estimate;
+    }
+}
@@ -0,0 +1,164 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.plan.CriterionProfile;
+import de.rwth.imi.flare.api.model.plan.GroupProfile;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
+import de.rwth.imi.flare.requestor.SearchProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates a query while measuring each of its criteria, to find the criteria and mappings a slow query spends
+ * its time on.<br>
+ * Every criterion is searched on its own: batches, reverse chaining and searches restricted to the patients of
+ * another group answer several criteria with the same requests, so they are not applied and the measurements of
+ * a criterion do not depend on the others.
+ */
+class QueryProfiler {
+    private final BiFunction<Criterion, SearchProfile, CompletableFuture<PatientBitmap>> search;
+    private final Function<Criterion, String> urlFunction;
+    private final Supplier<CompletableFuture<Long>> totalPatients;
+
+    /**
+     * @param search searches the patients of a criterion, recording its requests and pages in the given profile
+     * @param urlFunction search url of a criterion
+     * @param totalPatients counts all patients on the server, needed if the query has exclusion criteria only
+     */
+    QueryProfiler(BiFunction<Criterion, SearchProfile, CompletableFuture<PatientBitmap>> search,
+                  Function<Criterion, String> urlFunction, Supplier<CompletableFuture<Long>> totalPatients) {
+        this.search = search;
+        this.urlFunction = urlFunction;
+        this.totalPatients = totalPatients;
+    }
+
+    /**
+     * @param exclusionGroups a patient is excluded if they match all sets of alternatives of any of the groups
+     * @return number of patients matching the query, together with the measurements of all of its criteria
+     */
+    CompletableFuture<QueryProfile> profile(List<CriteriaGroup> inclusionGroups, List<List<CriteriaGroup>> exclusionGroups) {
+        long start = System.nanoTime();
+        List<ProfiledGroup> inclusion = inclusionGroups.stream().map(this::startGroup).toList();
+        List<List<ProfiledGroup>> exclusion = exclusionGroups.stream()
+                .map(group -> group.stream().map(this::startGroup).toList())
+                .toList();
+        CompletableFuture<Long> total = inclusion.isEmpty() && !exclusion.isEmpty()
+                ? this.totalPatients.get()
+                : CompletableFuture.completedFuture(null);
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        pending.add(total);
+        inclusion.forEach(group -> pending.add(group.patients));
+        exclusion.forEach(group -> group.forEach(alternatives -> pending.add(alternatives.patients)));
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).thenApply(unused -> {
+            PatientBitmap included = intersection(inclusion);
+            long setOperationNanos = 0;
+            PatientBitmap excluded = new PatientBitmap();
+            for (List<ProfiledGroup> group : exclusion) {
+                PatientBitmap groupIds = intersection(group);
+                long operationStart = System.nanoTime();
+                excluded = excluded.or(groupIds);
+                setOperationNanos += System.nanoTime() - operationStart;
+            }
+            int patientCount;
+            if (total.join() != null) {
+                if (total.join() < 0) {
+                    throw new CompletionException(new IllegalStateException("FHIR server does not report the total number of patients"));
+                }
+                patientCount = Math.toIntExact(Math.max(0, total.join() - excluded.cardinality()));
+            } else {
+                long operationStart = System.nanoTime();
+                patientCount = included.andNot(excluded).cardinality();
+                setOperationNanos += System.nanoTime() - operationStart;
+            }
+            return new QueryProfile(patientCount, millis(System.nanoTime() - start), millis(setOperationNanos),
+                    inclusion.stream().map(ProfiledGroup::toProfile).toList(),
+                    exclusion.stream().map(group -> group.stream().map(ProfiledGroup::toProfile).toList()).toList());
+        });
+    }
+
+    private ProfiledGroup startGroup(CriteriaGroup group) {
+        List<ProfiledCriterion> criteria = group.getCriteria().stream().map(criterion -> {
+            SearchProfile profile = new SearchProfile();
+            return new ProfiledCriterion(this.urlFunction.apply(criterion), profile, this.search.apply(criterion, profile));
+        }).toList();
+        return new ProfiledGroup(criteria);
+    }
+
+    /**
+     * Intersects the groups in their order, recording the time each group takes
+     * @return patients of all groups, none if there are no groups
+     */
+    private static PatientBitmap intersection(List<ProfiledGroup> groups) {
+        PatientBitmap ids = null;
+        for (ProfiledGroup group : groups) {
+            long operationStart = System.nanoTime();
+            ids = ids == null ? group.patients.join() : ids.and(group.patients.join());
+            group.setOperationNanos = System.nanoTime() - operationStart;
+        }
+        return ids == null ? new PatientBitmap() : ids;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static class ProfiledCriterion {
+        private final String searchUrl;
+        private final SearchProfile profile;
+        private final CompletableFuture<PatientBitmap> patients;
+        // Written by the union of the group, read once it is complete
+        private long distinctPatients;
+        private long setOperationNanos;
+
+        ProfiledCriterion(String searchUrl, SearchProfile profile, CompletableFuture<PatientBitmap> patients) {
+            this.searchUrl = searchUrl;
+            this.profile = profile;
+            this.patients = patients;
+        }
+
+        CriterionProfile toProfile() {
+            return new CriterionProfile(this.searchUrl, this.profile.getPages(), this.profile.getBytes(),
+                    this.profile.getResources(), this.distinctPatients, millis(this.profile.getQueueWaitNanos()),
+                    millis(this.profile.getFetchNanos()), millis(this.profile.getParseNanos()),
+                    millis(this.setOperationNanos));
+        }
+    }
+
+    /**
+     * Criteria of a group, their union is built once all of them are complete
+     */
+    private static class ProfiledGroup {
+        private final List<ProfiledCriterion> criteria;
+        private final CompletableFuture<PatientBitmap> patients;
+        // Written by the intersection of the query, read once it is complete
+        private long setOperationNanos;
+
+        ProfiledGroup(List<ProfiledCriterion> criteria) {
+            this.criteria = criteria;
+            this.patients = CompletableFuture.allOf(criteria.stream().map(criterion -> criterion.patients)
+                    .toArray(CompletableFuture[]::new)).thenApply(unused -> {
+                PatientBitmap ids = new PatientBitmap();
+                for (ProfiledCriterion criterion : criteria) {
+                    PatientBitmap criterionIds = criterion.patients.join();
+                    criterion.distinctPatients = criterionIds.cardinality();
+                    long operationStart = System.nanoTime();
+                    ids = ids.or(criterionIds);
+                    criterion.setOperationNanos = System.nanoTime() - operationStart;
+                }
+                return ids;
+            });
+        }
+
+        GroupProfile toProfile() {
+            return new GroupProfile(this.patients.join().cardinality(), millis(this.setOperationNanos),
+                    this.criteria.stream().map(ProfiledCriterion::toProfile).toList());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package de.rwth.imi.flare.executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import de.rwth.imi.flare.requestor.StubFhirServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * FHIR server stub holding one Observation per patient and code, answering the searches, counts, restricted
+ * searches, reverse chained Patient searches and batches the executor sends. Searches are paged, each page
+ * links to the next one.
+ */
+class StubPatientServer implements AutoCloseable {
+    private static final String LOINC = "http://loinc.org";
+    private static final Pattern ENTRY_URL = Pattern.compile("\"url\":\"([^\"]+)\"");
+
+    private final StubFhirServer server;
+    private final List<String> patients;
+    private final Map<String, List<String>> patientsByCode;
+    private final Map<String, AtomicInteger> searches = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> pages = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> restrictedSearches = new ConcurrentHashMap<>();
+    private final AtomicInteger counts = new AtomicInteger();
+    private final AtomicInteger patientSearches = new AtomicInteger();
+    private final AtomicInteger batches = new AtomicInteger();
+    private volatile int pageSize = Integer.MAX_VALUE;
+    private volatile long latencyMillis;
+    private volatile boolean totalsReported = true;
+    private volatile boolean restrictedSearchRejected;
+    private volatile Set<String> blockedCodes = Set.of();
+    private volatile boolean batchesBlocked;
+    private final CountDownLatch blockedPageRequested = new CountDownLatch(1);
+    private final CountDownLatch blockedBatchRequested = new CountDownLatch(1);
+    private final CountDownLatch blockedPagesReleased = new CountDownLatch(1);
+
+    /**
+     * @param patients ids of all patients on the server
+     * @param patientsByCode patients having an Observation of the code, in the order they are found
+     */
+    StubPatientServer(List<String> patients, Map<String, List<String>> patientsByCode) throws IOException {
+        this.server = new StubFhirServer();
+        this.patients = List.copyOf(patients);
+        this.patientsByCode = Map.copyOf(patientsByCode);
+        this.server.serve("Observation", this::handleObservations);
+        this.server.serve("Patient", this::handlePatients);
+        this.server.serve("", this::handleBatch);
+    }
+
+    URI getBaseUri() {
+        return this.server.getBaseUri();
+    }
+
+    /**
+     * @param pageSize resources per page of a search
+     */
+    void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param latencyMillis time each response is delayed by
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param totalsReported whether _summary=count searches report a total
+     */
+    void setTotalsReported(boolean totalsReported) {
+        this.totalsReported = totalsReported;
+    }
+
+    /**
+     * @param restrictedSearchRejected whether searches restricted to patients are answered with 400
+     */
+    void setRestrictedSearchRejected(boolean restrictedSearchRejected) {
+        this.restrictedSearchRejected = restrictedSearchRejected;
+    }
+
+    /**
+     * @param blockedCodes codes whose pages after the first one are not answered until they are released or the
+     *                     server is closed
+     */
+    void setBlockedCodes(Set<String> blockedCodes) {
+        this.blockedCodes = Set.copyOf(blockedCodes);
+    }
+
+    /**
+     * @param batchesBlocked whether batches are not answered until they are released or the server is closed
+     */
+    void setBatchesBlocked(boolean batchesBlocked) {
+        this.batchesBlocked = batchesBlocked;
+    }
+
+    /**
+     * @return whether a page of a blocked code has been requested within the timeout
+     */
+    boolean awaitBlockedPage(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.blockedPageRequested.await(timeout, unit);
+    }
+
+    /**
+     * @return whether a batch has been requested within the timeout while batches are blocked
+     */
+    boolean awaitBlockedBatch(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.blockedBatchRequested.await(timeout, unit);
+    }
+
+    /**
+     * Answers the blocked pages and batches requested so far and from now on
+     */
+    void releaseBlockedPages() {
+        this.blockedPagesReleased.countDown();
+    }
+
+    /**
+     * @return number of searches for all Observations of the code, without counts, pages and restricted searches
+     */
+    int getSearchCount(String code) {
+        return get(this.searches, code);
+    }
+
+    /**
+     * @return number of pages of searches for all Observations of the code, including the first ones
+     */
+    int getPageCount(String code) {
+        return get(this.pages, code);
+    }
+
+    /**
+     * @return number of searches for Observations of the code restricted to patients
+     */
+    int getRestrictedSearchCount(String code) {
+        return get(this.restrictedSearches, code);
+    }
+
+    int getCountRequests() {
+        return this.counts.get();
+    }
+
+    int getPatientSearchCount() {
+        return this.patientSearches.get();
+    }
+
+    int getBatchCount() {
+        return this.batches.get();
+    }
+
+    /**
+     * @return criterion matching the Observations of the code
+     */
+    static Criterion observation(String code) {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode(code, LOINC, code)), null, mapping, null, null);
+    }
+
+    /**
+     * @return patient ids "0" to "count - 1"
+     */
+    static List<String> patients(int count) {
+        List<String> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            patients.add(String.valueOf(i));
+        }
+        return patients;
+    }
+
+    /**
+     * @return the patients whose numeric id is a multiple of the divisor
+     */
+    static List<String> multiplesOf(List<String> patients, int divisor) {
+        return patients.stream().filter(patient -> Integer.parseInt(patient) % divisor == 0).toList();
+    }
+
+    private void handleObservations(HttpExchange exchange) throws IOException {
+        delay();
+        if (exchange.getRequestURI().getPath().endsWith("/_page")) {
+            // The search parameters may be sent along, the page is identified by the link only
+            Map<String, String> link = parse(exchange.getRequestURI().getRawQuery());
+            respondPage(exchange, link.get("code"), Integer.parseInt(link.get("page")));
+            return;
+        }
+        Map<String, String> parameters = parameters(exchange);
+        String code = codeOf(parameters.get("code"));
+        List<String> found = this.patientsByCode.getOrDefault(code, List.of());
+        if ("count".equals(parameters.get("_summary"))) {
+            this.counts.incrementAndGet();
+            respondTotal(exchange, found.size());
+            return;
+        }
+        String restriction = parameters.get("patient");
+        if (restriction != null) {
+            increment(this.restrictedSearches, code);
+            if (this.restrictedSearchRejected) {
+                StubFhirServer.respond(exchange, 400, "");
+                return;
+            }
+            Set<String> among = Arrays.stream(restriction.split(","))
+                    .map(reference -> reference.substring("Patient/".length()))
+                    .collect(Collectors.toSet());
+            StubFhirServer.respond(exchange, 200, bundle("Observation", found.stream().filter(among::contains).toList(), null));
+            return;
+        }
+        increment(this.searches, code);
+        respondPage(exchange, code, 0);
+    }
+
+    private void handlePatients(HttpExchange exchange) throws IOException {
+        delay();
+        Map<String, String> parameters = parameters(exchange);
+        // Each _has parameter lists alternative codes, a patient has to match all parameters
+        List<Set<String>> required = Arrays.stream(StubFhirServer.requestBody(exchange).split("&"))
+                .map(parameter -> URLDecoder.decode(parameter, StandardCharsets.UTF_8))
+                .filter(parameter -> parameter.startsWith("_has:Observation"))
+                .map(parameter -> Arrays.stream(parameter.substring(parameter.indexOf('=') + 1).split(","))
+                        .flatMap(coding -> this.patientsByCode.getOrDefault(codeOf(coding), List.of()).stream())
+                        .collect(Collectors.toSet()))
+                .toList();
+        List<String> found = this.patients.stream()
+                .filter(patient -> required.stream().allMatch(alternatives -> alternatives.contains(patient)))
+                .toList();
+        if ("count".equals(parameters.get("_summary"))) {
+            this.counts.incrementAndGet();
+            respondTotal(exchange, found.size());
+            return;
+        }
+        this.patientSearches.incrementAndGet();
+        StubFhirServer.respond(exchange, 200, bundle("Patient", found, null));
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        delay();
+        this.batches.incrementAndGet();
+        if (this.batchesBlocked) {
+            this.blockedBatchRequested.countDown();
+            try {
+                this.blockedPagesReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        StringBuilder response = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":[");
+        Matcher entryUrls = ENTRY_URL.matcher(StubFhirServer.requestBody(exchange));
+        for (int i = 0; entryUrls.find(); i++) {
+            String query = URI.create(entryUrls.group(1)).getRawQuery();
+            String code = codeOf(parse(query).get("code"));
+            increment(this.searches, code);
+            response.append(i == 0 ? "" : ",").append("{\"resource\":").append(page(code, 0))
+                    .append(",\"response\":{\"status\":\"200 OK\"}}");
+        }
+        StubFhirServer.respond(exchange, 200, response.append("]}").toString());
+    }
+
+    private void respondPage(HttpExchange exchange, String code, int page) throws IOException {
+        if (page > 0 && this.blockedCodes.contains(code)) {
+            this.blockedPageRequested.countDown();
+            try {
+                this.blockedPagesReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        StubFhirServer.respond(exchange, 200, page(code, page));
+    }
+
+    private String page(String code, int page) {
+        increment(this.pages, code);
+        List<String> found = this.patientsByCode.getOrDefault(code, List.of());
+        int from = (int) Math.min(found.size(), (long) page * this.pageSize);
+        int to = (int) Math.min(found.size(), (long) from + this.pageSize);
+        String next = to < found.size() ? getBaseUri() + "Observation/_page?code=" + code + "&page=" + (page + 1) : null;
+        return bundle("Observation", found.subList(from, to), next);
+    }
+
+    private void respondTotal(HttpExchange exchange, int total) throws IOException {
+        StubFhirServer.respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"type\":\"searchset\""
+                + (this.totalsReported ? ",\"total\":" + total : "") + "}");
+    }
+
+    private static String bundle(String resourceType, List<String> patients, String nextLink) {
+        if (!"Patient".equals(resourceType)) {
+            return StubFhirServer.searchBundle(resourceType, patients, nextLink);
+        }
+        return "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"link\":[],\"entry\":["
+                + patients.stream().map(patient -> "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"" + patient + "\"}}")
+                .collect(Collectors.joining(",")) + "]}";
+    }
+
+    private void delay() {
+        if (this.latencyMillis > 0) {
+            try {
+                Thread.sleep(this.latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return parameters of the query or of the form encoded body, only the last value of repeated parameters
+     */
+    private static Map<String, String> parameters(HttpExchange exchange) {
+        Map<String, String> parameters = new LinkedHashMap<>(parse(exchange.getRequestURI().getRawQuery()));
+        parameters.putAll(parse(StubFhirServer.requestBody(exchange)));
+        return parameters;
+    }
+
+    private static Map<String, String> parse(String query) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            String[] nameAndValue = parameter.split("=", 2);
+            parameters.put(URLDecoder.decode(nameAndValue[0], StandardCharsets.UTF_8),
+                    nameAndValue.length == 1 ? "" : URLDecoder.decode(nameAndValue[1], StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * @param coding system|code or a plain code
+     */
+    private static String codeOf(String coding) {
+        return coding == null ? null : coding.substring(coding.indexOf('|') + 1);
+    }
+
+    private static void increment(Map<String, AtomicInteger> counters, String code) {
+        counters.computeIfAbsent(code, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static int get(Map<String, AtomicInteger> counters, String code) {
+        AtomicInteger counter = counters.get(code);
+        return counter == null ? 0 : counter.get();
+    }
+
+    @Override
+    public void close() {
+        this.blockedPagesReleased.countDown();
+        this.server.close();
+    }
+}
@@ -0,0 +1,101 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FlareBulkExportConfig;
+import de.rwth.imi.flare.requestor.FlarePagingConfig;
+import de.rwth.imi.flare.requestor.FlareSemiJoinConfig;
+import de.rwth.imi.flare.requestor.FlareServerCapabilities;
+import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.SearchProjection;
+
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Configuration of an executor sending its requests to a stub, using the defaults unless set otherwise
+ */
+class StubRequestorConfig implements FhirRequestorConfig {
+    private final URI baseUri;
+    private FlareThreadPoolConfig threadPoolConfig = new FlareThreadPoolConfig(4, 16, 10);
+    private FlarePagingConfig pagingConfig = FlarePagingConfig.defaultConfig();
+    private FlareSemiJoinConfig semiJoinConfig = FlareSemiJoinConfig.defaultConfig();
+    private FlareServerCapabilities serverCapabilities = FlareServerCapabilities.defaultConfig();
+    private FlareBulkExportConfig bulkExportConfig = FlareBulkExportConfig.defaultConfig();
+
+    StubRequestorConfig(URI baseUri) {
+        this.baseUri = baseUri;
+    }
+
+    StubRequestorConfig withThreadPool(FlareThreadPoolConfig threadPoolConfig) {
+        this.threadPoolConfig = threadPoolConfig;
+        return this;
+    }
+
+    StubRequestorConfig withPaging(FlarePagingConfig pagingConfig) {
+        this.pagingConfig = pagingConfig;
+        return this;
+    }
+
+    StubRequestorConfig withSemiJoin(FlareSemiJoinConfig semiJoinConfig) {
+        this.semiJoinConfig = semiJoinConfig;
+        return this;
+    }
+
+    StubRequestorConfig withServerCapabilities(FlareServerCapabilities serverCapabilities) {
+        this.serverCapabilities = serverCapabilities;
+        return this;
+    }
+
+    StubRequestorConfig withBulkExport(FlareBulkExportConfig bulkExportConfig) {
+        this.bulkExportConfig = bulkExportConfig;
+        return this;
+    }
+
+    @Override
+    public Optional<Authenticator> getAuthentication() {
+        return Optional.empty();
+    }
+
+    @Override
+    public URI getBaseURI() {
+        return this.baseUri;
+    }
+
+    @Override
+    public String getPageCount() {
+        return "";
+    }
+
+    @Override
+    public FlareThreadPoolConfig getThreadPoolConfig() {
+        return this.threadPoolConfig;
+    }
+
+    @Override
+    public SearchProjection getSearchProjection() {
+        // The stub returns the same resources either way
+        return new SearchProjection(Map.of());
+    }
+
+    @Override
+    public FlarePagingConfig getPagingConfig() {
+        return this.pagingConfig;
+    }
+
+    @Override
+    public FlareSemiJoinConfig getSemiJoinConfig() {
+        return this.semiJoinConfig;
+    }
+
+    @Override
+    public FlareServerCapabilities getServerCapabilities() {
+        return this.serverCapabilities;
+    }
+
+    @Override
+    public FlareBulkExportConfig getBulkExportConfig() {
+        return this.bulkExportConfig;
+    }
+}
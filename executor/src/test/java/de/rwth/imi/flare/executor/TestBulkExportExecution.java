@@ -0,0 +1,173 @@
+package de.rwth.imi.flare.executor;
+
+import com.sun.net.httpserver.HttpExchange;
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.Query;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FlareBulkExportConfig;
+import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.StubFhirServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestBulkExportExecution {
+    private static final String HEMOGLOBIN = "718-7";
+    private static final String SODIUM = "2951-2";
+
+    @Test
+    void exportsCriteriaCountedAboveThreshold() throws Exception {
+        AtomicInteger exports = new AtomicInteger();
+        Map<String, AtomicInteger> searches = new ConcurrentHashMap<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveObservations(server, Map.of(HEMOGLOBIN, 1000L, SODIUM, 5L),
+                    Map.of(HEMOGLOBIN, List.of("1", "2"), SODIUM, List.of("2", "3", "4")), searches);
+            serveExport(server, exports, "[]", List.of("1", "2", "3"));
+            FlareExecutor executor = new FlareExecutor(config(server.getBaseUri(), 100));
+
+            int patientCount = executor.calculatePatientCount(hemoglobinAndSodium()).get(10, TimeUnit.SECONDS);
+
+            // Patients 2 and 3 are in the export and found by the search
+            Assertions.assertEquals(2, patientCount);
+            Assertions.assertEquals(1, exports.get());
+            Assertions.assertNull(searches.get(HEMOGLOBIN));
+            Assertions.assertEquals(1, searches.get(SODIUM).get());
+        }
+    }
+
+    @Test
+    void searchesCriteriaCountedBelowThreshold() throws Exception {
+        AtomicInteger exports = new AtomicInteger();
+        Map<String, AtomicInteger> searches = new ConcurrentHashMap<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveObservations(server, Map.of(HEMOGLOBIN, 1000L, SODIUM, 5L),
+                    Map.of(HEMOGLOBIN, List.of("1", "2"), SODIUM, List.of("2", "3", "4")), searches);
+            serveExport(server, exports, "[]", List.of("1", "2", "3"));
+            FlareExecutor executor = new FlareExecutor(config(server.getBaseUri(), 1001));
+
+            int patientCount = executor.calculatePatientCount(hemoglobinAndSodium()).get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(1, patientCount);
+            Assertions.assertEquals(0, exports.get());
+            Assertions.assertEquals(1, searches.get(HEMOGLOBIN).get());
+        }
+    }
+
+    @Test
+    void searchesCriterionIfExportReportsErrors() throws Exception {
+        AtomicInteger exports = new AtomicInteger();
+        Map<String, AtomicInteger> searches = new ConcurrentHashMap<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveObservations(server, Map.of(HEMOGLOBIN, 1000L, SODIUM, 5L),
+                    Map.of(HEMOGLOBIN, List.of("1", "2"), SODIUM, List.of("2", "3", "4")), searches);
+            serveExport(server, exports, "[{\"type\":\"OperationOutcome\",\"url\":\"/fhir/output/err.ndjson\"}]",
+                    List.of("1", "2", "3"));
+            FlareExecutor executor = new FlareExecutor(config(server.getBaseUri(), 100));
+
+            int patientCount = executor.calculatePatientCount(hemoglobinAndSodium()).get(10, TimeUnit.SECONDS);
+
+            // The incomplete export is discarded, only patient 2 is found by both searches
+            Assertions.assertEquals(1, patientCount);
+            Assertions.assertEquals(1, exports.get());
+            Assertions.assertEquals(1, searches.get(HEMOGLOBIN).get());
+        }
+    }
+
+    /**
+     * Answers the searches and counts of Observations by the code they search for
+     * @param searches number of searches, not counts, per code
+     */
+    private static void serveObservations(StubFhirServer server, Map<String, Long> totals,
+                                          Map<String, List<String>> patients, Map<String, AtomicInteger> searches) {
+        server.serve("Observation", exchange -> {
+            String body = StubFhirServer.requestBody(exchange);
+            String code = body.contains(HEMOGLOBIN) ? HEMOGLOBIN : SODIUM;
+            if (body.contains("_summary=count")) {
+                StubFhirServer.respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"total\":" + totals.get(code) + "}");
+                return;
+            }
+            searches.computeIfAbsent(code, key -> new AtomicInteger()).incrementAndGet();
+            StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation", patients.get(code), null));
+        });
+    }
+
+    /**
+     * Serves an export that completes on the first poll
+     * @param errors error array of the manifest
+     * @param patients patients referenced by the only output file
+     */
+    private static void serveExport(StubFhirServer server, AtomicInteger exports, String errors, List<String> patients) {
+        server.serve("Patient/$export", exchange -> {
+            exports.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Location", "/fhir/export/1");
+            StubFhirServer.respond(exchange, 202, "");
+        });
+        server.serve("export/1", exchange -> {
+            boolean delete = "DELETE".equals(exchange.getRequestMethod());
+            StubFhirServer.respond(exchange, delete ? 202 : 200, delete ? "" : "{\"requiresAccessToken\":false,"
+                    + "\"output\":[{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"}],\"error\":" + errors + "}");
+        });
+        server.serve("output/1.ndjson", exchange -> respondNdjson(exchange, patients));
+    }
+
+    private static void respondNdjson(HttpExchange exchange, List<String> patients) throws IOException {
+        StringBuilder ndjson = new StringBuilder();
+        for (String patient : patients) {
+            ndjson.append("{\"resourceType\":\"Observation\",\"subject\":{\"reference\":\"Patient/")
+                    .append(patient).append("\"}}\n");
+        }
+        StubFhirServer.respond(exchange, 200, ndjson.toString());
+    }
+
+    private static Query hemoglobinAndSodium() {
+        return new Query(List.of(new CriteriaGroup(List.of(observation(HEMOGLOBIN))),
+                new CriteriaGroup(List.of(observation(SODIUM)))), List.of());
+    }
+
+    private static Criterion observation(String code) {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode(code, "http://loinc.org", code)), null, mapping, null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri, long minEstimatedResources) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlareBulkExportConfig getBulkExportConfig() {
+                return new FlareBulkExportConfig(minEstimatedResources, 10, 10);
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.requestor.FlareStatisticsConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TestCriterionStatistics {
+
+    @Test
+    void countsEachCriterionOnce() {
+        AtomicInteger counts = new AtomicInteger();
+        CriterionStatistics statistics = new CriterionStatistics(criterion -> {
+            counts.incrementAndGet();
+            return 42;
+        }, TestCriterionStatistics::key, new FlareStatisticsConfig(3600, 10), Runnable::run);
+
+        Assertions.assertEquals(42, statistics.estimate(criterion("a")).join());
+        Assertions.assertEquals(42, statistics.cachedEstimate(criterion("a")));
+        Assertions.assertEquals(42, statistics.estimate(criterion("a")).join());
+
+        Assertions.assertEquals(1, counts.get());
+    }
+
+    @Test
+    void refreshesOutdatedEstimateInBackground() {
+        AtomicInteger counts = new AtomicInteger();
+        AtomicLong nanoTime = new AtomicLong();
+        Runnable[] refresh = new Runnable[1];
+        CriterionStatistics statistics = new CriterionStatistics(criterion -> counts.incrementAndGet(),
+                TestCriterionStatistics::key, new FlareStatisticsConfig(1, 10), command -> {
+                    if (counts.get() == 0) {
+                        command.run();
+                    } else {
+                        refresh[0] = command;
+                    }
+                }, nanoTime::get);
+        Assertions.assertEquals(1, statistics.estimate(criterion("a")).join());
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1100));
+
+        // The outdated estimate is used while it is refreshed
+        Assertions.assertEquals(1, statistics.cachedEstimate(criterion("a")));
+        refresh[0].run();
+
+        Assertions.assertEquals(2, statistics.cachedEstimate(criterion("a")));
+    }
+
+    @Test
+    void dropsLeastRecentlyUsedEstimates() {
+        AtomicInteger counts = new AtomicInteger();
+        CriterionStatistics statistics = new CriterionStatistics(criterion -> counts.incrementAndGet(),
+                TestCriterionStatistics::key, new FlareStatisticsConfig(3600, 2), Runnable::run);
+        statistics.estimate(criterion("a")).join();
+        statistics.estimate(criterion("b")).join();
+        statistics.estimate(criterion("a")).join();
+
+        statistics.estimate(criterion("c")).join();
+
+        Assertions.assertEquals(1, statistics.cachedEstimate(criterion("a")));
+        Assertions.assertEquals(4, statistics.estimate(criterion("b")).join());
+    }
+
+    static Criterion criterion(String code) {
+        return new Criterion(List.of(new TerminologyCode(code, "http://loinc.org", code)), null, null, null, null);
+    }
+
+    private static String key(Criterion criterion) {
+        return criterion.getTermCodes().get(0).getCode();
+    }
+}
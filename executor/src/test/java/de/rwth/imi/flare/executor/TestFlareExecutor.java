@@ -0,0 +1,286 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.Query;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import de.rwth.imi.flare.requestor.FlareSemiJoinConfig;
+import de.rwth.imi.flare.requestor.FlareServerCapabilities;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+class TestFlareExecutor {
+    private static final List<String> PATIENTS = StubPatientServer.patients(100);
+
+    @Test
+    void emptyInclusionGroupDecidesWithoutWaitingForExclusion() throws Exception {
+        try (StubPatientServer server = new StubPatientServer(PATIENTS, Map.of(
+                "all", PATIENTS, "even", StubPatientServer.multiplesOf(PATIENTS, 2)))) {
+            server.setPageSize(10);
+            server.setBlockedCodes(Set.of("all"));
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+
+            // The second page of the exclusion criterion is held, only the empty inclusion group can decide
+            int patientCount = executor.calculatePatientCount(query(List.of("none"), List.of("all")))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(0, patientCount);
+            assertPagingStopped(server, executor, "all");
+        }
+    }
+
+    @Test
+    void cancellingCountStopsPaging() throws Exception {
+        try (StubPatientServer server = new StubPatientServer(PATIENTS, Map.of(
+                "all", PATIENTS, "even", StubPatientServer.multiplesOf(PATIENTS, 2)))) {
+            server.setPageSize(10);
+            server.setBlockedCodes(Set.of("all"));
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+            CompletableFuture<Integer> patientCount = executor.calculatePatientCount(query(List.of("all"), List.of()));
+            Assertions.assertTrue(server.awaitBlockedPage(10, TimeUnit.SECONDS));
+
+            patientCount.cancel(true);
+
+            assertPagingStopped(server, executor, "all");
+        }
+    }
+
+    @Test
+    void cancellingCountWhileBatchIsInFlightStopsPaging() throws Exception {
+        try (StubPatientServer server = new StubPatientServer(PATIENTS, Map.of(
+                "all", PATIENTS, "even", StubPatientServer.multiplesOf(PATIENTS, 2)))) {
+            server.setPageSize(10);
+            server.setBatchesBlocked(true);
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri())
+                    .withServerCapabilities(new FlareServerCapabilities(false, true)));
+            CompletableFuture<Integer> patientCount = executor.calculatePatientCount(query(List.of("all", "even"), List.of()));
+            Assertions.assertTrue(server.awaitBlockedBatch(10, TimeUnit.SECONDS));
+
+            patientCount.cancel(true);
+
+            // The first pages arrive with the batch, the searches must not prefetch the following ones
+            assertPagingStopped(server, executor, "all");
+            Assertions.assertEquals(1, server.getBatchCount());
+        }
+    }
+
+    @Test
+    void excludesUnionOfIntersectionsOfExpandedCriteria() throws Exception {
+        Map<String, List<String>> patientsByCode = divisibility();
+        patientsByCode.put("all", PATIENTS);
+        try (StubPatientServer server = new StubPatientServer(PATIENTS, patientsByCode)) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+            // Expanded like by the QueryExpander: (2 or 3) and 5, or 7 and 3
+            List<List<CriteriaGroup>> expandedExclusion = List.of(
+                    List.of(alternatives("2", "3"), alternatives("5")),
+                    List.of(alternatives("7"), alternatives("3")));
+            Query query = new Query(groups(List.of("all")), null, expandedExclusion);
+
+            int patientCount = executor.calculatePatientCount(query).get(10, TimeUnit.SECONDS);
+
+            Set<String> firstGroup = new HashSet<>(patientsByCode.get("2"));
+            firstGroup.addAll(patientsByCode.get("3"));
+            firstGroup.retainAll(patientsByCode.get("5"));
+            Set<String> secondGroup = new HashSet<>(patientsByCode.get("7"));
+            secondGroup.retainAll(patientsByCode.get("3"));
+            Set<String> excluded = new HashSet<>(firstGroup);
+            excluded.addAll(secondGroup);
+            Assertions.assertEquals(PATIENTS.size() - excluded.size(), patientCount);
+            // The criterion occurring in both exclusion groups is searched once
+            Assertions.assertEquals(1, server.getSearchCount("3"));
+        }
+    }
+
+    @Test
+    void restrictsOtherCriteriaToSmallestInclusionGroup() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri())
+                    .withSemiJoin(new FlareSemiJoinConfig(100, 20)));
+
+            int patientCount = executor.calculatePatientCount(query(List.of("2", "7"), List.of("3")))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(countMultiples(14, 3), patientCount);
+            // The server counts the fewest resources for 7, so it drives
+            Assertions.assertEquals(1, server.getSearchCount("7"));
+            Assertions.assertEquals(0, server.getRestrictedSearchCount("7"));
+            Assertions.assertEquals(0, server.getSearchCount("2"));
+            Assertions.assertEquals(1, server.getRestrictedSearchCount("2"));
+            Assertions.assertEquals(0, server.getSearchCount("3"));
+            Assertions.assertEquals(1, server.getRestrictedSearchCount("3"));
+        }
+    }
+
+    @Test
+    void searchesAllPatientsIfDrivingGroupMatchesTooMany() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri())
+                    .withSemiJoin(new FlareSemiJoinConfig(10, 20)));
+
+            int patientCount = executor.calculatePatientCount(query(List.of("2", "7"), List.of("3")))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(countMultiples(14, 3), patientCount);
+            // 15 patients are divisible by 7, more than may drive
+            Assertions.assertEquals(1, server.getSearchCount("2"));
+            Assertions.assertEquals(0, server.getRestrictedSearchCount("2"));
+            Assertions.assertEquals(1, server.getSearchCount("3"));
+            Assertions.assertEquals(0, server.getRestrictedSearchCount("3"));
+        }
+    }
+
+    @Test
+    void searchesAllPatientsIfServerRejectsRestrictedSearch() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            server.setRestrictedSearchRejected(true);
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri())
+                    .withSemiJoin(new FlareSemiJoinConfig(100, 20)));
+
+            int patientCount = executor.calculatePatientCount(query(List.of("2", "7"), List.of("3")))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(countMultiples(14, 3), patientCount);
+            Assertions.assertEquals(1, server.getRestrictedSearchCount("2"));
+            Assertions.assertEquals(1, server.getSearchCount("2"));
+            Assertions.assertEquals(1, server.getRestrictedSearchCount("3"));
+            Assertions.assertEquals(1, server.getSearchCount("3"));
+        }
+    }
+
+    @Test
+    void countsSinglePatientCriterionByTotal() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+
+            int patientCount = executor.calculatePatientCount(new Query(List.of(new CriteriaGroup(List.of(patient()))), null))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(PATIENTS.size(), patientCount);
+            Assertions.assertEquals(1, server.getCountRequests());
+            Assertions.assertEquals(0, server.getPatientSearchCount());
+        }
+    }
+
+    @Test
+    void fetchesSinglePatientCriterionWithoutTotal() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            server.setTotalsReported(false);
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+
+            int patientCount = executor.calculatePatientCount(new Query(List.of(new CriteriaGroup(List.of(patient()))), null))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(PATIENTS.size(), patientCount);
+            Assertions.assertEquals(1, server.getCountRequests());
+            Assertions.assertEquals(1, server.getPatientSearchCount());
+        }
+    }
+
+    @Test
+    void subtractsExcludedPatientsFromTotal() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+
+            int patientCount = executor.calculatePatientCount(query(List.of(), List.of("2", "3")))
+                    .get(10, TimeUnit.SECONDS);
+
+            // Patients divisible by neither 2 nor 3
+            Assertions.assertEquals(PATIENTS.size() - 50 - 34 + 17, patientCount);
+            // Only the total of all patients is counted, the excluded ones are searched
+            Assertions.assertEquals(1, server.getCountRequests());
+            Assertions.assertEquals(1, server.getSearchCount("2"));
+            Assertions.assertEquals(1, server.getSearchCount("3"));
+        }
+    }
+
+    @Test
+    void fetchesAllPatientsWithoutTotal() throws Exception {
+        try (StubPatientServer server = divisibilityServer()) {
+            server.setTotalsReported(false);
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+
+            int patientCount = executor.calculatePatientCount(query(List.of(), List.of("2", "3")))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(PATIENTS.size() - 50 - 34 + 17, patientCount);
+            Assertions.assertEquals(1, server.getCountRequests());
+            Assertions.assertEquals(1, server.getPatientSearchCount());
+        }
+    }
+
+    /**
+     * Answers the held page, then asserts that no further page of the code is requested
+     */
+    private static void assertPagingStopped(StubPatientServer server, FlareExecutor executor, String code)
+            throws Exception {
+        server.releaseBlockedPages();
+        // A query of its own, answered after the held page, gives a search still paging time to request the next one
+        Assertions.assertEquals(50, executor.calculatePatientCount(query(List.of("even"), List.of()))
+                .get(10, TimeUnit.SECONDS));
+        // Only the first page and the held one, if the search got that far before it was cancelled
+        Assertions.assertTrue(server.getPageCount(code) <= 2);
+    }
+
+    /**
+     * @return server where the patients with a numeric id divisible by 2, 3, 5 or 7 have an Observation of that code
+     */
+    private static StubPatientServer divisibilityServer() throws IOException {
+        return new StubPatientServer(PATIENTS, divisibility());
+    }
+
+    /**
+     * @return patients with a numeric id divisible by 2, 3, 5 and 7, by the divisor as code
+     */
+    private static Map<String, List<String>> divisibility() {
+        Map<String, List<String>> patientsByCode = new HashMap<>();
+        for (int divisor : new int[]{2, 3, 5, 7}) {
+            patientsByCode.put("" + divisor, StubPatientServer.multiplesOf(PATIENTS, divisor));
+        }
+        return patientsByCode;
+    }
+
+    /**
+     * @return number of patients whose id is a multiple of the divisor, but not of the excluded divisor
+     */
+    private static long countMultiples(int divisor, int excludedDivisor) {
+        return PATIENTS.stream().mapToInt(Integer::parseInt)
+                .filter(id -> id % divisor == 0 && id % excludedDivisor != 0)
+                .count();
+    }
+
+    /**
+     * @return criterion the server matches every patient for
+     */
+    private static Criterion patient() {
+        MappingEntry mapping = new MappingEntry(null, "Patient", "gender", null, null, null, null);
+        return new Criterion(List.of(new TerminologyCode("female", "http://hl7.org/fhir/administrative-gender", "female")),
+                null, mapping, null, null);
+    }
+
+    /**
+     * @param inclusion codes of the criteria, each in a group of its own
+     * @param exclusion codes of the criteria, each in a group of its own
+     */
+    static Query query(List<String> inclusion, List<String> exclusion) {
+        return new Query(groups(inclusion), groups(exclusion));
+    }
+
+    private static CriteriaGroup alternatives(String... codes) {
+        return new CriteriaGroup(Arrays.stream(codes).map(StubPatientServer::observation).toList());
+    }
+
+    private static List<CriteriaGroup> groups(List<String> codes) {
+        return codes.stream().map(code -> new CriteriaGroup(List.of(StubPatientServer.observation(code)))).toList();
+    }
+}
@@ -0,0 +1,64 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestFutureExecutor {
+    private static final int FETCHES = 128;
+    private static final int CONNECTION_LIMIT = 32;
+    private static final long PAGE_MILLIS = 50;
+
+    @Test
+    void runsFetchesOnVirtualThreads() throws Exception {
+        ExecutorService executor = FlareExecutor.newFutureExecutor(new FlareThreadPoolConfig(4, 16, 10, true));
+        try {
+            Assertions.assertTrue(CompletableFuture.supplyAsync(() -> Thread.currentThread().isVirtual(), executor)
+                    .get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void virtualThreadsAreBoundOnlyByConnectionLimit() throws Exception {
+        AtomicInteger maxConcurrent = new AtomicInteger();
+        run(new FlareThreadPoolConfig(2, 2, 10, true), maxConcurrent);
+
+        Assertions.assertEquals(CONNECTION_LIMIT, maxConcurrent.get());
+    }
+
+    private static void run(FlareThreadPoolConfig poolConfig, AtomicInteger maxConcurrent) throws Exception {
+        ExecutorService executor = FlareExecutor.newFutureExecutor(poolConfig);
+        Semaphore connections = new Semaphore(CONNECTION_LIMIT);
+        AtomicInteger concurrent = new AtomicInteger();
+        try {
+            CompletableFuture<?>[] fetches = new CompletableFuture[FETCHES];
+            for (int i = 0; i < FETCHES; i++) {
+                fetches[i] = CompletableFuture.runAsync(() -> {
+                    try {
+                        connections.acquire();
+                        try {
+                            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                            Thread.sleep(PAGE_MILLIS);
+                            concurrent.decrementAndGet();
+                        } finally {
+                            connections.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, executor);
+            }
+            CompletableFuture.allOf(fetches).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
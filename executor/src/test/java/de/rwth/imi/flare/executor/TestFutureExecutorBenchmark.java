@@ -0,0 +1,116 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Query;
+import de.rwth.imi.flare.requestor.FlareSemiJoinConfig;
+import de.rwth.imi.flare.requestor.FlareServerCapabilities;
+import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the thread pool with virtual threads on the blocking fetches of the executor, many queries at once
+ * against a stub delaying every response. Excluded from the default build, run by {@code mvn test -Pbenchmark}.
+ * Only the results are asserted, the times of both modes are printed for comparison.
+ */
+@Tag("benchmark")
+class TestFutureExecutorBenchmark {
+    private static final int QUERIES = 32;
+    private static final long LATENCY_MILLIS = 20;
+    private static final List<String> PATIENTS = StubPatientServer.patients(1000);
+    private static final List<FlareThreadPoolConfig> MODES = List.of(
+            new FlareThreadPoolConfig(4, 16, 10, false), new FlareThreadPoolConfig(4, 16, 10, true));
+
+    private static StubPatientServer server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = new StubPatientServer(PATIENTS, Map.of(
+                "a", StubPatientServer.multiplesOf(PATIENTS, 2),
+                "b", StubPatientServer.multiplesOf(PATIENTS, 3),
+                "c", StubPatientServer.multiplesOf(PATIENTS, 5)));
+        server.setPageSize(50);
+        server.setLatencyMillis(LATENCY_MILLIS);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.close();
+    }
+
+    /**
+     * The patients of c drive the search of a, among them in chunks of 20 patients
+     */
+    @Test
+    void restrictedSearches() throws Exception {
+        benchmark("executeForPatients", config -> config.withSemiJoin(new FlareSemiJoinConfig(1000, 20)),
+                query("a", "c"), 100);
+    }
+
+    /**
+     * Without a total the query is answered by fetching the reverse chained Patient search
+     */
+    @Test
+    void patientSearches() throws Exception {
+        server.setTotalsReported(false);
+        try {
+            benchmark("executePatientSearch", config -> config.withServerCapabilities(new FlareServerCapabilities(true, false)),
+                    query("a", "b"), 167);
+        } finally {
+            server.setTotalsReported(true);
+        }
+    }
+
+    /**
+     * The first pages of both criteria are requested in a batch, the further pages one by one
+     */
+    @Test
+    void batches() throws Exception {
+        benchmark("executeBatch", config -> config.withServerCapabilities(new FlareServerCapabilities(false, true)),
+                query("a", "b"), 167);
+    }
+
+    private static void benchmark(String name, UnaryOperator<StubRequestorConfig> configure, Query query,
+                                  int expectedCount) throws Exception {
+        for (FlareThreadPoolConfig mode : MODES) {
+            FlareExecutor executor = new FlareExecutor(configure.apply(
+                    new StubRequestorConfig(server.getBaseUri()).withThreadPool(mode)));
+            // Warms up the JVM and the statistics of the executor
+            run(executor, query, expectedCount);
+
+            long start = System.nanoTime();
+            run(executor, query, expectedCount);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            System.out.println(name + (mode.isVirtualThreads() ? ", virtual threads: " : ", thread pool: ")
+                    + QUERIES + " queries in " + millis + " ms");
+        }
+    }
+
+    private static void run(FlareExecutor executor, Query query, int expectedCount) throws Exception {
+        List<CompletableFuture<Integer>> counts = IntStream.range(0, QUERIES)
+                .mapToObj(i -> executor.calculatePatientCount(query))
+                .toList();
+        for (CompletableFuture<Integer> count : counts) {
+            Assertions.assertEquals(expectedCount, count.get(60, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Query query(String... codes) {
+        List<CriteriaGroup> groups = Arrays.stream(codes)
+                .map(code -> new CriteriaGroup(List.of(StubPatientServer.observation(code))))
+                .toList();
+        return new Query(groups, List.of());
+    }
+}
@@ -0,0 +1,70 @@
+package de.rwth.imi.flare.executor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+class TestPatientBitmap {
+
+    @Test
+    void setOperationsMatchHashSets() {
+        Random random = new Random(42);
+        // Sparse and dense groups, so both container kinds and their combinations are used
+        Set<Integer> a = randomIds(random, 20_000, 1 << 17);
+        Set<Integer> b = randomIds(random, 100_000, 1 << 17);
+        b.addAll(randomIds(random, 300, 1 << 20));
+        PatientBitmap bitmapA = bitmapOf(a);
+        PatientBitmap bitmapB = bitmapOf(b);
+
+        Set<Integer> union = new HashSet<>(a);
+        union.addAll(b);
+        Set<Integer> intersection = new HashSet<>(a);
+        intersection.retainAll(b);
+        Set<Integer> difference = new HashSet<>(a);
+        difference.removeAll(b);
+
+        Assertions.assertEquals(union, toSet(bitmapA.or(bitmapB)));
+        Assertions.assertEquals(intersection, toSet(bitmapA.and(bitmapB)));
+        Assertions.assertEquals(difference, toSet(bitmapA.andNot(bitmapB)));
+        Assertions.assertEquals(b.size() - intersection.size(), bitmapB.andNot(bitmapA).cardinality());
+        // Operands are left unchanged
+        Assertions.assertEquals(a, toSet(bitmapA));
+        Assertions.assertEquals(b, toSet(bitmapB));
+    }
+
+    @Test
+    void dictionaryKeepsCodesAcrossSets() {
+        PatientIdDictionary dictionary = new PatientIdDictionary();
+        PatientBitmap first = dictionary.encodeAll(List.of("a", "b", "c").iterator());
+        PatientBitmap second = dictionary.encodeAll(List.of("c", "d", "b").iterator());
+
+        Assertions.assertEquals(List.of("b", "c"), dictionary.decodeAll(first.and(second)));
+        Assertions.assertEquals(List.of("a"), dictionary.decodeAll(first.andNot(second)));
+        Assertions.assertEquals(4, first.or(second).cardinality());
+    }
+
+    private static Set<Integer> randomIds(Random random, int count, int bound) {
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(random.nextInt(bound));
+        }
+        return ids;
+    }
+
+    static PatientBitmap bitmapOf(Set<Integer> ids) {
+        PatientBitmap bitmap = new PatientBitmap();
+        ids.forEach(bitmap::add);
+        return bitmap;
+    }
+
+    static Set<Integer> toSet(PatientBitmap bitmap) {
+        Set<Integer> ids = new HashSet<>();
+        bitmap.forEach(ids::add);
+        Assertions.assertEquals(ids.size(), bitmap.cardinality());
+        return ids;
+    }
+}
@@ -0,0 +1,63 @@
+package de.rwth.imi.flare.executor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+class TestPatientIdCollector {
+
+    @Test
+    void skipsSearchCancelledBeforeStart() {
+        List<Runnable> queued = new ArrayList<>();
+        AtomicBoolean started = new AtomicBoolean();
+        CompletableFuture<PatientBitmap> patients = PatientIdCollector.collect(() -> {
+            started.set(true);
+            return Stream.of("a");
+        }, new PatientIdDictionary(), queued::add);
+
+        patients.cancel(true);
+        queued.forEach(Runnable::run);
+
+        Assertions.assertFalse(started.get());
+    }
+
+    @Test
+    void closesStartedSearchCancelledBeforeRead() {
+        List<Runnable> queued = new ArrayList<>();
+        AtomicBoolean closed = new AtomicBoolean();
+        CompletableFuture<PatientBitmap> patients = PatientIdCollector.collect(
+                Stream.of("a").onClose(() -> closed.set(true)), new PatientIdDictionary(), queued::add);
+
+        patients.cancel(true);
+        queued.forEach(Runnable::run);
+
+        Assertions.assertTrue(closed.get());
+    }
+
+    @Test
+    void stopsReadingSearchOnceCancelled() {
+        AtomicReference<CompletableFuture<PatientBitmap>> patients = new AtomicReference<>();
+        AtomicInteger read = new AtomicInteger();
+        List<Runnable> queued = new ArrayList<>();
+        // Endless search, cancelled by its consumer after the tenth patient
+        patients.set(PatientIdCollector.collect(() -> Stream.iterate(0, i -> i + 1)
+                .map(String::valueOf)
+                .peek(id -> {
+                    if(read.incrementAndGet() == 10){
+                        patients.get().cancel(true);
+                    }
+                }), new PatientIdDictionary(), queued::add));
+
+        queued.forEach(Runnable::run);
+
+        Assertions.assertTrue(patients.get().isCancelled());
+        Assertions.assertEquals(10, read.get());
+    }
+}
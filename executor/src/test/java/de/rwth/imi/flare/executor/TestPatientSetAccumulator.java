@@ -0,0 +1,62 @@
+package de.rwth.imi.flare.executor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+class TestPatientSetAccumulator {
+
+    @Test
+    void mergesSetsInAnyCompletionOrder() {
+        CompletableFuture<PatientBitmap> first = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> second = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> third = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> union = PatientSetAccumulator.union(List.of(first, second, third));
+        CompletableFuture<PatientBitmap> intersection = PatientSetAccumulator.intersection(List.of(
+                first.thenApply(set -> set), second.thenApply(set -> set), third.thenApply(set -> set)));
+
+        third.complete(TestPatientBitmap.bitmapOf(Set.of(2, 3, 70_000)));
+        first.complete(TestPatientBitmap.bitmapOf(Set.of(1, 2, 3)));
+        Assertions.assertFalse(union.isDone());
+        second.complete(TestPatientBitmap.bitmapOf(Set.of(3, 4)));
+
+        Assertions.assertEquals(Set.of(1, 2, 3, 4, 70_000), TestPatientBitmap.toSet(union.join()));
+        Assertions.assertEquals(Set.of(3), TestPatientBitmap.toSet(intersection.join()));
+    }
+
+    @Test
+    void decidesIntersectionOnFirstEmptySet() {
+        CompletableFuture<PatientBitmap> outstanding = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> first = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> second = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> intersection = PatientSetAccumulator.intersection(List.of(outstanding, first, second));
+
+        // Disjoint sets, so the partial intersection is empty before the outstanding set is complete
+        first.complete(TestPatientBitmap.bitmapOf(Set.of(1)));
+        second.complete(TestPatientBitmap.bitmapOf(Set.of(2)));
+
+        Assertions.assertTrue(intersection.join().isEmpty());
+        Assertions.assertTrue(outstanding.isCancelled());
+    }
+
+    @Test
+    void cancelsUnionsOfDecidedIntersection() {
+        CompletableFuture<PatientBitmap> outstanding = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> alsoOutstanding = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> empty = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> outstandingUnion = PatientSetAccumulator.union(List.of(outstanding, alsoOutstanding));
+        CompletableFuture<PatientBitmap> intersection = PatientSetAccumulator.intersection(List.of(
+                outstandingUnion, PatientSetAccumulator.union(List.of(empty))));
+
+        empty.complete(new PatientBitmap());
+
+        // The empty union decides the intersection, the fetches of the other union are no longer needed
+        Assertions.assertTrue(intersection.join().isEmpty());
+        Assertions.assertTrue(outstandingUnion.isCancelled());
+        Assertions.assertTrue(outstanding.isCancelled());
+        Assertions.assertTrue(alsoOutstanding.isCancelled());
+    }
+}
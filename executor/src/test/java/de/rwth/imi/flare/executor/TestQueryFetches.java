@@ -0,0 +1,45 @@
+package de.rwth.imi.flare.executor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestQueryFetches {
+
+    @Test
+    void fetchesSharedSearchOnce() {
+        QueryFetches fetches = new QueryFetches();
+        CompletableFuture<PatientBitmap> source = new CompletableFuture<>();
+        AtomicInteger started = new AtomicInteger();
+
+        CompletableFuture<PatientBitmap> first = fetches.share("Condition?code=I10", () -> {
+            started.incrementAndGet();
+            return source;
+        });
+        CompletableFuture<PatientBitmap> second = fetches.share("Condition?code=I10", () -> {
+            started.incrementAndGet();
+            return source;
+        });
+        source.complete(new PatientBitmap());
+
+        Assertions.assertEquals(1, started.get());
+        Assertions.assertTrue(first.join().isEmpty());
+        Assertions.assertTrue(second.join().isEmpty());
+    }
+
+    @Test
+    void cancelsSharedSearchOnceAllUsesAreCancelled() {
+        QueryFetches fetches = new QueryFetches();
+        CompletableFuture<PatientBitmap> source = new CompletableFuture<>();
+        CompletableFuture<PatientBitmap> first = fetches.share("Condition?code=I10", () -> source);
+        CompletableFuture<PatientBitmap> second = fetches.share("Condition?code=I10", () -> source);
+
+        first.cancel(true);
+        Assertions.assertFalse(source.isCancelled());
+        second.cancel(true);
+
+        Assertions.assertTrue(source.isCancelled());
+    }
+}
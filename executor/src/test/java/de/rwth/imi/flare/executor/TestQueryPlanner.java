@@ -0,0 +1,68 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.Query;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+class TestQueryPlanner {
+
+    @Test
+    void ordersGroupsAndCriteriaByEstimate() {
+        Criterion common = TestCriterionStatistics.criterion("common");
+        Criterion rare = TestCriterionStatistics.criterion("rare");
+        Criterion unknown = TestCriterionStatistics.criterion("unknown");
+        Criterion medium = TestCriterionStatistics.criterion("medium");
+        Map<String, Long> estimates = Map.of("common", 10_000L, "rare", 5L, "unknown", -1L, "medium", 300L);
+        Query query = new Query(List.of(new CriteriaGroup(List.of(unknown, rare)), new CriteriaGroup(List.of(common, medium))),
+                List.of(new CriteriaGroup(List.of(common, rare))));
+
+        Query ordered = QueryPlanner.order(query,
+                criterion -> estimates.get(criterion.getTermCodes().get(0).getCode()));
+
+        // A group with an unknown estimate may be arbitrarily large, so it comes last
+        Assertions.assertEquals(List.of(new CriteriaGroup(List.of(medium, common)), new CriteriaGroup(List.of(rare, unknown))),
+                ordered.getInclusionCriteria());
+        Assertions.assertEquals(List.of(new CriteriaGroup(List.of(rare, common))), ordered.getExclusionCriteria());
+    }
+
+    @Test
+    void ordersExpandedExclusionCriteriaWithinTheirGroups() {
+        Criterion common = TestCriterionStatistics.criterion("common");
+        Criterion rare = TestCriterionStatistics.criterion("rare");
+        Criterion medium = TestCriterionStatistics.criterion("medium");
+        Map<String, Long> estimates = Map.of("common", 10_000L, "rare", 5L, "medium", 300L);
+        List<CriteriaGroup> parsed = List.of(new CriteriaGroup(List.of(common, rare)));
+        Query query = new Query(null, parsed, List.of(List.of(
+                new CriteriaGroup(List.of(common, medium)), new CriteriaGroup(List.of(rare)))));
+
+        Query ordered = QueryPlanner.order(query,
+                criterion -> estimates.get(criterion.getTermCodes().get(0).getCode()));
+
+        Assertions.assertEquals(List.of(List.of(new CriteriaGroup(List.of(rare)), new CriteriaGroup(List.of(medium, common)))),
+                ordered.getExpandedExclusionCriteria());
+        Assertions.assertSame(parsed, ordered.getExclusionCriteria());
+    }
+
+    @Test
+    void countsNothingUnlessEstimatesAreNeeded() throws Exception {
+        List<String> patients = StubPatientServer.patients(30);
+        try (StubPatientServer server = new StubPatientServer(patients, Map.of(
+                "a", StubPatientServer.multiplesOf(patients, 2), "b", StubPatientServer.multiplesOf(patients, 3)))) {
+            FlareExecutor executor = new FlareExecutor(new StubRequestorConfig(server.getBaseUri()));
+            Query query = new Query(List.of(new CriteriaGroup(List.of(StubPatientServer.observation("a"))),
+                    new CriteriaGroup(List.of(StubPatientServer.observation("b")))), null);
+
+            int patientCount = executor.calculatePatientCount(query).get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(5, patientCount);
+            // Neither semi-joins nor bulk exports are enabled, so the query is not ordered by estimates
+            Assertions.assertEquals(0, server.getCountRequests());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package de.rwth.imi.flare.executor;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.plan.CriterionProfile;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+class TestQueryProfiler {
+
+    @Test
+    void profilesEachCriterionOfTheQuery() {
+        Criterion a = TestCriterionStatistics.criterion("a");
+        Criterion b = TestCriterionStatistics.criterion("b");
+        Criterion c = TestCriterionStatistics.criterion("c");
+        Criterion d = TestCriterionStatistics.criterion("d");
+        Map<String, Set<Integer>> patients = Map.of("a", Set.of(1, 2), "b", Set.of(2, 3), "c", Set.of(1, 2, 3), "d", Set.of(3));
+        QueryProfiler profiler = new QueryProfiler(
+                (criterion, profile) -> CompletableFuture.completedFuture(TestPatientBitmap.bitmapOf(patients.get(code(criterion)))),
+                TestQueryProfiler::url, () -> CompletableFuture.failedFuture(new AssertionError("Not exclusion only")));
+
+        // (a OR b) AND c, excluding d
+        QueryProfile profile = profiler.profile(List.of(new CriteriaGroup(List.of(a, b)), new CriteriaGroup(List.of(c))),
+                List.of(List.of(new CriteriaGroup(List.of(d))))).join();
+
+        Assertions.assertEquals(2, profile.getPatientCount());
+        Assertions.assertEquals(3, profile.getInclusionGroups().get(0).getDistinctPatients());
+        CriterionProfile first = profile.getInclusionGroups().get(0).getCriteria().get(0);
+        Assertions.assertEquals("Observation?code=a", first.getSearchUrl());
+        Assertions.assertEquals(2, first.getDistinctPatients());
+        Assertions.assertEquals(1, profile.getExclusionGroups().get(0).get(0).getCriteria().get(0).getDistinctPatients());
+    }
+
+    @Test
+    void subtractsExcludedPatientsFromAllPatients() {
+        Criterion d = TestCriterionStatistics.criterion("d");
+        QueryProfiler profiler = new QueryProfiler(
+                (criterion, profile) -> CompletableFuture.completedFuture(TestPatientBitmap.bitmapOf(Set.of(3))),
+                TestQueryProfiler::url, () -> CompletableFuture.completedFuture(10L));
+
+        QueryProfile profile = profiler.profile(List.of(), List.of(List.of(new CriteriaGroup(List.of(d))))).join();
+
+        Assertions.assertEquals(9, profile.getPatientCount());
+    }
+
+    private static String code(Criterion criterion) {
+        return criterion.getTermCodes().get(0).getCode();
+    }
+
+    private static String url(Criterion criterion) {
+        return "Observation?code=" + code(criterion);
+    }
+}
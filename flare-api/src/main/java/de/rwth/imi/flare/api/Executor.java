@@ -1,6 +1,8 @@
 package de.rwth.imi.flare.api;
 
 import de.rwth.imi.flare.api.model.Query;
+import de.rwth.imi.flare.api.model.plan.QueryPlan;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
 
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -18,4 +20,19 @@ public interface Executor
     CompletableFuture<Integer> calculatePatientCount(Query mappedQuery);
 
     List<List<List<String>>> translateMappedQuery(Query mappedQuery);
+
+    /**
+     * Plans the query without evaluating it, may ask the server for cardinality estimates
+     * @param mappedQuery Query with all mapping information
+     * @return order and strategies the query would be evaluated with
+     */
+    QueryPlan planQuery(Query mappedQuery);
+
+    /**
+     * Executes the query and measures the evaluation of each of its criteria
+     * @param mappedQuery Query with all mapping information
+     * @return A CompletableFuture that when executed yields the number of patients matching the given query,
+     * together with the pages, sizes and times of all criteria
+     */
+    CompletableFuture<QueryProfile> explainQuery(Query mappedQuery);
 }
@@ -2,6 +2,7 @@ package de.rwth.imi.flare.api;
 
 import de.rwth.imi.flare.api.model.Criterion;
 
+import java.util.concurrent.Flow;
 import java.util.stream.Stream;
 
 /**
@@ -16,5 +17,13 @@ public interface Requestor
      */
     Stream<FlareResource> execute(Criterion searchCriterion);
 
+    /**
+     * Executes a search as defined by the given criterion, publishing the results as the subscriber demands them.
+     * Implementations should fetch the results without blocking a thread while waiting for the server.
+     * @param searchCriterion defines the search
+     * @return A publisher of Resources matching the {@code searchCriterion}, supporting a single subscriber
+     */
+    Flow.Publisher<FlareResource> executeAsync(Criterion searchCriterion);
+
     String translateCriterion(Criterion searchCriterion);
 }
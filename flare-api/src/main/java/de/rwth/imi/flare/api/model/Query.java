@@ -19,4 +19,15 @@ public class Query
 {
     private List<CriteriaGroup> inclusionCriteria;
     private List<CriteriaGroup> exclusionCriteria;
+    /**
+     * Exclusion criteria as expanded, null if the query has not been expanded. A patient is excluded if they match
+     * all groups of any of the lists, each group holding the alternatives a single exclusion criterion expanded to.
+     */
+    @XmlTransient
+    private List<List<CriteriaGroup>> expandedExclusionCriteria;
+
+    public Query(List<CriteriaGroup> inclusionCriteria, List<CriteriaGroup> exclusionCriteria)
+    {
+        this(inclusionCriteria, exclusionCriteria, null);
+    }
 }
@@ -0,0 +1,15 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CriterionPlan {
+    private String searchUrl;
+    // Number of resources the FHIR server counts for the search, -1 if unknown
+    private long estimatedResources;
+    private EvaluationStrategy strategy;
+}
@@ -0,0 +1,24 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CriterionProfile {
+    private String searchUrl;
+    private long pages;
+    // Size of all pages after decompression
+    private long bytes;
+    private long resources;
+    private long distinctPatients;
+    // Time the requests waited for a connection permit
+    private double queueWaitMillis;
+    // Time from sending the requests until their bodies were received
+    private double fetchMillis;
+    private double parseMillis;
+    // Time spent merging the patients into the union of the group
+    private double setOperationMillis;
+}
@@ -0,0 +1,19 @@
+package de.rwth.imi.flare.api.model.plan;
+
+/**
+ * How the patients matching a criterion are obtained
+ */
+public enum EvaluationStrategy {
+    // Paged search of the criterion
+    SEARCH,
+    // Paged search, the first page is requested together with other criteria in a batch Bundle
+    BATCH,
+    // Bulk $export of the matching resources
+    BULK_EXPORT,
+    // Part of a Patient search using _has, shared by the criteria of the group or query
+    REVERSE_CHAINED,
+    // Paged search among the patients of the driving group only
+    RESTRICTED,
+    // Answered by the total of a _summary=count search, without fetching any patient
+    COUNT
+}
@@ -0,0 +1,16 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class GroupPlan {
+    // Sum of the estimates of all criteria, -1 if one of them is unknown
+    private long estimatedResources;
+    private List<CriterionPlan> criteria;
+}
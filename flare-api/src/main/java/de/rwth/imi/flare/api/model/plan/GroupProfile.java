@@ -0,0 +1,17 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class GroupProfile {
+    private long distinctPatients;
+    // Time spent intersecting the patients of the group with those of the preceding groups
+    private double setOperationMillis;
+    private List<CriterionProfile> criteria;
+}
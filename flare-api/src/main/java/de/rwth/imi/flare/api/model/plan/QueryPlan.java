@@ -0,0 +1,21 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Order and strategies the executor evaluates a query with, groups and criteria are listed in evaluation order
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class QueryPlan {
+    private List<GroupPlan> inclusionGroups;
+    // Patients matching all groups of any of the lists are excluded
+    private List<List<GroupPlan>> exclusionGroups;
+    // Index of the inclusion group the other criteria are restricted to, null if none drives the query
+    private Integer drivingGroup;
+}
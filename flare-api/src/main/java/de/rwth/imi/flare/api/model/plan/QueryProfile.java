@@ -0,0 +1,23 @@
+package de.rwth.imi.flare.api.model.plan;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Measurements of an evaluated query, where each criterion was searched on its own
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class QueryProfile {
+    private int patientCount;
+    private double totalMillis;
+    // Time spent combining the exclusion groups and subtracting them from the included patients
+    private double setOperationMillis;
+    private List<GroupProfile> inclusionGroups;
+    // Patients matching all groups of any of the lists are excluded
+    private List<List<GroupProfile>> exclusionGroups;
+}
@@ -12,13 +12,14 @@ import de.rwth.imi.flare.mapping.expansion.QueryExpander;
 import de.rwth.imi.flare.mapping.lookup.NaiveLookupMapping;
 import de.rwth.imi.flare.mapping.lookup.SourceMappingEntry;
 import de.rwth.imi.flare.parser.i2b2.ParserI2B2;
+import de.rwth.imi.flare.requestor.BasicRequestAuthenticator;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.RequestAuthenticator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import org.jetbrains.annotations.Nullable;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -27,7 +28,6 @@ import picocli.CommandLine.Parameters;
 import java.io.File;
 import java.io.IOException;
 import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
@@ -103,10 +103,15 @@ class CLI implements Callable<Integer> {
     }
 
     private void createExecutor() {
-        Optional<Authenticator> auth = Optional.ofNullable(createAuthenticator());
+        RequestAuthenticator auth = createAuthenticator();
         executor = new FlareExecutor(new FhirRequestorConfig() {
             @Override
             public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public RequestAuthenticator getRequestAuthenticator() {
                 return auth;
             }
 
@@ -134,21 +139,12 @@ class CLI implements Callable<Integer> {
         });
     }
 
-    @Nullable
-    private Authenticator createAuthenticator() {
-        Authenticator auth = null;
+    private RequestAuthenticator createAuthenticator() {
         // TODO: Log warning if only one parameter is provided
         if(this.userName != null && this.password != null){
-            auth = new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(
-                            userName,
-                            password.toCharArray());
-                }
-            };
+            return new BasicRequestAuthenticator(userName, password);
         }
-        return auth;
+        return RequestAuthenticator.none();
     }
 
     private FlareParser getParser() throws TransformerConfigurationException {
@@ -1,7 +1,6 @@
 package de.rwth.imi.flare.mapping.expansion;
 
 
-import com.google.common.collect.Sets;
 import de.rwth.imi.flare.api.model.CriteriaGroup;
 import de.rwth.imi.flare.api.model.Criterion;
 import de.rwth.imi.flare.api.model.Query;
@@ -10,10 +9,9 @@ import de.rwth.imi.flare.api.model.TerminologyCode;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Consumer;
 
 public class QueryExpander {
@@ -62,7 +60,7 @@ public class QueryExpander {
         List<CriteriaGroup> expandedInclusionCriteria = query.getInclusionCriteria();
         expandedExclusionCriteria = expandedExclusionCriteria == null ? new ArrayList<>() : expandedExclusionCriteria;
         expandedInclusionCriteria = expandedInclusionCriteria == null ? new ArrayList<>() : expandedInclusionCriteria;
-        query.setExclusionCriteria(expandCriteriaGroupsExcl(expandedExclusionCriteria));
+        query.setExpandedExclusionCriteria(expandCriteriaGroupsExcl(expandedExclusionCriteria));
         query.setInclusionCriteria(expandCriteriaGroups(expandedInclusionCriteria));
     }
 
@@ -85,34 +83,27 @@ public class QueryExpander {
         return expandedCriteriaGroup;
     }
 
-    public List<CriteriaGroup> expandCriteriaGroupsExcl(List<CriteriaGroup> criteriaGroups){
-        List<CriteriaGroup> expandedCriteriaGroups = new ArrayList<>(criteriaGroups.size());
-
-        LinkedList<Set<Criterion>> tmpList  = new LinkedList<>();
+    /**
+     * Keeps the structure of the exclusion criteria instead of multiplying them out: every exclusion group
+     * becomes a list holding a group of alternatives per criterion, so each leaf appears once per criterion.
+     */
+    public List<List<CriteriaGroup>> expandCriteriaGroupsExcl(List<CriteriaGroup> criteriaGroups){
+        List<List<CriteriaGroup>> expandedCriteriaGroups = new ArrayList<>(criteriaGroups.size());
         for(CriteriaGroup subgroup: criteriaGroups){
-            tmpList.addAll(expandCriteriaGroupExcl(subgroup));
-        }
-
-        Set<List<Criterion>> productList = Sets.cartesianProduct(tmpList);
-
-        for (List<Criterion> criterionList : productList) {
-
-            if(criterionList.size() > 0) {
-                expandedCriteriaGroups.add(new CriteriaGroup(criterionList));
+            if(!subgroup.getCriteria().isEmpty()) {
+                expandedCriteriaGroups.add(expandCriteriaGroupExcl(subgroup));
             }
         }
-
         return expandedCriteriaGroups;
     }
 
-    private LinkedList<Set<Criterion>> expandCriteriaGroupExcl(CriteriaGroup originalCriteriaGroup) {
-        LinkedList<Set<Criterion>> tmpList = new LinkedList<>();
+    private List<CriteriaGroup> expandCriteriaGroupExcl(CriteriaGroup originalCriteriaGroup) {
+        List<CriteriaGroup> alternativesPerCriterion = new ArrayList<>(originalCriteriaGroup.getCriteria().size());
         for(Criterion criterion : originalCriteriaGroup.getCriteria()) {
-            Set<Criterion> expandedCriterion = new HashSet<>(expandCriterion(criterion));
-            tmpList.add(expandedCriterion);
+            // Leaves shared by several term codes of the criterion are searched once
+            List<Criterion> alternatives = new ArrayList<>(new LinkedHashSet<>(expandCriterion(criterion)));
+            alternativesPerCriterion.add(new CriteriaGroup(alternatives));
         }
-
-        return tmpList;
-
+        return alternativesPerCriterion;
     }
 }
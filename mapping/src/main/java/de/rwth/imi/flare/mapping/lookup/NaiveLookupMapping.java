@@ -58,7 +58,8 @@ public class NaiveLookupMapping implements FhirResourceMapper {
     @Override
     public CompletableFuture<Query> mapResources(Query query) {
         queryExpander.expandQuery(query);
-        this.mapCriterionGroup(query.getExclusionCriteria());
+        // Exclusion criteria are evaluated as expanded, parent codes among the original ones may lack a mapping
+        query.getExpandedExclusionCriteria().forEach(this::mapCriterionGroup);
         this.mapCriterionGroup(query.getInclusionCriteria());
         return CompletableFuture.completedFuture(query);
     }
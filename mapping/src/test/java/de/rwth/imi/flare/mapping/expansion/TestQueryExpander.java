@@ -0,0 +1,71 @@
+package de.rwth.imi.flare.mapping.expansion;
+
+import de.rwth.imi.flare.api.model.CriteriaGroup;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+class TestQueryExpander {
+
+    @Test
+    void keepsStructureOfExclusionGroups() throws IOException {
+        QueryExpander expander = new QueryExpander(node("root",
+                node("a", node("a1"), node("a2")),
+                node("b", node("b1"))));
+
+        List<List<CriteriaGroup>> expanded = expander.expandCriteriaGroupsExcl(List.of(
+                new CriteriaGroup(List.of(criterion("a", "a1"), criterion("b"))),
+                new CriteriaGroup(List.of()),
+                new CriteriaGroup(List.of(criterion("unknown")))));
+
+        // One list per non-empty exclusion group, holding a group of alternatives per criterion
+        Assertions.assertEquals(List.of(
+                List.of(group("a", "a1", "a2"), group("b", "b1")),
+                List.of(group("unknown"))), expanded);
+    }
+
+    @Test
+    void searchesLeavesSharedByTermCodesOnce() throws IOException {
+        QueryExpander expander = new QueryExpander(node("root", node("a", node("a1")), node("b", node("a1"))));
+
+        List<List<CriteriaGroup>> expanded = expander.expandCriteriaGroupsExcl(List.of(
+                new CriteriaGroup(List.of(criterion("a", "b")))));
+
+        Assertions.assertEquals(List.of(List.of(group("a", "a1", "b"))), expanded);
+    }
+
+    private static ExpansionTreeNode node(String code, ExpansionTreeNode... children) {
+        ExpansionTreeNode node = new ExpansionTreeNode();
+        node.setTermCode(termCode(code));
+        node.setChildren(children.length == 0 ? null : List.of(children));
+        return node;
+    }
+
+    private static Criterion criterion(String... codes) {
+        List<TerminologyCode> termCodes = new ArrayList<>();
+        for (String code : codes) {
+            termCodes.add(termCode(code));
+        }
+        return new Criterion(termCodes, null, null, null, null);
+    }
+
+    /**
+     * @return group of alternative criteria, each with a single code
+     */
+    private static CriteriaGroup group(String... codes) {
+        List<Criterion> criteria = new ArrayList<>();
+        for (String code : codes) {
+            criteria.add(criterion(code));
+        }
+        return new CriteriaGroup(criteria);
+    }
+
+    private static TerminologyCode termCode(String code) {
+        return new TerminologyCode(code, "http://loinc.org", code);
+    }
+}
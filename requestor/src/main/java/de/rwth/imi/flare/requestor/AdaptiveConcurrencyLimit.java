@@ -0,0 +1,160 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Adapts the number of concurrent requests to the FHIR server by additive increase and multiplicative decrease.
+ * The limit shrinks by the backoff ratio when the server signals overload, fails to answer, or when the latency of
+ * search pages rises: pages are sampled per resource type, as pages of different types, counts or bulk downloads
+ * take very different times. For each type a short term average of the time to the response headers is compared to
+ * a long term one, a short term average above the tolerated multiple of the long term one means requests queue up
+ * within the server. A server that became slower for good, or pages grown by the page size tuning, only move the
+ * long term average. Otherwise the limit grows by one per limit samples, as long as it is in use.
+ * Decreases happen at most once per short term page latency, so the responses of a single burst lower it only once.
+ */
+class AdaptiveConcurrencyLimit implements ConcurrencyLimitMXBean {
+    private static final double SMOOTHING = 0.2;
+    // Weight of a sample in the long term average, about the last hundred pages of a type
+    private static final double BASELINE_SMOOTHING = 0.02;
+    // Latency differences below this are noise rather than queueing
+    private static final long MIN_QUEUEING_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ConnectionPermits permits;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final boolean adaptive;
+    private final LongSupplier nanoClock;
+
+    // Guarded by this
+    private double limit;
+    private final Map<String, LatencyAverages> latencies = new HashMap<>();
+    // Short term average over the pages of all classes, the time overlapping requests take
+    private double smoothedNanos;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param maxLimit initial and highest number of concurrent requests
+     */
+    AdaptiveConcurrencyLimit(FlareConcurrencyLimitConfig config, int maxLimit) {
+        this(config, maxLimit, System::nanoTime);
+    }
+
+    /**
+     * @param maxLimit initial and highest number of concurrent requests
+     * @param nanoClock source of the current time, for spacing the decreases
+     */
+    AdaptiveConcurrencyLimit(FlareConcurrencyLimitConfig config, int maxLimit, LongSupplier nanoClock) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(config.getMinLimit(), this.maxLimit));
+        this.latencyTolerance = config.getLatencyTolerance();
+        this.backoffRatio = config.getBackoffRatio();
+        this.adaptive = config.getMinLimit() > 0 && this.minLimit < this.maxLimit;
+        this.nanoClock = nanoClock;
+        this.limit = this.maxLimit;
+        this.permits = new ConnectionPermits(this.maxLimit);
+        this.lastDecreaseNanos = nanoClock.getAsLong();
+    }
+
+    ConnectionPermits getPermits() {
+        return this.permits;
+    }
+
+    /**
+     * @param latencyNanos time from sending the request until the response headers arrived
+     * @param statusCode status code of the response
+     * @param latencyClass requests of comparable latency the sample belongs to, e.g. the pages of one resource type,
+     *                     null if only the status code is to be considered
+     */
+    void onResponse(long latencyNanos, int statusCode, String latencyClass) {
+        if (statusCode == 429 || statusCode == 503 || statusCode == 504) {
+            onOverload();
+            return;
+        }
+        if (!isAdaptive() || latencyClass == null || statusCode / 100 != 2) {
+            return;
+        }
+        synchronized (this) {
+            LatencyAverages averages = this.latencies.computeIfAbsent(latencyClass, type -> new LatencyAverages());
+            averages.add(latencyNanos);
+            this.smoothedNanos = this.smoothedNanos == 0
+                    ? latencyNanos
+                    : this.smoothedNanos + SMOOTHING * (latencyNanos - this.smoothedNanos);
+            if (averages.shortTermNanos > averages.longTermNanos * this.latencyTolerance
+                    && averages.shortTermNanos - averages.longTermNanos > MIN_QUEUEING_NANOS) {
+                decrease();
+            } else if (this.permits.getInFlight() * 2 >= this.limit) {
+                // Only grow a limit that is actually used, otherwise it says nothing about the server
+                this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+                this.permits.setLimit((int) this.limit);
+            }
+        }
+    }
+
+    /**
+     * Called when a request failed without response, e.g. because it timed out
+     */
+    void onFailure() {
+        onOverload();
+    }
+
+    private void onOverload() {
+        if (!isAdaptive()) {
+            return;
+        }
+        synchronized (this) {
+            decrease();
+        }
+    }
+
+    // Permits never call back into the limit, so updating them while holding its lock can not deadlock
+    private void decrease() {
+        long now = this.nanoClock.getAsLong();
+        if (now - this.lastDecreaseNanos > this.smoothedNanos) {
+            this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+            this.lastDecreaseNanos = now;
+            this.permits.setLimit((int) this.limit);
+        }
+    }
+
+    private boolean isAdaptive() {
+        return this.adaptive;
+    }
+
+    /**
+     * Short and long term average latency of one class of requests
+     */
+    private static class LatencyAverages {
+        private double shortTermNanos;
+        private double longTermNanos;
+
+        void add(long latencyNanos) {
+            if (this.longTermNanos == 0) {
+                this.shortTermNanos = latencyNanos;
+                this.longTermNanos = latencyNanos;
+                return;
+            }
+            this.shortTermNanos += SMOOTHING * (latencyNanos - this.shortTermNanos);
+            this.longTermNanos += BASELINE_SMOOTHING * (latencyNanos - this.longTermNanos);
+        }
+    }
+
+    @Override
+    public int getLimit() {
+        return this.permits.getLimit();
+    }
+
+    @Override
+    public int getInFlight() {
+        return this.permits.getInFlight();
+    }
+
+    @Override
+    public int getQueued() {
+        return this.permits.getQueued();
+    }
+}
@@ -0,0 +1,22 @@
+package de.rwth.imi.flare.requestor;
+
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Sends HTTP Basic credentials preemptively with every request
+ */
+public class BasicRequestAuthenticator implements RequestAuthenticator {
+    private final String authorization;
+
+    public BasicRequestAuthenticator(String user, String password) {
+        String credentials = user + ":" + password;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void authenticate(HttpRequest.Builder request) {
+        request.setHeader("Authorization", this.authorization);
+    }
+}
@@ -0,0 +1,75 @@
+package de.rwth.imi.flare.requestor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reusable heap buffers of a fixed size, so receiving a page does not allocate memory once enough buffers
+ * have been pooled. At most maxBuffers are checked out at a time, bodies received meanwhile wait until a body
+ * that has been received completely is read and releases its buffers. Bodies are only let exceed the bound if
+ * all buffers are held by bodies still being received, which could otherwise never release them.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    // Guarded by this
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final List<Runnable> waiting = new ArrayList<>();
+    private int checkedOut;
+    private int receiving;
+
+    /**
+     * @param bufferSize capacity of every buffer in bytes
+     * @param maxBuffers number of buffers checked out at a time, beyond that receiving waits
+     */
+    BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @param onAvailable called once a buffer is released, if none is available now
+     * @return empty buffer ready to be written to, null if maxBuffers are checked out
+     */
+    ByteBuffer acquire(Runnable onAvailable) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (this.checkedOut >= this.maxBuffers && this.receiving < this.checkedOut) {
+                this.waiting.add(onAvailable);
+                return null;
+            }
+            this.checkedOut++;
+            this.receiving++;
+            buffer = this.buffers.poll();
+        }
+        return buffer == null ? ByteBuffer.allocate(this.bufferSize) : buffer;
+    }
+
+    /**
+     * @param count number of acquired buffers holding a body that has been received completely
+     */
+    synchronized void received(int count) {
+        this.receiving -= count;
+    }
+
+    /**
+     * @param buffer buffer acquired from this pool and {@link #received(int) received}, must not be used afterwards
+     */
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        List<Runnable> waiters;
+        synchronized (this) {
+            this.checkedOut--;
+            if (this.buffers.size() < this.maxBuffers) {
+                this.buffers.push(buffer);
+            }
+            // All waiters retry, those not getting a buffer wait again
+            waiters = List.copyOf(this.waiting);
+            this.waiting.clear();
+        }
+        waiters.forEach(Runnable::run);
+    }
+}
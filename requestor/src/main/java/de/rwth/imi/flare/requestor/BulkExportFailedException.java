@@ -0,0 +1,19 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the FHIR server completes a bulk $export, but reports errors for some of the exported resources,
+ * so its output files are incomplete
+ */
+public class BulkExportFailedException extends IOException {
+    @Getter
+    private final int errorFileCount;
+
+    public BulkExportFailedException(int errorFileCount){
+        super("Bulk export completed with " + errorFileCount + " error files");
+        this.errorFileCount = errorFileCount;
+    }
+}
@@ -0,0 +1,374 @@
+package de.rwth.imi.flare.requestor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Requestor evaluating criteria by the asynchronous FHIR Bulk Data $export instead of a paged search.<br>
+ * The export is restricted to the criterion's resource type by {@code _type} and to its search by
+ * {@code _typeFilter}. Once the server has written the export, its NDJSON files are downloaded in parallel and
+ * only the patient referenced by each line is kept. This pays off for criteria matching a large share of the
+ * data, where a paged search would take many round trips, each of them repeating the search on the server.
+ */
+public class BulkExportRequestor implements de.rwth.imi.flare.api.Requestor {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final FhirRequestorConfig config;
+    private final FhirHttpClient client;
+    private final BundlePageReader pageReader;
+
+    /**
+     * @param requestorConfig configuration of the server the exports are requested from
+     */
+    public BulkExportRequestor(FhirRequestorConfig requestorConfig) {
+        this(requestorConfig, new FhirHttpClient(requestorConfig));
+    }
+
+    /**
+     * @param requestorConfig configuration of the server the exports are requested from
+     * @param client client shared with other requestors of the same server, so they share its connection limit
+     */
+    public BulkExportRequestor(FhirRequestorConfig requestorConfig, FhirHttpClient client) {
+        this.config = requestorConfig;
+        this.client = client;
+        this.pageReader = new BundlePageReader();
+    }
+
+    /**
+     * Exports the resources matching the criterion, the stream is only available once the export is complete
+     *
+     * @param searchCriterion single criterion
+     * @return Stream that contains one resource per matching patient
+     */
+    @Override
+    public Stream<FlareResource> execute(Criterion searchCriterion) {
+        return Stream.of(searchCriterion)
+                .flatMap(criterion -> exportPatientIds(criterion).stream())
+                .map(FlareResourceImpl::new);
+    }
+
+    /**
+     * Exports the resources matching the criterion once the subscriber demands patients, publishing them once the
+     * export is complete. Cancelling the subscription cancels the export.
+     *
+     * @param searchCriterion single criterion
+     * @return publisher of one resource per matching patient, supporting a single subscriber
+     */
+    @Override
+    public Flow.Publisher<FlareResource> executeAsync(Criterion searchCriterion) {
+        return new PatientIdPublisher(() -> exportPatientIdsAsync(searchCriterion));
+    }
+
+    /**
+     * Exports the resources matching the criterion, blocking until the export is complete
+     *
+     * @param searchCriterion single criterion
+     * @return ids of all patients referenced by the matching resources
+     * @throws UncheckedIOException wrapping a {@link FhirResponseException} if the server does not support
+     * the export, a {@link BulkExportFailedException} if it reported errors, or an IOException if it failed
+     * or did not complete in time
+     */
+    public Set<String> exportPatientIds(Criterion searchCriterion) {
+        CompletableFuture<Set<String>> export = exportPatientIdsAsync(searchCriterion);
+        try {
+            return export.get();
+        } catch (InterruptedException e) {
+            export.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Exports the resources matching the criterion. No thread is occupied while the server writes the export,
+     * the status is polled by tasks scheduled on the worker executor of the client.
+     * Cancelling the returned future stops polling and cancels the export on the server.
+     *
+     * @param searchCriterion single criterion
+     * @return future completed with the ids of all patients referenced by the matching resources, or failed
+     * as described for {@link #exportPatientIds(Criterion)}
+     */
+    public CompletableFuture<Set<String>> exportPatientIdsAsync(Criterion searchCriterion) {
+        CompletableFuture<Set<String>> result = new CompletableFuture<>();
+        Executor executor = this.client.getWorkerExecutor();
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(this.config.getBulkExportConfig().getTimeoutSeconds());
+        executor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            URI statusUri;
+            try {
+                statusUri = startExport(searchCriterion);
+            } catch (IOException | InterruptedException | URISyntaxException | RuntimeException e) {
+                result.completeExceptionally(unchecked(e));
+                return;
+            }
+            result.whenCompleteAsync((patientIds, error) -> deleteExport(statusUri), executor);
+            poll(statusUri, System.nanoTime() + timeoutNanos, result);
+        });
+        return result;
+    }
+
+    @Override
+    public String translateCriterion(Criterion searchCriterion) {
+        return buildExportUrl(searchCriterion).toString();
+    }
+
+    /**
+     * Kicks off the export
+     * @return uri of the export status
+     */
+    private URI startExport(Criterion criterion) throws IOException, InterruptedException, URISyntaxException {
+        HttpRequest request = this.client.newRequest(buildExportUrl(criterion))
+                .header("Accept", "application/fhir+json")
+                .header("Prefer", "respond-async")
+                .GET()
+                .build();
+        return this.client.execute(request, (response, body) -> {
+            if (response.statusCode() != 202) {
+                throw new FhirResponseException(response.statusCode());
+            }
+            String statusLocation = response.headers().firstValue("Content-Location")
+                    .orElseThrow(() -> new IOException("Bulk export kick-off response lacks Content-Location"));
+            return response.uri().resolve(statusLocation);
+        });
+    }
+
+    /**
+     * Polls the export status once, reads the output if the server has written all files and schedules the next
+     * poll otherwise
+     * @param deadlineNanos time after which the export is given up
+     * @param result completed with the patients of the export, not polled any further once it is done
+     */
+    private void poll(URI statusUri, long deadlineNanos, CompletableFuture<Set<String>> result) {
+        if (result.isDone()) {
+            return;
+        }
+        FlareBulkExportConfig exportConfig = this.config.getBulkExportConfig();
+        HttpRequest request = this.client.newRequest(statusUri)
+                .header("Accept", "application/json")
+                .GET()
+                .build();
+        ExportStatus status;
+        try {
+            status = this.client.execute(request, (response, body) -> switch (response.statusCode()) {
+                case 200 -> new ExportStatus(readManifest(body, response.uri()), 0);
+                // Still in progress, or polled too often
+                case 202, 429 -> new ExportStatus(null, retryAfterMillis(response, exportConfig.getPollIntervalMillis()));
+                default -> throw new FhirResponseException(response.statusCode());
+            });
+        } catch (IOException | InterruptedException | URISyntaxException | RuntimeException e) {
+            result.completeExceptionally(unchecked(e));
+            return;
+        }
+        if (status.manifest() != null) {
+            readOutput(status.manifest()).whenComplete((patientIds, error) -> {
+                if (error == null) {
+                    result.complete(patientIds);
+                } else {
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                }
+            });
+            return;
+        }
+        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(status.retryAfterMillis()) > deadlineNanos) {
+            result.completeExceptionally(new UncheckedIOException(new IOException(
+                    "Bulk export did not complete within " + exportConfig.getTimeoutSeconds() + "s")));
+            return;
+        }
+        CompletableFuture.delayedExecutor(status.retryAfterMillis(), TimeUnit.MILLISECONDS, this.client.getWorkerExecutor())
+                .execute(() -> poll(statusUri, deadlineNanos, result));
+    }
+
+    /**
+     * Downloads all files in parallel, collecting the patients while the files are streamed
+     */
+    private CompletableFuture<Set<String>> readOutput(ExportManifest manifest) {
+        if (manifest.errorFileCount() > 0) {
+            return CompletableFuture.failedFuture(
+                    new UncheckedIOException(new BulkExportFailedException(manifest.errorFileCount())));
+        }
+        Set<String> patientIds = ConcurrentHashMap.newKeySet();
+        CompletableFuture<?>[] downloads = manifest.outputUris().stream()
+                .map(outputUri -> CompletableFuture.runAsync(
+                        () -> readOutputFile(outputUri, manifest.requiresAccessToken(), patientIds),
+                        this.client.getWorkerExecutor()))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(downloads).thenApply(done -> patientIds);
+    }
+
+    /**
+     * @param requiresAccessToken whether the server asked for the file to be requested with credentials, which
+     *                            are only ever sent to the FHIR server itself
+     */
+    private void readOutputFile(URI outputUri, boolean requiresAccessToken, Set<String> patientIds) {
+        HttpRequest request = this.client.newRequest(outputUri)
+                .header("Accept", "application/fhir+ndjson")
+                .GET()
+                .build();
+        FhirHttpClient.ResponseReader<Void> reader = (response, body) -> {
+            if (response.statusCode() / 100 != 2) {
+                throw new FhirResponseException(response.statusCode());
+            }
+            this.pageReader.readNdjson(body, patientIds::add);
+            return null;
+        };
+        try {
+            if (requiresAccessToken && isFhirServerOrigin(outputUri)) {
+                this.client.execute(request, reader);
+            } else {
+                this.client.executeAnonymous(request, reader);
+            }
+        } catch (IOException | InterruptedException | URISyntaxException e) {
+            throw unchecked(e);
+        }
+    }
+
+    /**
+     * Tells the server the files are no longer needed, or cancels the export if it is still running
+     */
+    private void deleteExport(URI statusUri) {
+        HttpRequest request = this.client.newRequest(statusUri).DELETE().build();
+        try {
+            this.client.execute(request, (response, body) -> null);
+        } catch (IOException | URISyntaxException e) {
+            // The server removes the files eventually anyway
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the uri has the scheme, host and port of the FHIR server's base uri
+     */
+    private boolean isFhirServerOrigin(URI uri) {
+        URI baseUri = this.config.getBaseURI();
+        return baseUri.getScheme().equalsIgnoreCase(uri.getScheme())
+                && baseUri.getHost().equalsIgnoreCase(uri.getHost())
+                && portOf(baseUri) == portOf(uri);
+    }
+
+    private static int portOf(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    private URI buildExportUrl(Criterion criterion) {
+        String resourceType = criterion.getMapping().getFhirResourceType();
+        // The search parameters are url encoded already, _typeFilter encodes the whole search once more.
+        // Commas separate several searches within _typeFilter, so those separating the values of a parameter
+        // are escaped first
+        String typeFilter = SearchQueryStringBuilder.constructQueryString(criterion).replace(",", "%2C");
+        try {
+            return new URI(this.config.getBaseURI().toString() + "Patient/$export"
+                    + "?_type=" + URLEncoder.encode(resourceType, StandardCharsets.UTF_8)
+                    + "&_typeFilter=" + URLEncoder.encode(typeFilter, StandardCharsets.UTF_8));
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long retryAfterMillis(HttpResponse<?> response, long defaultMillis) {
+        // Only the delay-seconds form is used by Bulk Data servers in practice
+        return response.headers().firstValue("Retry-After")
+                .map(String::trim)
+                .filter(retryAfter -> retryAfter.matches("\\d+"))
+                .map(retryAfter -> TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter)))
+                .orElse(defaultMillis);
+    }
+
+    /**
+     * Reads the output files of the complete status, and whether they have to be requested with credentials
+     */
+    private static ExportManifest readManifest(InputStream body, URI statusUri) throws IOException {
+        List<URI> outputUris = new ArrayList<>();
+        boolean requiresAccessToken = false;
+        int errorFileCount = 0;
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed bulk export manifest");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("requiresAccessToken".equals(fieldName)) {
+                    requiresAccessToken = value == JsonToken.VALUE_TRUE;
+                } else if ("output".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String outputField = parser.getCurrentName();
+                            parser.nextToken();
+                            if ("url".equals(outputField)) {
+                                outputUris.add(statusUri.resolve(parser.getValueAsString()));
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                } else if ("error".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        parser.skipChildren();
+                        errorFileCount++;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new ExportManifest(outputUris, requiresAccessToken, errorFileCount);
+    }
+
+    private static RuntimeException unchecked(Exception e) {
+        if (e instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        return e instanceof IOException ioException ? new UncheckedIOException(ioException) : new RuntimeException(e);
+    }
+
+    /**
+     * Complete status of an export
+     * @param errorFileCount number of OperationOutcome files listing resources that could not be exported
+     */
+    private record ExportManifest(List<URI> outputUris, boolean requiresAccessToken, int errorFileCount) {
+    }
+
+    /**
+     * Result of a single status poll, either the manifest or the time to wait before polling again
+     */
+    private record ExportStatus(ExportManifest manifest, long retryAfterMillis) {
+    }
+}
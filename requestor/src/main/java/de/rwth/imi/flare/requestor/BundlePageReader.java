@@ -0,0 +1,355 @@
+package de.rwth.imi.flare.requestor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Streaming reader for FHIR searchset Bundles in JSON format.<br>
+ * Only extracts the patient each entry refers to and the link to the next page, everything else is skipped
+ * on token level without building an object model of the resources.
+ */
+public class BundlePageReader {
+    // Thread safe and recycles its internal buffers, so one instance is shared by all readers
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String LINK_NEXT = "next";
+
+    /**
+     * Reads a single page of search results
+     * @param bundle stream containing a JSON searchset Bundle, is not closed by this method
+     * @return patient ids and next link contained in the bundle
+     * @throws IOException If the stream can not be read or does not contain a JSON object
+     * @throws URISyntaxException If the next link contained in the bundle is not valid
+     */
+    public SearchPage readPage(InputStream bundle) throws IOException, URISyntaxException {
+        return readPage(bundle, nextPageUri -> {});
+    }
+
+    /**
+     * Reads a single page of search results, notifying the listener about the next link as soon as it is known.
+     * FHIR servers usually write the links before the entries, which allows fetching the next page while the
+     * entries of this page are still being read.
+     *
+     * @param bundle stream containing a JSON searchset Bundle, is not closed by this method
+     * @param nextLinkListener called exactly once with the next link, or with null if there is no next page
+     * @return patient ids and next link contained in the bundle
+     * @throws IOException If the stream can not be read or does not contain a JSON object
+     * @throws URISyntaxException If the next link contained in the bundle is not valid
+     */
+    public SearchPage readPage(InputStream bundle, Consumer<URI> nextLinkListener) throws IOException, URISyntaxException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectToken(parser.nextToken(), JsonToken.START_OBJECT);
+            return readBundle(parser, nextLinkListener);
+        }
+    }
+
+    /**
+     * Reads newline delimited JSON resources, as written by a bulk $export
+     * @param ndjson stream containing one JSON resource per line, is not closed by this method
+     * @param patientIdConsumer called with the patient each resource refers to
+     * @throws IOException If the stream can not be read or contains something other than JSON objects
+     */
+    public void readNdjson(InputStream ndjson, Consumer<String> patientIdConsumer) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(ndjson)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            // Line breaks are whitespace between root level values to the parser
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                expectToken(token, JsonToken.START_OBJECT);
+                String patientId = readResource(parser);
+                if (patientId != null) {
+                    patientIdConsumer.accept(patientId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a single searchset Bundle, the parser has to be positioned on the bundles START_OBJECT token
+     * and is left on the matching END_OBJECT token
+     */
+    SearchPage readBundle(JsonParser parser, Consumer<URI> nextLinkListener) throws IOException, URISyntaxException {
+        List<String> patientIds = new ArrayList<>();
+        URI nextPageUri = null;
+        boolean linksRead = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("link".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                String nextLink = readNextLink(parser);
+                nextPageUri = nextLink == null ? null : new URI(nextLink);
+                linksRead = true;
+                nextLinkListener.accept(nextPageUri);
+            } else if ("entry".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                readEntries(parser, patientIds);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (!linksRead) {
+            nextLinkListener.accept(null);
+        }
+        return new SearchPage(patientIds, nextPageUri);
+    }
+
+    /**
+     * Reads a batch-response Bundle whose entries each contain the first page of a search
+     * @param bundle stream containing a JSON batch-response Bundle, is not closed by this method
+     * @return one entry per entry of the batch, in the same order
+     * @throws IOException If the stream can not be read or does not contain a JSON object
+     * @throws URISyntaxException If a next link contained in one of the pages is not valid
+     */
+    List<BatchEntry> readBatchResponse(InputStream bundle) throws IOException, URISyntaxException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectToken(parser.nextToken(), JsonToken.START_OBJECT);
+            List<BatchEntry> entries = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("entry".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        entries.add(readBatchEntry(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return entries;
+        }
+    }
+
+    private BatchEntry readBatchEntry(JsonParser parser) throws IOException, URISyntaxException {
+        SearchPage page = null;
+        int statusCode = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("resource".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                page = readBundle(parser, nextPageUri -> {});
+            } else if ("response".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                statusCode = readStatusCode(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new BatchEntry(statusCode, page);
+    }
+
+    /**
+     * Reads the numeric status out of a Bundle.entry.response, whose status starts with the code, e.g. "200 OK"
+     */
+    private int readStatusCode(JsonParser parser) throws IOException {
+        int statusCode = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("status".equals(fieldName)) {
+                String status = parser.getValueAsString("").trim();
+                int end = status.indexOf(' ');
+                try {
+                    statusCode = Integer.parseInt(end < 0 ? status : status.substring(0, end));
+                } catch (NumberFormatException e) {
+                    statusCode = -1;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return statusCode;
+    }
+
+    /**
+     * Result of a single search contained in a batch
+     * @param statusCode HTTP status of the search, -1 if the server did not report one
+     * @param page first page of the search, null if the entry contains no resource
+     */
+    record BatchEntry(int statusCode, SearchPage page) {
+        boolean isSuccessful() {
+            return this.statusCode / 100 == 2 && this.page != null;
+        }
+    }
+
+    /**
+     * Reads the total number of matches out of a search bundle, as returned for _summary=count searches
+     * @param bundle stream containing a JSON searchset Bundle, is not closed by this method
+     * @return value of Bundle.total, -1 if the server did not include it
+     * @throws IOException If the stream can not be read or does not contain a JSON object
+     */
+    public long readTotal(InputStream bundle) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectToken(parser.nextToken(), JsonToken.START_OBJECT);
+            long total = -1;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if ("total".equals(fieldName)) {
+                    total = parser.getValueAsLong(-1);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Reads meta.lastUpdated of the first resource contained in a search bundle
+     * @param bundle stream containing a JSON searchset Bundle, is not closed by this method
+     * @return lastUpdated of the first entry, null if the bundle is empty or the resource carries no lastUpdated
+     * @throws IOException If the stream can not be read or does not contain a JSON object
+     */
+    public String readFirstLastUpdated(InputStream bundle) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(bundle)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            expectToken(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("entry".equals(fieldName) && value == JsonToken.START_ARRAY
+                        && parser.nextToken() == JsonToken.START_OBJECT) {
+                    return readEntryLastUpdated(parser);
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    private String readEntryLastUpdated(JsonParser parser) throws IOException {
+        String lastUpdated = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (("resource".equals(fieldName) || "meta".equals(fieldName)) && value == JsonToken.START_OBJECT) {
+                // Descend into the resource and its meta element
+                String nestedLastUpdated = readEntryLastUpdated(parser);
+                lastUpdated = nestedLastUpdated != null ? nestedLastUpdated : lastUpdated;
+            } else if ("lastUpdated".equals(fieldName)) {
+                lastUpdated = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return lastUpdated;
+    }
+
+    /**
+     * Reads the patient id out of a single resource, as found in an NDJSON line or a bundle entry.
+     * The parser has to be positioned on the resources START_OBJECT token.
+     * @return id part of the referenced patient, null if the resource does not reference a patient
+     */
+    String readResource(JsonParser parser) throws IOException {
+        String resourceType = null;
+        String id = null;
+        String subjectReference = null;
+        String patientReference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (fieldName) {
+                case "resourceType" -> resourceType = parser.getValueAsString();
+                case "id" -> id = parser.getValueAsString();
+                case "subject" -> subjectReference = readReference(parser, value);
+                case "patient" -> patientReference = readReference(parser, value);
+                default -> parser.skipChildren();
+            }
+        }
+        if ("Patient".equals(resourceType)) {
+            return id;
+        }
+        String reference = subjectReference != null ? subjectReference : patientReference;
+        return reference == null ? null : extractIdPart(reference);
+    }
+
+    private String readNextLink(JsonParser parser) throws IOException {
+        String nextLink = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String relation = null;
+            String url = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "relation" -> relation = parser.getValueAsString();
+                    case "url" -> url = parser.getValueAsString();
+                    default -> parser.skipChildren();
+                }
+            }
+            if (LINK_NEXT.equals(relation)) {
+                nextLink = url;
+            }
+        }
+        return nextLink;
+    }
+
+    private void readEntries(JsonParser parser, List<String> patientIds) throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("resource".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                    String patientId = readResource(parser);
+                    if (patientId != null) {
+                        patientIds.add(patientId);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the reference String out of a FHIR Reference object
+     */
+    private String readReference(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String reference = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("reference".equals(fieldName)) {
+                reference = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reference;
+    }
+
+    /**
+     * Extracts the id part out of a relative or absolute reference,
+     * e.g. "Patient/1", "http://server/fhir/Patient/1" and "Patient/1/_history/2" all yield "1"
+     * @param reference FHIR reference String
+     * @return id part of the reference
+     */
+    static String extractIdPart(String reference) {
+        if (reference.startsWith("urn:") || reference.startsWith("#")) {
+            return reference;
+        }
+        int historyIndex = reference.indexOf("/_history/");
+        if (historyIndex >= 0) {
+            reference = reference.substring(0, historyIndex);
+        }
+        return reference.substring(reference.lastIndexOf('/') + 1);
+    }
+
+    private static void expectToken(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Malformed search bundle, expected " + expected + " but found " + actual);
+        }
+    }
+}
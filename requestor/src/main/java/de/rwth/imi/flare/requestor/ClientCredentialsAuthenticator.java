@@ -0,0 +1,50 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+
+/**
+ * Authenticates requests with a bearer token obtained by the OAuth2 client credentials grant.<br>
+ * Tokens are cached in a cache shared by all authenticators of the JVM, so all requestors using the same
+ * client share one token, which is refreshed in the background shortly before it expires.
+ */
+public class ClientCredentialsAuthenticator implements RequestAuthenticator {
+    private static final String BEARER = "Bearer ";
+    private final OAuth2TokenCache.TokenKey tokenKey;
+    private final String clientSecret;
+    private final OAuth2TokenCache tokenCache;
+
+    /**
+     * @param tokenUri token endpoint of the authorization server
+     * @param clientId id of the client, sent together with the secret as HTTP Basic credentials
+     * @param clientSecret secret of the client
+     * @param scope requested scope, may be empty
+     */
+    public ClientCredentialsAuthenticator(URI tokenUri, String clientId, String clientSecret, String scope) {
+        this(tokenUri, clientId, clientSecret, scope, OAuth2TokenCache.SHARED);
+    }
+
+    ClientCredentialsAuthenticator(URI tokenUri, String clientId, String clientSecret, String scope,
+                                   OAuth2TokenCache tokenCache) {
+        this.tokenKey = new OAuth2TokenCache.TokenKey(tokenUri, clientId, scope == null ? "" : scope);
+        this.clientSecret = clientSecret;
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public void authenticate(HttpRequest.Builder request) throws IOException, InterruptedException {
+        request.setHeader("Authorization", BEARER + this.tokenCache.getToken(this.tokenKey, this.clientSecret));
+    }
+
+    /**
+     * The token may have been revoked before its expiry, it is dropped so the retry obtains a new one
+     */
+    @Override
+    public boolean onRejected(HttpRequest rejectedRequest) {
+        rejectedRequest.headers().firstValue("Authorization")
+                .filter(authorization -> authorization.startsWith(BEARER))
+                .ifPresent(authorization -> this.tokenCache.invalidate(this.tokenKey, authorization.substring(BEARER.length())));
+        return true;
+    }
+}
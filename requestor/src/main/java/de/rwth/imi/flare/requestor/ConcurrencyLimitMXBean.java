@@ -0,0 +1,22 @@
+package de.rwth.imi.flare.requestor;
+
+/**
+ * Current state of the limit of concurrent requests to the FHIR server, can be registered with an MBeanServer
+ */
+public interface ConcurrencyLimitMXBean {
+
+    /**
+     * @return number of requests currently allowed to be in flight
+     */
+    int getLimit();
+
+    /**
+     * @return number of requests currently in flight
+     */
+    int getInFlight();
+
+    /**
+     * @return number of requests waiting for a permit
+     */
+    int getQueued();
+}
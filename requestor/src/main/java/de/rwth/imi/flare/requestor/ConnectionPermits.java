@@ -0,0 +1,110 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fair counting semaphore that can be waited for both blocking and asynchronously, so blocking and
+ * non-blocking requests share the same limit of requests in flight. The limit can be changed at any time,
+ * lowering it lets requests in flight finish but hands out no permits until they are below the new limit.
+ */
+class ConnectionPermits {
+    // Guarded by this
+    private int limit;
+    private int inFlight;
+    private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    /**
+     * @param permits number of permits initially available
+     */
+    ConnectionPermits(int permits) {
+        this.limit = permits;
+    }
+
+    /**
+     * @return future completed once a permit has been handed to the caller, in order of the calls
+     */
+    CompletableFuture<Void> acquireAsync() {
+        synchronized (this) {
+            if (this.inFlight < this.limit && this.waiting.isEmpty()) {
+                this.inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            this.waiting.add(permit);
+            return permit;
+        }
+    }
+
+    /**
+     * Blocks until a permit is available
+     */
+    void acquire() throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            // The permit may have been handed over just now, it has to be passed on then
+            if (!permit.cancel(false)) {
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            // Permits are never completed exceptionally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hands the permit to the longest waiting caller, or makes it available again
+     */
+    void release() {
+        synchronized (this) {
+            this.inFlight--;
+        }
+        grantWaiting();
+    }
+
+    /**
+     * @param limit number of permits that may be held at the same time, at least 1
+     */
+    void setLimit(int limit) {
+        synchronized (this) {
+            this.limit = Math.max(1, limit);
+        }
+        grantWaiting();
+    }
+
+    synchronized int getLimit() {
+        return this.limit;
+    }
+
+    synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    synchronized int getQueued() {
+        return this.waiting.size();
+    }
+
+    private void grantWaiting() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                if (this.inFlight >= this.limit || (next = this.waiting.poll()) == null) {
+                    return;
+                }
+                this.inFlight++;
+            }
+            // Completed outside the lock, as it runs the dependent stages of an asynchronous waiter
+            if (!next.complete(null)) {
+                // Waiter gave up, e.g. interrupted, try the next one
+                synchronized (this) {
+                    this.inFlight--;
+                }
+            }
+        }
+    }
+}
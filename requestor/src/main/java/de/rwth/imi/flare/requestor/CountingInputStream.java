@@ -0,0 +1,45 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a response body, e.g. to learn the size of pages
+ */
+class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in){
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if(b >= 0){
+            this.count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if(read > 0){
+            this.count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        this.count += skipped;
+        return skipped;
+    }
+
+    long getCount(){
+        return this.count;
+    }
+}
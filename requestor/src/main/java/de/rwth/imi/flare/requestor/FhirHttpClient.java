@@ -0,0 +1,890 @@
+package de.rwth.imi.flare.requestor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Long-lived HTTP client shared by all searches executed against one FHIR server.<br>
+ * Connections (and with HTTP/2 a single multiplexed connection) are reused across criteria,
+ * the number of requests in flight at the same time is bounded by
+ * {@link FlareHttpClientConfig#getMaxConnectionsPerHost()}.
+ */
+public class FhirHttpClient {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int DECODE_BUFFER_SIZE = 8192;
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    // Bounds the bodies received but not yet parsed to 16 MiB, further responses are read once they are parsed
+    private static final int MAX_BODY_BUFFERS = 256;
+    private static final long PREFETCH_KEEP_ALIVE_SECONDS = 30;
+    private final HttpClient client;
+    // Never answers authentication challenges
+    private final HttpClient anonymousClient;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final Duration requestTimeout;
+    private final boolean compressionEnabled;
+    private final ExecutorService workerExecutor;
+    private final ExecutorService prefetchExecutor;
+    private final FlareRetryConfig retryConfig;
+    private final PageLatencyTracker pageLatencies;
+    private final RequestAuthenticator requestAuthenticator;
+    private final BufferPool bodyBuffers = new BufferPool(BODY_BUFFER_SIZE, MAX_BODY_BUFFERS);
+
+    public FhirHttpClient(FlareHttpClientConfig clientConfig, Optional<Authenticator> auth){
+        this(clientConfig, FlareRetryConfig.defaultConfig(), RequestAuthenticator.none(), auth);
+    }
+
+    /**
+     * @param requestAuthenticator adds credentials to every request before it is sent
+     * @param auth challenge based authentication, only needed for servers not accepting preemptive credentials
+     */
+    public FhirHttpClient(FlareHttpClientConfig clientConfig, FlareRetryConfig retryConfig,
+                          RequestAuthenticator requestAuthenticator, Optional<Authenticator> auth){
+        this(clientConfig, retryConfig, FlareConcurrencyLimitConfig.defaultConfig(), requestAuthenticator, auth);
+    }
+
+    /**
+     * @param concurrencyLimitConfig how the number of concurrent requests adapts to the load of the server
+     * @param requestAuthenticator adds credentials to every request before it is sent
+     * @param auth challenge based authentication, only needed for servers not accepting preemptive credentials
+     */
+    public FhirHttpClient(FlareHttpClientConfig clientConfig, FlareRetryConfig retryConfig,
+                          FlareConcurrencyLimitConfig concurrencyLimitConfig, RequestAuthenticator requestAuthenticator,
+                          Optional<Authenticator> auth){
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(clientConfig.isHttp2Enabled() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(clientConfig.getConnectTimeoutSeconds()))
+                .followRedirects(HttpClient.Redirect.NORMAL);
+        this.anonymousClient = builder.build();
+        this.client = auth.map(authenticator -> builder.authenticator(authenticator).build()).orElse(this.anonymousClient);
+        this.concurrencyLimit = new AdaptiveConcurrencyLimit(concurrencyLimitConfig, clientConfig.getMaxConnectionsPerHost());
+        this.requestTimeout = Duration.ofSeconds(clientConfig.getRequestTimeoutSeconds());
+        this.compressionEnabled = clientConfig.isCompressionEnabled();
+        this.workerExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "flare-fhir-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Prefetching pages can not use more connections than there are, further pages queue up for a thread
+        int prefetchThreads = Math.max(1, clientConfig.getMaxConnectionsPerHost());
+        ThreadPoolExecutor prefetchPool = new ThreadPoolExecutor(prefetchThreads, prefetchThreads,
+                PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "flare-fhir-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prefetchPool.allowCoreThreadTimeOut(true);
+        this.prefetchExecutor = prefetchPool;
+        this.retryConfig = retryConfig;
+        this.pageLatencies = new PageLatencyTracker();
+        this.requestAuthenticator = requestAuthenticator;
+    }
+
+    /**
+     * @param requestorConfig configuration providing the client settings and the authentication
+     */
+    public FhirHttpClient(FhirRequestorConfig requestorConfig){
+        this(requestorConfig.getHttpClientConfig(), requestorConfig.getRetryConfig(),
+                requestorConfig.getConcurrencyLimitConfig(), requestorConfig.getRequestAuthenticator(),
+                requestorConfig.getAuthentication());
+    }
+
+    /**
+     * @return current limit of concurrent requests, shared by all requests of this client
+     */
+    public ConcurrencyLimitMXBean getConcurrencyLimit(){
+        return this.concurrencyLimit;
+    }
+
+    /**
+     * @return executor for work done in the background of a search, such as fetching and reading pages ahead
+     */
+    public Executor getWorkerExecutor(){
+        return this.workerExecutor;
+    }
+
+    /**
+     * @return executor fetching pages ahead of the iteration of a search, with at most one thread per connection.
+     * Its tasks must not wait for other tasks of the same executor
+     */
+    Executor getPrefetchExecutor(){
+        return this.prefetchExecutor;
+    }
+
+    /**
+     * Creates a request builder for the given uri with the configured read timeout applied,
+     * accepting compressed responses if enabled
+     * @param uri target of the request
+     * @return request builder that can be further customized
+     */
+    public HttpRequest.Builder newRequest(URI uri){
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(this.requestTimeout);
+        if(this.compressionEnabled){
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        return builder;
+    }
+
+    /**
+     * Creates a POST request against the _search endpoint of the searched resource type.
+     * This is done to bypass the 2.083 character limit for a URL in a GET request.
+     * @param searchUri search url, e.g. [base]/Observation?code=...
+     * @param additionalParameters url encoded parameters appended to the search parameters, may be empty
+     * @return post request
+     */
+    public HttpRequest newSearchRequest(URI searchUri, String additionalParameters){
+        String uri = searchUri.getScheme() + "://" + searchUri.getAuthority() + searchUri.getPath() + "/_search";
+        String query = searchUri.getRawQuery() == null ? "" : searchUri.getRawQuery();
+        if(!additionalParameters.isEmpty()){
+            query = query.isEmpty() ? additionalParameters : query + "&" + additionalParameters;
+        }
+
+        return newRequest(URI.create(uri))
+                .header("Prefer", "handling=strict")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(query))
+                .build();
+    }
+
+    /**
+     * Creates a POST request of a batch Bundle, containing a GET entry per search
+     * @param baseUri base address of the FHIR server
+     * @param searchUrls searches relative to the base address, e.g. Observation?code=...
+     * @return post request
+     */
+    public HttpRequest newBatchRequest(URI baseUri, List<String> searchUrls){
+        StringWriter bundle = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(bundle)) {
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", "Bundle");
+            generator.writeStringField("type", "batch");
+            generator.writeArrayFieldStart("entry");
+            for(String searchUrl : searchUrls){
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("request");
+                generator.writeStringField("method", "GET");
+                generator.writeStringField("url", searchUrl);
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            // Writing to a StringWriter does not fail
+            throw new UncheckedIOException(e);
+        }
+
+        return newRequest(baseUri)
+                .header("Prefer", "handling=strict")
+                .header("Content-Type", "application/fhir+json")
+                .POST(HttpRequest.BodyPublishers.ofString(bundle.toString()))
+                .build();
+    }
+
+    /**
+     * Sends the given request, blocking while the current limit of requests is already in flight
+     *
+     * @param request request to be sent
+     * @param bodyHandler handler that processes the response body
+     * @return the response to the request
+     * @throws IOException Thrown by the HttpClient on connection failure or timeout
+     * @throws InterruptedException Thrown when interrupted while waiting for a connection or the response
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        this.concurrencyLimit.getPermits().acquire();
+        try {
+            HttpRequest authenticatedRequest = authenticate(request);
+            HttpResponse<T> response = sendSampled(authenticatedRequest, bodyHandler);
+            if(response.statusCode() == 401 && this.requestAuthenticator.onRejected(authenticatedRequest)){
+                response = sendSampled(authenticate(request), bodyHandler);
+            }
+            return response;
+        } finally {
+            this.concurrencyLimit.getPermits().release();
+        }
+    }
+
+    /**
+     * Sends the given request and hands the streamed response body to a reader.
+     * Compressed bodies are decompressed while they are read.
+     * The connection is counted as in use until the reader returns and the body is closed.
+     *
+     * @param request request to be sent
+     * @param responseReader processes the response while it is being received
+     * @return value produced by the responseReader
+     * @throws IOException Thrown on connection failure, timeout or by the responseReader
+     * @throws InterruptedException Thrown when interrupted while waiting for a connection or the response
+     * @throws URISyntaxException Thrown by the responseReader when the response contains a malformed URI
+     */
+    public <T> T execute(HttpRequest request, ResponseReader<T> responseReader)
+            throws IOException, InterruptedException, URISyntaxException {
+        return execute(request, responseReader, null, PageSampling.NONE);
+    }
+
+    /**
+     * Sends the given request without any credentials, neither those of the {@link RequestAuthenticator} nor in
+     * answer to a challenge, e.g. to download files a FHIR server placed on another host.
+     * The request is counted against the concurrency limit like any other.
+     *
+     * @param request request to be sent
+     * @param responseReader processes the response while it is being received
+     * @return value produced by the responseReader
+     * @throws IOException Thrown on connection failure, timeout or by the responseReader
+     * @throws InterruptedException Thrown when interrupted while waiting for a connection or the response
+     * @throws URISyntaxException Thrown by the responseReader when the response contains a malformed URI
+     */
+    public <T> T executeAnonymous(HttpRequest request, ResponseReader<T> responseReader)
+            throws IOException, InterruptedException, URISyntaxException {
+        this.concurrencyLimit.getPermits().acquire();
+        try {
+            HttpResponse<InputStream> response;
+            try {
+                response = this.anonymousClient.send(request, sampled(HttpResponse.BodyHandlers.ofInputStream(), null));
+            } catch (IOException e) {
+                this.concurrencyLimit.onFailure();
+                throw e;
+            }
+            try (InputStream body = decode(response.statusCode(), response.headers(), response.body())) {
+                return responseReader.read(response, body);
+            }
+        } finally {
+            this.concurrencyLimit.getPermits().release();
+        }
+    }
+
+    /**
+     * @param exchange aborts the request from another thread, null if it is not aborted
+     * @param sampling notified about the time from sending the request until the responseReader returned,
+     *                 not if the responseReader fails
+     */
+    private <T> T execute(HttpRequest request, ResponseReader<T> responseReader, AbortableExchange exchange,
+                          PageSampling sampling)
+            throws IOException, InterruptedException, URISyntaxException {
+        this.concurrencyLimit.getPermits().acquire();
+        try {
+            long sentAt = System.nanoTime();
+            HttpRequest authenticatedRequest = authenticate(request);
+            HttpResponse<InputStream> response = sendSampled(authenticatedRequest, HttpResponse.BodyHandlers.ofInputStream(), exchange,
+                    sampling.latencyClass());
+            if(response.statusCode() == 401 && this.requestAuthenticator.onRejected(authenticatedRequest)){
+                response.body().close();
+                response = sendSampled(authenticate(request), HttpResponse.BodyHandlers.ofInputStream(), exchange,
+                        sampling.latencyClass());
+            }
+            if(exchange != null){
+                exchange.receiving(response.body());
+            }
+            T result;
+            try (InputStream body = decode(response.statusCode(), response.headers(), response.body())) {
+                result = responseReader.read(response, body);
+            }
+            sampling.attemptLatency().accept(System.nanoTime() - sentAt);
+            return result;
+        } finally {
+            this.concurrencyLimit.getPermits().release();
+        }
+    }
+
+    /**
+     * Sends the request, reporting the response status, or the failure, to the concurrency limit
+     */
+    private <T> HttpResponse<T> sendSampled(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        return sendSampled(request, bodyHandler, null, null);
+    }
+
+    /**
+     * @param latencyClass requests of comparable latency the time until the response headers arrived is sampled for,
+     *                     null to not sample it
+     */
+    private <T> HttpResponse<T> sendSampled(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+                                            AbortableExchange exchange, String latencyClass)
+            throws IOException, InterruptedException {
+        try {
+            return exchange == null
+                    ? this.client.send(request, sampled(bodyHandler, latencyClass))
+                    : exchange.send(this.client, request, sampled(bodyHandler, latencyClass));
+        } catch (IOException e) {
+            // An aborted request says nothing about the server
+            if(exchange == null || !exchange.isAborted()){
+                this.concurrencyLimit.onFailure();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param exchange aborts the request, null if it is not aborted
+     */
+    private CompletableFuture<HttpResponse<PooledBodySubscriber.Body>> sendSampledAsync(HttpRequest request,
+                                                                                        String latencyClass,
+                                                                                        AbortableExchange exchange){
+        CompletableFuture<HttpResponse<PooledBodySubscriber.Body>> pending = this.client.sendAsync(request,
+                sampled(responseInfo -> new PooledBodySubscriber(this.bodyBuffers), latencyClass));
+        if(exchange != null){
+            exchange.sending(pending);
+        }
+        return pending
+                .whenComplete((response, error) -> {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if(cause instanceof IOException){
+                        this.concurrencyLimit.onFailure();
+                    }
+                });
+    }
+
+    private <T> HttpResponse.BodyHandler<T> sampled(HttpResponse.BodyHandler<T> bodyHandler, String latencyClass){
+        long start = System.nanoTime();
+        return responseInfo -> {
+            this.concurrencyLimit.onResponse(System.nanoTime() - start, responseInfo.statusCode(), latencyClass);
+            return bodyHandler.apply(responseInfo);
+        };
+    }
+
+    /**
+     * @return copy of the request carrying the credentials of the {@link RequestAuthenticator}
+     */
+    private HttpRequest authenticate(HttpRequest request) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request, (name, value) -> true);
+        this.requestAuthenticator.authenticate(builder);
+        return builder.build();
+    }
+
+    /**
+     * Wraps the response body into a decompressing stream according to its Content-Encoding
+     */
+    private static InputStream decode(int statusCode, HttpHeaders headers, InputStream body) throws IOException {
+        if(statusCode / 100 != 2){
+            // Error bodies are not read, and may well be empty despite their Content-Encoding
+            return body;
+        }
+        String contentEncoding = headers.firstValue("Content-Encoding").orElse("").trim();
+        if("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)){
+            return new GZIPInputStream(body, DECODE_BUFFER_SIZE);
+        }
+        if("deflate".equalsIgnoreCase(contentEncoding)){
+            // HTTP deflate is specified as zlib wrapped, but some servers send raw deflate data
+            BufferedInputStream buffered = new BufferedInputStream(body, DECODE_BUFFER_SIZE);
+            buffered.mark(2);
+            int header = buffered.read() << 8 | buffered.read();
+            buffered.reset();
+            boolean zlibWrapped = (header & 0x0F00) == 0x0800 && header % 31 == 0;
+            Inflater inflater = new Inflater(!zlibWrapped);
+            // An Inflater passed in is not ended by close, its native memory would wait for the Cleaner otherwise
+            return new InflaterInputStream(buffered, inflater, DECODE_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        return body;
+    }
+
+    /**
+     * Sends the given request and hands the streamed body of a successful response to a reader.<br>
+     * Requests failing with a connection error, a timeout or a 408, 429 or 5xx response are repeated after a
+     * randomized, exponentially growing wait. GET requests for further pages are additionally hedged,
+     * see {@link FlareRetryConfig#getHedgingPercentile()}.
+     * The bodyReader may therefore be called more than once, even concurrently, only one result is returned.
+     *
+     * @param request request to be sent
+     * @param bodyReader processes the response body while it is being received
+     * @return value produced by the bodyReader
+     * @throws FhirResponseException Thrown when a non 2xx http code is received
+     * @throws IOException Thrown on connection failure, timeout or by the bodyReader
+     * @throws InterruptedException Thrown when interrupted while waiting for a connection or the response
+     * @throws URISyntaxException Thrown by the bodyReader when the response contains a malformed URI
+     */
+    public <T> T fetch(HttpRequest request, BodyReader<T> bodyReader)
+            throws IOException, InterruptedException, URISyntaxException {
+        return fetch(request, bodyReader, PageSampling.NONE);
+    }
+
+    /**
+     * Like {@link #fetch(HttpRequest, BodyReader)}, reporting how long the successful attempt took
+     *
+     * @param sampling how the page is measured, its attempt latency is reported once per successful attempt,
+     *                 so possibly twice for a hedged request
+     */
+    <T> T fetch(HttpRequest request, BodyReader<T> bodyReader, PageSampling sampling)
+            throws IOException, InterruptedException, URISyntaxException {
+        for(int retry = 0; ; retry++){
+            try {
+                return "GET".equals(request.method())
+                        ? fetchHedged(request, bodyReader, sampling)
+                        : fetchOnce(request, bodyReader, null, sampling);
+            } catch (IOException e) {
+                if(retry >= this.retryConfig.getMaxRetries() || !isTransient(e)){
+                    throw e;
+                }
+                Thread.sleep(backoffMillis(retry));
+            }
+        }
+    }
+
+    /**
+     * Sends the given request without blocking and hands the body of a successful response to a reader.<br>
+     * The body is received completely into pooled buffers before it is read, so no thread waits for the server
+     * while the response is transferred, and no array is allocated per response. Failed requests are repeated and
+     * GET requests hedged like by {@link #fetch(HttpRequest, BodyReader)}, the bodyReader may therefore be called
+     * more than once, even concurrently.
+     *
+     * @param request request to be sent
+     * @param bodyReader processes the response body, called on a thread of the HTTP client
+     * @return future of the value produced by the bodyReader, failing with a {@link CompletionException} caused by
+     * a {@link FhirResponseException} when a non 2xx http code is received
+     */
+    public <T> CompletableFuture<T> fetchAsync(HttpRequest request, BodyReader<T> bodyReader){
+        return fetchAsync(request, bodyReader, null);
+    }
+
+    /**
+     * Like {@link #fetchAsync(HttpRequest, BodyReader)}, recording the time waited for a connection permit,
+     * spent receiving and spent reading the body
+     *
+     * @param profile profile of the search the request belongs to, null if it is not profiled
+     */
+    public <T> CompletableFuture<T> fetchAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile){
+        return fetchAsync(request, bodyReader, profile, PageSampling.NONE);
+    }
+
+    /**
+     * Like {@link #fetchAsync(HttpRequest, BodyReader, SearchProfile)}, reporting how long the successful attempt took
+     *
+     * @param sampling how the page is measured
+     */
+    <T> CompletableFuture<T> fetchAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile,
+                                        PageSampling sampling){
+        return fetchAsync(request, bodyReader, profile, sampling, 0);
+    }
+
+    private <T> CompletableFuture<T> fetchAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile,
+                                                PageSampling sampling, int retry){
+        CompletableFuture<T> attempt = "GET".equals(request.method())
+                ? fetchHedgedAsync(request, bodyReader, profile, sampling)
+                : fetchOnceAsync(request, bodyReader, profile, sampling, null);
+        return attempt.exceptionallyCompose(error -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if(retry >= this.retryConfig.getMaxRetries() || !(cause instanceof IOException e) || !isTransient(e)){
+                return CompletableFuture.failedFuture(error);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(backoffMillis(retry), TimeUnit.MILLISECONDS,
+                    this.workerExecutor);
+            return CompletableFuture.supplyAsync(() -> null, delayed)
+                    .thenCompose(unused -> fetchAsync(request, bodyReader, profile, sampling, retry + 1));
+        });
+    }
+
+    /**
+     * @param exchange aborts the request, null if it is not aborted
+     */
+    private <T> CompletableFuture<T> fetchOnceAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile,
+                                                    PageSampling sampling, AbortableExchange exchange){
+        AtomicLong sentAt = new AtomicLong();
+        return sendAsync(request, profile, sentAt, sampling.latencyClass(), exchange).thenApply(response -> {
+            if(response.statusCode() / 100 != 2 || (exchange != null && exchange.isAborted())){
+                response.body().close();
+                throw new CompletionException(response.statusCode() / 100 != 2
+                        ? new FhirResponseException(response.statusCode())
+                        : new IOException("Request aborted"));
+            }
+            long start = System.nanoTime();
+            T result;
+            try (InputStream pooledBody = response.body();
+                 InputStream body = decode(response.statusCode(), response.headers(), pooledBody)) {
+                result = bodyReader.read(body);
+            } catch (IOException | URISyntaxException e) {
+                throw new CompletionException(e);
+            } finally {
+                if(profile != null){
+                    profile.parsed(System.nanoTime() - start);
+                }
+            }
+            sampling.attemptLatency().accept(System.nanoTime() - sentAt.get());
+            return result;
+        });
+    }
+
+    /**
+     * Like {@link #fetchHedged(HttpRequest, BodyReader, PageSampling)}, without blocking the caller
+     */
+    private <T> CompletableFuture<T> fetchHedgedAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile,
+                                                      PageSampling sampling){
+        long hedgingDelayNanos = hedgingDelayNanos();
+        if(hedgingDelayNanos < 0){
+            return fetchTimedAsync(request, bodyReader, profile, sampling, null);
+        }
+        CompletableFuture<T> firstSuccess = new CompletableFuture<>();
+        AtomicBoolean hedgeDecided = new AtomicBoolean();
+        AtomicInteger failedAttempts = new AtomicInteger();
+        AbortableExchange primary = new AbortableExchange();
+        AbortableExchange hedge = new AbortableExchange();
+        firstSuccess.whenComplete((result, error) -> {
+            primary.abort();
+            hedge.abort();
+        });
+        fetchTimedAsync(request, bodyReader, profile, sampling, primary).whenComplete((result, error) -> {
+            if(error == null){
+                firstSuccess.complete(result);
+            } else if(hedgeDecided.compareAndSet(false, true) || failedAttempts.incrementAndGet() == 2){
+                // Failed before the hedging delay passed, leave it to the retries, or after the hedge failed too
+                firstSuccess.completeExceptionally(error);
+            }
+        });
+        CompletableFuture.delayedExecutor(hedgingDelayNanos, TimeUnit.NANOSECONDS, this.workerExecutor).execute(() -> {
+            if(firstSuccess.isDone() || !hedgeDecided.compareAndSet(false, true)){
+                return;
+            }
+            fetchTimedAsync(request, bodyReader, profile, sampling, hedge).whenComplete((result, error) -> {
+                if(error == null){
+                    firstSuccess.complete(result);
+                } else if(failedAttempts.incrementAndGet() == 2){
+                    firstSuccess.completeExceptionally(error);
+                }
+            });
+        });
+        return firstSuccess;
+    }
+
+    private <T> CompletableFuture<T> fetchTimedAsync(HttpRequest request, BodyReader<T> bodyReader, SearchProfile profile,
+                                                     PageSampling sampling, AbortableExchange exchange){
+        long start = System.nanoTime();
+        return fetchOnceAsync(request, bodyReader, profile, sampling, exchange).thenApply(result -> {
+            this.pageLatencies.record(System.nanoTime() - start);
+            return result;
+        });
+    }
+
+    /**
+     * Sends the given request once a connection permit is available, without blocking the caller.
+     * The permit is held until the whole body has been received.
+     * The credentials are added on a worker thread, as obtaining them may block, e.g. while a token is refreshed,
+     * and the permit may be handed over by any thread releasing one.
+     * @param sentAt set to the time the request was sent, once it got its permit
+     * @param latencyClass requests of comparable latency the time until the response headers arrived is sampled for,
+     *                     null to not sample it
+     * @param exchange aborts the request, null if it is not aborted
+     */
+    private CompletableFuture<HttpResponse<PooledBodySubscriber.Body>> sendAsync(HttpRequest request, SearchProfile profile,
+                                                                                 AtomicLong sentAt, String latencyClass,
+                                                                                 AbortableExchange exchange){
+        ConnectionPermits permits = this.concurrencyLimit.getPermits();
+        long queuedAt = System.nanoTime();
+        return permits.acquireAsync().thenComposeAsync(unused -> {
+            sentAt.set(System.nanoTime());
+            if(profile != null){
+                profile.queued(sentAt.get() - queuedAt);
+            }
+            CompletableFuture<HttpResponse<PooledBodySubscriber.Body>> response;
+            try {
+                if(exchange != null && exchange.isAborted()){
+                    throw new IOException("Request aborted");
+                }
+                HttpRequest authenticatedRequest = authenticate(request);
+                response = sendSampledAsync(authenticatedRequest, latencyClass, exchange)
+                        .thenCompose(firstResponse -> {
+                            if(firstResponse.statusCode() == 401 && this.requestAuthenticator.onRejected(authenticatedRequest)){
+                                firstResponse.body().close();
+                                return CompletableFuture.supplyAsync(() -> resendAuthenticated(request, latencyClass, exchange),
+                                        this.workerExecutor).thenCompose(Function.identity());
+                            }
+                            return CompletableFuture.completedFuture(firstResponse);
+                        });
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                // Permit has to be released in any case
+                response = CompletableFuture.failedFuture(e);
+            }
+            return response.whenComplete((result, error) -> {
+                permits.release();
+                if(profile != null){
+                    profile.fetched(System.nanoTime() - sentAt.get());
+                }
+            });
+        }, this.workerExecutor);
+    }
+
+    private CompletableFuture<HttpResponse<PooledBodySubscriber.Body>> resendAuthenticated(HttpRequest request,
+                                                                                           String latencyClass,
+                                                                                           AbortableExchange exchange){
+        try {
+            return sendSampledAsync(authenticate(request), latencyClass, exchange);
+        } catch (IOException | InterruptedException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private <T> T fetchOnce(HttpRequest request, BodyReader<T> bodyReader, AbortableExchange exchange,
+                            PageSampling sampling)
+            throws IOException, InterruptedException, URISyntaxException {
+        return execute(request, (response, body) -> {
+            if(response.statusCode()/ 100 != 2){
+                throw new FhirResponseException(response.statusCode());
+            }
+            return bodyReader.read(body);
+        }, exchange, sampling);
+    }
+
+    /**
+     * Fetches a page, sending a duplicate request if the first one takes longer than the configured
+     * percentile of recent page latencies, but at least the minimum hedging delay. Whichever request succeeds
+     * first provides the result, the other one is aborted then, releasing its connection and worker thread.
+     */
+    private <T> T fetchHedged(HttpRequest request, BodyReader<T> bodyReader, PageSampling sampling)
+            throws IOException, InterruptedException, URISyntaxException {
+        long hedgingDelayNanos = hedgingDelayNanos();
+        if(hedgingDelayNanos < 0){
+            return fetchTimed(request, bodyReader, null, sampling);
+        }
+
+        CompletableFuture<T> firstSuccess = new CompletableFuture<>();
+        AtomicInteger failedAttempts = new AtomicInteger();
+        BiConsumer<T, Throwable> onAttemptCompleted = (result, error) -> {
+            if(error == null){
+                firstSuccess.complete(result);
+            } else if(failedAttempts.incrementAndGet() == 2){
+                firstSuccess.completeExceptionally(error);
+            }
+        };
+        AbortableExchange primary = new AbortableExchange();
+        AbortableExchange hedge = new AbortableExchange();
+        // Once decided, or given up by the caller, the attempts still running are not needed any more,
+        // the winner is complete already and aborting it has no effect
+        firstSuccess.whenComplete((result, error) -> {
+            primary.abort();
+            hedge.abort();
+        });
+        startAttempt(request, bodyReader, primary, sampling).whenComplete(onAttemptCompleted);
+        try {
+            return firstSuccess.get(hedgingDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            startAttempt(request, bodyReader, hedge, sampling).whenComplete(onAttemptCompleted);
+            return awaitAttempt(firstSuccess);
+        } catch (ExecutionException e) {
+            // Primary failed before the hedging delay passed, leave it to the retries
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            firstSuccess.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * @return time after which a page request is hedged, -1 if hedging is disabled or too few pages have been
+     * fetched to tell how long a page takes
+     */
+    private long hedgingDelayNanos(){
+        int percentile = this.retryConfig.getHedgingPercentile();
+        long percentileNanos = percentile > 0 ? this.pageLatencies.percentileNanos(percentile) : -1;
+        if(percentileNanos < 0){
+            return -1;
+        }
+        return Math.max(percentileNanos, TimeUnit.MILLISECONDS.toNanos(this.retryConfig.getMinHedgingDelayMillis()));
+    }
+
+    private <T> CompletableFuture<T> startAttempt(HttpRequest request, BodyReader<T> bodyReader,
+                                                  AbortableExchange exchange, PageSampling sampling){
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetchTimed(request, bodyReader, exchange, sampling);
+            } catch (IOException | InterruptedException | URISyntaxException e) {
+                throw new CompletionException(e);
+            }
+        }, this.workerExecutor);
+    }
+
+    private static <T> T awaitAttempt(CompletableFuture<T> attempt)
+            throws IOException, InterruptedException, URISyntaxException {
+        try {
+            return attempt.get();
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            attempt.cancel(true);
+            throw e;
+        }
+    }
+
+    private static IOException rethrow(Throwable error) throws InterruptedException, URISyntaxException {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if(cause instanceof IOException e){
+            return e;
+        }
+        if(cause instanceof InterruptedException e){
+            throw e;
+        }
+        if(cause instanceof URISyntaxException e){
+            throw e;
+        }
+        if(cause instanceof RuntimeException e){
+            throw e;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    private <T> T fetchTimed(HttpRequest request, BodyReader<T> bodyReader, AbortableExchange exchange,
+                             PageSampling sampling)
+            throws IOException, InterruptedException, URISyntaxException {
+        long start = System.nanoTime();
+        T result = fetchOnce(request, bodyReader, exchange, sampling);
+        this.pageLatencies.record(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * @return whether repeating the request may succeed
+     */
+    private static boolean isTransient(IOException error){
+        if(error instanceof FhirResponseException responseException){
+            int statusCode = responseException.getStatusCode();
+            return statusCode == 408 || statusCode == 429 || statusCode / 100 == 5;
+        }
+        return true;
+    }
+
+    /**
+     * Full jitter backoff, spreading the retries of concurrent searches hitting the same failure
+     */
+    private long backoffMillis(int retry){
+        long ceiling = Math.min(this.retryConfig.getMaxBackoffMillis(),
+                this.retryConfig.getInitialBackoffMillis() << Math.min(retry, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Measurements of a page request
+     *
+     * @param latencyClass pages of comparable latency, such as the pages of searches for the same resource type.
+     *                     Their time until the response headers arrived is sampled by the concurrency limit, other
+     *                     requests such as counts or bulk export downloads are not, as their latencies differ too much
+     * @param attemptLatency notified about the time from sending the successful request until its body was read,
+     *                       excluding the wait for a connection permit and failed attempts
+     */
+    record PageSampling(String latencyClass, LongConsumer attemptLatency) {
+        static final PageSampling NONE = new PageSampling(null, nanos -> {});
+    }
+
+    /**
+     * Request of a hedged attempt that can be aborted from another thread: before its response arrived the
+     * exchange is cancelled, afterwards its body is closed, so the attempt fails right away
+     */
+    private static class AbortableExchange {
+        private volatile boolean aborted;
+        private volatile Future<?> response;
+        private volatile InputStream body;
+
+        <T> HttpResponse<T> send(HttpClient client, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+                throws IOException, InterruptedException {
+            CompletableFuture<HttpResponse<T>> pending = client.sendAsync(request, bodyHandler);
+            sending(pending);
+            try {
+                return pending.get();
+            } catch (CancellationException e) {
+                throw new IOException("Request aborted", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException cause){
+                    throw cause;
+                }
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                pending.cancel(true);
+                throw e;
+            }
+        }
+
+        /**
+         * @param pending response of the request, cancelled once the exchange is aborted
+         */
+        void sending(Future<?> pending) {
+            this.response = pending;
+            if(this.aborted){
+                pending.cancel(true);
+            }
+        }
+
+        void receiving(InputStream body) throws IOException {
+            this.body = body;
+            if(this.aborted){
+                body.close();
+            }
+        }
+
+        boolean isAborted() {
+            return this.aborted;
+        }
+
+        void abort() {
+            this.aborted = true;
+            Future<?> pending = this.response;
+            if(pending != null){
+                pending.cancel(true);
+            }
+            InputStream received = this.body;
+            if(received != null){
+                try {
+                    received.close();
+                } catch (IOException e) {
+                    // The attempt is given up anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes a response whose body is streamed
+     */
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+        T read(HttpResponse<InputStream> response, InputStream body) throws IOException, URISyntaxException;
+    }
+
+    /**
+     * Consumes the streamed body of a successful response
+     */
+    @FunctionalInterface
+    public interface BodyReader<T> {
+        T read(InputStream body) throws IOException, URISyntaxException;
+    }
+}
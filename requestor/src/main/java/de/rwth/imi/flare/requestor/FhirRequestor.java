@@ -2,8 +2,21 @@ package de.rwth.imi.flare.requestor;
 
 import de.rwth.imi.flare.api.FlareResource;
 import de.rwth.imi.flare.api.model.Criterion;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import org.jetbrains.annotations.NotNull;
@@ -15,12 +28,34 @@ import org.jetbrains.annotations.NotNull;
 public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
 
   private final FhirRequestorConfig config;
+  private final FhirHttpClient client;
+  private final BundlePageReader pageReader;
+  private final LastUpdatedPartitioner partitioner;
+  private final PageSizeTuner pageSizeTuner;
 
   /**
+   * Creates a requestor together with the HTTP client all of its searches share,
+   * instances should therefore be reused for all criteria executed against the same server
+   *
    * @param requestorConfig Configuration to be used when crafting requests
    */
   public FhirRequestor(FhirRequestorConfig requestorConfig) {
+    this(requestorConfig, new FhirHttpClient(requestorConfig));
+  }
+
+  /**
+   * Creates a requestor sending its searches through the given client, which may be shared with other requestors
+   * of the same server
+   *
+   * @param requestorConfig Configuration to be used when crafting requests
+   * @param client HTTP client all searches are sent through
+   */
+  public FhirRequestor(FhirRequestorConfig requestorConfig, FhirHttpClient client) {
     this.config = requestorConfig;
+    this.client = client;
+    this.pageReader = new BundlePageReader();
+    this.partitioner = new LastUpdatedPartitioner(this.client);
+    this.pageSizeTuner = new PageSizeTuner(requestorConfig.getPageSizeConfig(), requestorConfig.getPageCount());
   }
 
   /**
@@ -38,12 +73,341 @@ public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
     } catch (URISyntaxException e) {
       throw new RuntimeException(e);
     }
+    return executeSearch(requestUrl, searchCriterion.getMapping().getFhirResourceType());
+  }
+
+  /**
+   * Executes the search specified by the criterion without blocking, pages are fetched as the subscriber
+   * demands patients. The estimate deciding about partitions is requested asynchronously as well, only
+   * splitting a large search waits for the server on a worker thread.
+   *
+   * @param searchCriterion single criterion
+   * @return Publisher of the results for the given criterion, supporting a single subscriber
+   */
+  @Override
+  public Flow.Publisher<FlareResource> executeAsync(Criterion searchCriterion) {
+    return executeAsync(searchCriterion, null);
+  }
+
+  /**
+   * Like {@link #executeAsync(Criterion)}, recording the requests and pages of the search
+   *
+   * @param searchCriterion single criterion
+   * @param profile records the pages fetched, null if the search is not profiled
+   * @return Publisher of the results for the given criterion, supporting a single subscriber
+   */
+  public Flow.Publisher<FlareResource> executeAsync(Criterion searchCriterion, SearchProfile profile) {
+    URI requestUrl;
+    try {
+      requestUrl = buildRequestUrl(searchCriterion);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+    String resourceType = searchCriterion.getMapping().getFhirResourceType();
+    return new SearchPublisher(this.client, () -> planPartitionsAsync(requestUrl),
+        this.pageSizeTuner.getPageCount(resourceType), getElements(searchCriterion),
+        this.pageSizeTuner.observer(resourceType), profile);
+  }
+
+  /**
+   * Executes several criteria, requesting their first pages in a single batch Bundle.
+   * Further pages are fetched for each criterion on its own, criteria the batch failed for are executed
+   * as regular searches.
+   *
+   * @param searchCriteria criteria to be executed
+   * @return Streams that contain the results for the given criteria, in the same order
+   */
+  public List<Stream<FlareResource>> executeBatch(List<Criterion> searchCriteria) {
+    if (searchCriteria.size() == 1) {
+      return List.of(execute(searchCriteria.get(0)));
+    }
+    List<String> pagecounts = searchCriteria.stream()
+        .map(criterion -> this.pageSizeTuner.getPageCount(criterion.getMapping().getFhirResourceType()))
+        .toList();
+    List<String> entryUrls = new ArrayList<>();
+    for (int i = 0; i < searchCriteria.size(); i++) {
+      entryUrls.add(buildBatchEntryUrl(searchCriteria.get(i), pagecounts.get(i)));
+    }
+    List<BundlePageReader.BatchEntry> entries;
+    try {
+      entries = this.client.fetch(this.client.newBatchRequest(config.getBaseURI(), entryUrls),
+          this.pageReader::readBatchResponse);
+    } catch (FhirResponseException e) {
+      // Batch rejected as a whole, e.g. not supported by the server
+      entries = List.of();
+    } catch (InterruptedException | URISyntaxException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    List<Stream<FlareResource>> results = new ArrayList<>();
+    for (int i = 0; i < searchCriteria.size(); i++) {
+      Criterion criterion = searchCriteria.get(i);
+      if (i < entries.size() && entries.get(i).isSuccessful()) {
+        results.add(createStream(createSearchRequest(criterion, pagecounts.get(i), entries.get(i).page())));
+      } else {
+        results.add(Stream.of(criterion).flatMap(this::execute));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Executes a Patient search, such as one built by {@link ReverseChainPlanner}
+   *
+   * @param parameters url encoded Patient search parameters
+   * @return Stream that contains one resource per matching patient
+   */
+  public Stream<FlareResource> executePatientSearch(String parameters) {
+    return executeSearch(buildPatientSearchUrl(parameters), "Patient");
+  }
+
+  /**
+   * Executes the criterion only among the given patients. The patients are passed as search parameter in chunks of
+   * {@link FlareSemiJoinConfig#getPatientsPerSearch()}, the searches of all chunks run concurrently.
+   *
+   * @param searchCriterion single criterion
+   * @param patientIds ids of the patients to search among
+   * @return Stream that contains one resource per matching patient
+   */
+  public Stream<FlareResource> executeForPatients(Criterion searchCriterion, Collection<String> patientIds) {
+    String resourceType = searchCriterion.getMapping().getFhirResourceType();
+    List<URI> searchUrls = new ArrayList<>();
+    try {
+      String criterionUrl = buildRequestUrl(searchCriterion).toString();
+      String parameterPrefix = (criterionUrl.endsWith("?") ? "" : "&")
+          + ("Patient".equals(resourceType) ? "_id=" : "patient=");
+      String referencePrefix = "Patient".equals(resourceType) ? "" : "Patient/";
+      int patientsPerSearch = Math.max(1, this.config.getSemiJoinConfig().getPatientsPerSearch());
+      StringBuilder searchUrl = null;
+      int patientsInSearch = 0;
+      for (String patientId : patientIds) {
+        if (searchUrl == null) {
+          searchUrl = new StringBuilder(criterionUrl).append(parameterPrefix);
+        } else {
+          searchUrl.append(',');
+        }
+        searchUrl.append(referencePrefix).append(URLEncoder.encode(patientId, StandardCharsets.UTF_8));
+        if (++patientsInSearch == patientsPerSearch) {
+          searchUrls.add(new URI(searchUrl.toString()));
+          searchUrl = null;
+          patientsInSearch = 0;
+        }
+      }
+      if (searchUrl != null) {
+        searchUrls.add(new URI(searchUrl.toString()));
+      }
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
 
-    String pagecount = this.config.getPageCount();
-    FhirSearchRequest fhirSearchRequest = this.config.getAuthentication()
-        .map((auth) -> new FhirSearchRequest(requestUrl, auth, pagecount))
-        .orElseGet(() -> new FhirSearchRequest(requestUrl, pagecount));
-    return createStream(fhirSearchRequest);
+    if (searchUrls.isEmpty()) {
+      return Stream.empty();
+    }
+    String elements = getElements(searchCriterion);
+    if (searchUrls.size() == 1) {
+      return createStream(createSearchRequest(searchUrls.get(0), resourceType, elements));
+    }
+    return executePartitioned(searchUrls, resourceType, elements);
+  }
+
+  /**
+   * Counts the patients matching a Patient search using _summary=count
+   *
+   * @param parameters url encoded Patient search parameters
+   * @return number of matching patients, -1 if the server does not report a total
+   */
+  public long countPatients(String parameters) {
+    return count(buildPatientSearchUrl(parameters));
+  }
+
+  private Stream<FlareResource> executeSearch(URI requestUrl, String resourceType) {
+    String elements = this.config.getSearchProjection().getElements(resourceType).orElse(null);
+    List<URI> partitions = planPartitions(requestUrl);
+    if (partitions.size() == 1) {
+      return createStream(createSearchRequest(partitions.get(0), resourceType, elements));
+    }
+    return executePartitioned(partitions, resourceType, elements);
+  }
+
+  /**
+   * Counts the resources matching the criterion using _summary=count, without fetching any of them
+   *
+   * @param searchCriterion single criterion
+   * @return number of matching resources, -1 if the server does not report a total
+   */
+  public long count(Criterion searchCriterion) {
+    try {
+      return count(buildRequestUrl(searchCriterion));
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Counts all resources of the given type on the server using _summary=count
+   *
+   * @param resourceType FHIR resource type, e.g. Patient
+   * @return number of resources, -1 if the server does not report a total
+   */
+  public long countAll(String resourceType) {
+    try {
+      return count(new URI(config.getBaseURI().toString() + resourceType));
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private long count(URI searchUrl) {
+    try {
+      return this.client.fetch(this.client.newSearchRequest(searchUrl, "_summary=count"),
+          this.pageReader::readTotal);
+    } catch (InterruptedException | URISyntaxException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private FhirSearchRequest createSearchRequest(URI searchUrl, String resourceType, String elements) {
+    String pagecount = this.pageSizeTuner.getPageCount(resourceType);
+    int prefetchPages = this.config.getPagingConfig().getPrefetchPages();
+    return new FhirSearchRequest(searchUrl, this.client, pagecount, elements, prefetchPages, null,
+        this.pageSizeTuner.observer(resourceType));
+  }
+
+  private FhirSearchRequest createSearchRequest(Criterion criterion, String pagecount, SearchPage firstPage) {
+    String resourceType = criterion.getMapping().getFhirResourceType();
+    try {
+      return new FhirSearchRequest(buildRequestUrl(criterion), this.client, pagecount,
+          getElements(criterion), this.config.getPagingConfig().getPrefetchPages(), firstPage,
+          this.pageSizeTuner.observer(resourceType));
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return search url of the criterion relative to the base address, with page size and projection applied
+   */
+  private String buildBatchEntryUrl(Criterion criterion, String pagecount) {
+    StringBuilder entryUrl = new StringBuilder(SearchQueryStringBuilder.constructQueryString(criterion));
+    if (!pagecount.isEmpty()) {
+      entryUrl.append("&_count=").append(pagecount);
+    }
+    String elements = getElements(criterion);
+    if (elements != null) {
+      entryUrl.append("&_elements=").append(URLEncoder.encode(elements, StandardCharsets.UTF_8));
+    }
+    return entryUrl.toString();
+  }
+
+  private String getElements(Criterion criterion) {
+    return this.config.getSearchProjection().getElements(criterion.getMapping().getFhirResourceType()).orElse(null);
+  }
+
+  /**
+   * Decides how many disjoint partitions a search is split into, based on the estimated number of results
+   *
+   * @return search urls of the partitions, a single url if the search is not split
+   */
+  private List<URI> planPartitions(URI requestUrl) {
+    if (!isPartitioningEnabled()) {
+      return List.of(requestUrl);
+    }
+    long estimatedResults;
+    try {
+      estimatedResults = count(requestUrl);
+    } catch (UncheckedIOException e) {
+      // Server can not count this search, fall back to a single scan
+      if (e.getCause() instanceof FhirResponseException) {
+        return List.of(requestUrl);
+      }
+      throw e;
+    }
+    return partition(requestUrl, estimatedResults);
+  }
+
+  /**
+   * Like {@link #planPartitions(URI)}, but waits for the estimate without blocking
+   */
+  private CompletableFuture<List<URI>> planPartitionsAsync(URI requestUrl) {
+    if (!isPartitioningEnabled()) {
+      return CompletableFuture.completedFuture(List.of(requestUrl));
+    }
+    return this.client.fetchAsync(this.client.newSearchRequest(requestUrl, "_summary=count"), this.pageReader::readTotal)
+        .handle((estimatedResults, error) -> {
+          if (error == null) {
+            return estimatedResults;
+          }
+          // Server can not count this search, fall back to a single scan
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          if (cause instanceof FhirResponseException) {
+            return -1L;
+          }
+          throw error instanceof CompletionException completionException ? completionException : new CompletionException(error);
+        })
+        .thenCompose(estimatedResults -> partitionCount(estimatedResults) <= 1
+            ? CompletableFuture.completedFuture(List.of(requestUrl))
+            : CompletableFuture.supplyAsync(() -> partition(requestUrl, estimatedResults), this.client.getWorkerExecutor()));
+  }
+
+  private boolean isPartitioningEnabled() {
+    FlarePagingConfig pagingConfig = this.config.getPagingConfig();
+    return pagingConfig.getPartitionSize() > 0 && pagingConfig.getMaxPartitions() > 1;
+  }
+
+  private int partitionCount(long estimatedResults) {
+    FlarePagingConfig pagingConfig = this.config.getPagingConfig();
+    return (int) Math.min(pagingConfig.getMaxPartitions(),
+        (estimatedResults + pagingConfig.getPartitionSize() - 1) / pagingConfig.getPartitionSize());
+  }
+
+  private List<URI> partition(URI requestUrl, long estimatedResults) {
+    try {
+      return this.partitioner.partition(requestUrl, partitionCount(estimatedResults));
+    } catch (InterruptedException | URISyntaxException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Fetches all partitions, or other disjoint searches, concurrently and merges the patients found into a single set
+   */
+  private Stream<FlareResource> executePartitioned(List<URI> partitions, String resourceType, String elements) {
+    Set<String> patientIds = ConcurrentHashMap.newKeySet();
+    // Searches of the partitions still being read, stopped when the stream is closed before they are done
+    Set<FhirSearchRequest> searches = ConcurrentHashMap.newKeySet();
+    AtomicBoolean closed = new AtomicBoolean();
+    CompletableFuture<?>[] partitionsFetched = partitions.stream()
+        .map(partition -> CompletableFuture.runAsync(() -> {
+          if (closed.get()) {
+            return;
+          }
+          FhirSearchRequest search = createSearchRequest(partition, resourceType, elements);
+          searches.add(search);
+          if (closed.get()) {
+            search.close();
+          }
+          try {
+            search.forEachRemaining(resource -> patientIds.add(resource.getPatientId()));
+          } finally {
+            searches.remove(search);
+          }
+        }, this.client.getWorkerExecutor()))
+        .toArray(CompletableFuture[]::new);
+    CompletableFuture<Set<String>> mergedIds = CompletableFuture.allOf(partitionsFetched)
+        .thenApply(unused -> patientIds);
+    return Stream.of(mergedIds)
+        .flatMap(ids -> ids.join().stream())
+        .<FlareResource>map(FlareResourceImpl::new)
+        .onClose(() -> {
+          closed.set(true);
+          searches.forEach(FhirSearchRequest::close);
+        });
   }
 
   /**
@@ -68,10 +432,19 @@ public class FhirRequestor implements de.rwth.imi.flare.api.Requestor {
   private Stream<FlareResource> createStream(
       FhirSearchRequest fhirSearchRequest) {
     Iterable<FlareResource> streamSource = () -> fhirSearchRequest;
-    return StreamSupport.stream(streamSource.spliterator(), false);
+    // Closing a stream that was not read to its end, e.g. of a cancelled query, stops the prefetching pages
+    return StreamSupport.stream(streamSource.spliterator(), false).onClose(fhirSearchRequest::close);
   }
 
 
+  private URI buildPatientSearchUrl(String parameters) {
+    try {
+      return new URI(config.getBaseURI().toString() + "Patient?" + parameters);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private URI buildRequestUrl(Criterion search) throws URISyntaxException {
     // TODO: Find a way to properly concat URLs in Java
     String searchQuery = SearchQueryStringBuilder.constructQueryString(search);
@@ -9,11 +9,21 @@ public interface FhirRequestorConfig {
 
     /**
      *
-     * TODO: Figure out a way to set Header based authentication e.g. a consumer that modifies each request prior to exec
+     * Challenge based authentication, credentials are only sent after the server answered with a 401.
+     * Prefer {@link #getRequestAuthenticator()}, which sends them with the first request
      * @return Authenticator that allows the Requestor to search for Resources on the server
      */
     Optional<Authenticator> getAuthentication();
 
+
+    /**
+     *
+     * @return RequestAuthenticator adding credentials, e.g. Basic or bearer token, to every request
+     */
+    default RequestAuthenticator getRequestAuthenticator() {
+        return RequestAuthenticator.none();
+    }
+
     /**
      *
      * @return URI pointing to the Base address of the FHIR Server, such that concatenating /Patient/1
@@ -24,7 +34,8 @@ public interface FhirRequestorConfig {
 
     /**
      *
-     * @return String setting the number of resources per page
+     * @return String setting the number of resources per page, the initial page size if it is adapted
+     * by {@link #getPageSizeConfig()}
      *
      */
     String getPageCount();
@@ -36,4 +47,96 @@ public interface FhirRequestorConfig {
      * used by Flare
      */
      FlareThreadPoolConfig getThreadPoolConfig();
+
+
+    /**
+     *
+     * @return FlareHttpClientConfig, setting timeouts and connection limits of the
+     * HTTP client shared by all requests to the FHIR server
+     */
+    default FlareHttpClientConfig getHttpClientConfig() {
+        return FlareHttpClientConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareConcurrencyLimitConfig, setting how the number of concurrent requests adapts to the
+     * load of the FHIR server
+     */
+    default FlareConcurrencyLimitConfig getConcurrencyLimitConfig() {
+        return FlareConcurrencyLimitConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return SearchProjection, determining the elements requested per searched resource type
+     */
+    default SearchProjection getSearchProjection() {
+        return SearchProjection.defaultProjection();
+    }
+
+
+    /**
+     *
+     * @return FlarePagingConfig, setting how the pages of a search are fetched
+     */
+    default FlarePagingConfig getPagingConfig() {
+        return FlarePagingConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlarePageSizeConfig, setting the bounds within which the page size is adapted per resource type
+     */
+    default FlarePageSizeConfig getPageSizeConfig() {
+        return FlarePageSizeConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareBulkExportConfig, setting when and how criteria are evaluated by a bulk $export
+     */
+    default FlareBulkExportConfig getBulkExportConfig() {
+        return FlareBulkExportConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareSemiJoinConfig, setting when criteria are only searched among the patients found by others
+     */
+    default FlareSemiJoinConfig getSemiJoinConfig() {
+        return FlareSemiJoinConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareStatisticsConfig, setting how long the cardinality estimates of criteria are cached
+     */
+    default FlareStatisticsConfig getStatisticsConfig() {
+        return FlareStatisticsConfig.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareServerCapabilities, declaring which optional search features the FHIR server supports
+     */
+    default FlareServerCapabilities getServerCapabilities() {
+        return FlareServerCapabilities.defaultConfig();
+    }
+
+
+    /**
+     *
+     * @return FlareRetryConfig, setting how failed and slow requests to the FHIR server are repeated
+     */
+    default FlareRetryConfig getRetryConfig() {
+        return FlareRetryConfig.defaultConfig();
+    }
 }
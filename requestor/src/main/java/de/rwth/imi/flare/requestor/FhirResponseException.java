@@ -0,0 +1,18 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the FHIR server answers a request with a non 2xx status code
+ */
+public class FhirResponseException extends IOException {
+    @Getter
+    private final int statusCode;
+
+    public FhirResponseException(int statusCode){
+        super("Received HTTP status code indicating request failure: " + statusCode);
+        this.statusCode = statusCode;
+    }
+}
@@ -1,164 +1,304 @@
 package de.rwth.imi.flare.requestor;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import de.rwth.imi.flare.api.FlareResource;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.Resource;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.net.Authenticator;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
+import java.net.URLEncoder;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
- * Iterates over the paged results of a given FHIR search request
+ * Iterates over the paged results of a given FHIR search request.<br>
+ * Pages are either fetched on demand, or prefetched by a bounded {@link PagePrefetcher pipeline}
+ * running ahead of the iteration. A page failing transiently is fetched again from its own link,
+ * so the pages already read are kept. Closing a search that has not been read completely stops its prefetching.
  */
-public class FhirSearchRequest implements Iterator<FlareResource> {
+public class FhirSearchRequest implements Iterator<FlareResource>, AutoCloseable {
+    private final URI searchUri;
+    // Pages of the same resource type have comparable latencies
+    private final String latencyClass;
+    // Next page to fetch on demand, unused when prefetching
     private URI nextPageUri;
     //Stack of results returned by last request
-    private final Deque<FlareResourceImpl> remainingPageResults;
-    private final HttpClient client;
+    private final Deque<FlareResource> remainingPageResults;
+    private final FhirHttpClient client;
     // Parses only JSON FHIR responses
-    private final IParser fhirParser;
+    private final BundlePageReader pageReader;
     private final String pagecount;
+    private final PageSizeTuner.PageObserver pageObserver;
+    // Value of the _elements parameter, null once the server rejected it or if no projection is wanted
+    private volatile String elements;
+    private final PagePrefetcher prefetcher;
 
-    public FhirSearchRequest(URI fhirRequestUrl, Authenticator auth, String pagecount){
-        this.nextPageUri = fhirRequestUrl;
-        this.client = HttpClient.newBuilder().authenticator(auth).build();
-        this.pagecount = pagecount;
-        this.fhirParser = FhirContext.forR4().newJsonParser();
-        this.remainingPageResults = new LinkedBlockingDeque<>();
-        // Execute before any iteration to make sure requests with empty response set don't lead to a true hasNext
-        this.ensureStackFullness(true);
+    /**
+     * Fetches the pages with a default client shared by all searches created this way, instead of opening
+     * connections of its own
+     * @param fhirRequestUrl search url to be executed
+     * @param pagecount number of resources per page, empty to use the server default
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, String pagecount){
+        this(fhirRequestUrl, DefaultClient.INSTANCE, pagecount);
     }
 
-    public FhirSearchRequest(URI fhirRequestUrl, String pagecount){
-        this.nextPageUri = fhirRequestUrl;
-        this.client = HttpClient.newBuilder().build();
+    /**
+     * @param fhirRequestUrl search url to be executed
+     * @param client shared client the pages are fetched with
+     * @param pagecount number of resources per page, empty to use the server default
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, FhirHttpClient client, String pagecount){
+        this(fhirRequestUrl, client, pagecount, null, 0);
+    }
+
+    /**
+     * @param fhirRequestUrl search url to be executed
+     * @param client shared client the pages are fetched with
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @param prefetchPages number of pages fetched ahead of the iteration, 0 to fetch pages on demand
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, FhirHttpClient client, String pagecount, String elements,
+                             int prefetchPages){
+        this(fhirRequestUrl, client, pagecount, elements, prefetchPages, null);
+    }
+
+    /**
+     * @param fhirRequestUrl search url to be executed
+     * @param client shared client the pages are fetched with
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @param prefetchPages number of pages fetched ahead of the iteration, 0 to fetch pages on demand
+     * @param firstPage first page of the search if it has already been obtained, e.g. in a batch, null otherwise
+     */
+    public FhirSearchRequest(URI fhirRequestUrl, FhirHttpClient client, String pagecount, String elements,
+                             int prefetchPages, SearchPage firstPage){
+        this(fhirRequestUrl, client, pagecount, elements, prefetchPages, firstPage, PageSizeTuner.PageObserver.NONE);
+    }
+
+    /**
+     * @param fhirRequestUrl search url to be executed
+     * @param client shared client the pages are fetched with
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @param prefetchPages number of pages fetched ahead of the iteration, 0 to fetch pages on demand
+     * @param firstPage first page of the search if it has already been obtained, e.g. in a batch, null otherwise
+     * @param pageObserver notified about the latency and size of every page fetched
+     */
+    FhirSearchRequest(URI fhirRequestUrl, FhirHttpClient client, String pagecount, String elements,
+                      int prefetchPages, SearchPage firstPage, PageSizeTuner.PageObserver pageObserver){
+        this.searchUri = fhirRequestUrl;
+        this.latencyClass = resourceTypeOf(fhirRequestUrl);
+        this.client = client;
         this.pagecount = pagecount;
-        this.fhirParser = FhirContext.forR4().newJsonParser();
-        this.remainingPageResults = new LinkedBlockingDeque<>();
-        // Execute before any iteration to make sure requests with empty response set don't lead to a true hasNext
-        this.ensureStackFullness(true);
+        this.pageObserver = pageObserver;
+        this.elements = elements;
+        this.pageReader = new BundlePageReader();
+        this.remainingPageResults = new ArrayDeque<>();
+        if(firstPage != null){
+            pushPatients(firstPage);
+        }
+        URI pageUri = firstPage == null ? fhirRequestUrl : firstPage.getNextPageUri();
+        if(prefetchPages > 0 && pageUri != null){
+            this.prefetcher = new PagePrefetcher(this::fetchPage, pageUri, firstPage == null, prefetchPages,
+                    client.getPrefetchExecutor());
+        }
+        else {
+            this.prefetcher = null;
+            this.nextPageUri = pageUri;
+            if(firstPage == null){
+                // Execute before any iteration to make sure requests with empty response set don't lead to a true hasNext
+                this.ensureStackFullness(true);
+            }
+        }
     }
 
     @Override
     public boolean hasNext() {
-        return this.nextPageUri != null || !this.remainingPageResults.isEmpty();
+        ensureStackFullness(false);
+        return !this.remainingPageResults.isEmpty();
     }
 
     @Override
     public FlareResource next() {
-        ensureStackFullness(false);
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
         return this.remainingPageResults.pop();
     }
 
     /**
-     * Fetches next page if stack isn't full, and turns checked exceptions that should not be thrown into unchecked ones
+     * Fetches pages until the stack contains results or the search is exhausted,
+     * and turns checked exceptions that should not be thrown into unchecked ones
      * @param sendPostRequest Determines whether the request is sent via POST or GET
      */
-    private void ensureStackFullness(boolean sendPostRequest) throws NoSuchElementException {
-        if(this.remainingPageResults.isEmpty()){
-            if(this.nextPageUri != null){
-                try {
-                    fetchNextPage(sendPostRequest);
+    private void ensureStackFullness(boolean sendPostRequest) {
+        try {
+            while(this.remainingPageResults.isEmpty()){
+                SearchPage page = takeNextPage(sendPostRequest);
+                if(page == null){
+                    return;
                 }
-                // If these Exceptions get thrown, execution can not continue.
-                catch (InterruptedException | URISyntaxException e) {
-                    throw new RuntimeException(e);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            }
-            else{
-                throw new NoSuchElementException();
+                pushPatients(page);
+                sendPostRequest = false;
             }
         }
+        // If these Exceptions get thrown, execution can not continue.
+        catch (InterruptedException | URISyntaxException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Fetches the next page of search results and updates {@link #remainingPageResults} and {@link #nextPageUri}
+     * Stops fetching further pages ahead, aborting the pages being fetched. Has no effect once all pages were read.
+     */
+    @Override
+    public void close() {
+        if(this.prefetcher != null){
+            this.prefetcher.close();
+        }
+    }
+
+    private void pushPatients(SearchPage page){
+        for(String patientId : page.getPatientIds()){
+            this.remainingPageResults.push(new FlareResourceImpl(patientId));
+        }
+    }
+
+    /**
+     * Takes the next page either from the prefetch pipeline or by fetching it
+     * @param sendPostRequest Determines whether the request is sent via POST or GET when fetching on demand
+     * @return next page, null if there are no more pages
+     */
+    private SearchPage takeNextPage(boolean sendPostRequest) throws IOException, InterruptedException, URISyntaxException {
+        if(this.prefetcher != null){
+            return this.prefetcher.nextPage();
+        }
+        if(this.nextPageUri == null){
+            return null;
+        }
+        SearchPage page = fetchPage(this.nextPageUri, sendPostRequest, nextPageUri -> {});
+        this.nextPageUri = page.getNextPageUri();
+        return page;
+    }
+
+    /**
+     * Fetches a single page of search results
+     * @param pageUri search uri for the initial request, next link otherwise
      * @param sendPostRequest Determines whether the request is sent via POST or GET
+     * @param nextLinkListener notified about the next link as soon as it has been read
      */
-    private void fetchNextPage(boolean sendPostRequest) throws IOException, InterruptedException, URISyntaxException {
-        HttpRequest req = sendPostRequest ? buildPostRequest() : HttpRequest.newBuilder().uri(nextPageUri).GET().build();
-        executeRequestAndProcessResponse(req);
+    private SearchPage fetchPage(URI pageUri, boolean sendPostRequest, Consumer<URI> nextLinkListener)
+            throws IOException, InterruptedException, URISyntaxException {
+        HttpRequest req = sendPostRequest ? buildPostRequest() : this.client.newRequest(pageUri).GET().build();
+        // A page may be read more than once when it is retried or hedged, the next page must only be scheduled once
+        nextLinkListener = reportOnce(nextLinkListener);
+        try {
+            return executeRequestAndProcessResponse(req, nextLinkListener);
+        } catch (FhirResponseException e) {
+            // Servers not supporting _elements reject it under strict handling, search again without the projection
+            if(!sendPostRequest || this.elements == null || e.getStatusCode() != 400){
+                throw e;
+            }
+            this.elements = null;
+            return executeRequestAndProcessResponse(buildPostRequest(), nextLinkListener);
+        }
+    }
+
+    private static Consumer<URI> reportOnce(Consumer<URI> nextLinkListener){
+        AtomicBoolean reported = new AtomicBoolean();
+        return nextPageUri -> {
+            if(reported.compareAndSet(false, true)){
+                nextLinkListener.accept(nextPageUri);
+            }
+        };
     }
 
     /**
      * creates an initial POST Request for a FHIR Search.
-     * This is done to bypass the 2.083 character limit for a URL in a GET request.
      * @return post request
      */
     private HttpRequest buildPostRequest(){
-        String uri = this.nextPageUri.getScheme() + "://" + this.nextPageUri.getAuthority() + this.nextPageUri.getPath() + "/_search";
-        String query = this.nextPageUri.getQuery();
+        return this.client.newSearchRequest(this.searchUri, searchParameters(this.pagecount, this.elements));
+    }
 
-        if ( ! this.pagecount.isEmpty()){
-            query = query + "&_count=" + this.pagecount;
+    /**
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @return url encoded page size and projection parameters of the initial search request
+     */
+    static String searchParameters(String pagecount, String elements){
+        StringBuilder parameters = new StringBuilder();
+        if ( ! pagecount.isEmpty()){
+            parameters.append("_count=").append(pagecount);
         }
-
-        return HttpRequest.newBuilder(
-                        URI.create(uri))
-                .header("Prefer", "handling=strict")
-                .header("Accept-Encoding", "CSQ")
-                .header("Content-Type", "application/x-www-form-urlencoded")
-                .POST(HttpRequest.BodyPublishers.ofString(query))
-                .build();
+        if (elements != null){
+            parameters.append(parameters.length() == 0 ? "" : "&")
+                    .append("_elements=").append(URLEncoder.encode(elements, StandardCharsets.UTF_8));
+        }
+        return parameters.toString();
     }
 
     /**
      * Executes a given HttpRequest.
-     * Parses both the nextPageLink and the resources contained in the response bundle
+     * Reads both the nextPageLink and the patients referenced in the response bundle while it is streamed
      *
      * @param req request to be executed
-     * @throws IOException Thrown when a non 2xx http code is received
+     * @param nextLinkListener notified about the next link as soon as it has been read
+     * @throws FhirResponseException Thrown when a non 2xx http code is received
      * @throws InterruptedException Thrown by the HttpClient
      * @throws URISyntaxException Thrown when the FHIR Server returns a malformed URI
      */
-    private void executeRequestAndProcessResponse(HttpRequest req) throws IOException, InterruptedException, URISyntaxException {
-        HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
-        if(response.statusCode()/ 100 != 2){
-            throw new IOException("Received HTTP status code indicating request failure: " + response.statusCode());
-        }
-
-        Bundle searchBundle = this.fhirParser.parseResource(Bundle.class, response.body());
-        extractResourcesFromBundle(searchBundle);
-        extractNextPageLink(searchBundle);
+    private SearchPage executeRequestAndProcessResponse(HttpRequest req, Consumer<URI> nextLinkListener)
+            throws IOException, InterruptedException, URISyntaxException {
+        // Hedged requests read the page concurrently, size and latency are taken from the one finishing last
+        AtomicLong pageBytes = new AtomicLong();
+        // Waiting for a connection and failed attempts are not caused by the page size, so only the successful
+        // attempt counts
+        AtomicLong latencyNanos = new AtomicLong();
+        SearchPage page = this.client.fetch(req, body -> {
+            CountingInputStream countingBody = new CountingInputStream(body);
+            SearchPage readPage = this.pageReader.readPage(countingBody, nextLinkListener);
+            pageBytes.set(countingBody.getCount());
+            return readPage;
+        }, new FhirHttpClient.PageSampling(this.latencyClass, latencyNanos::set));
+        this.pageObserver.pageFetched(requestedPageSize(), page.getPatientIds().size(), pageBytes.get(),
+                latencyNanos.get());
+        return page;
     }
 
     /**
-     * Extracts the resources contained in a given bundle into the {@link #remainingPageResults} stack
-     * @param searchBundle Response to a search request currently being processed
+     * @param searchUri search url, e.g. [base]/Observation?code=...
+     * @return searched resource type, the last segment of the path
      */
-    private void extractResourcesFromBundle(Bundle searchBundle) {
-        List<Bundle.BundleEntryComponent> entries = searchBundle.getEntry();
-        for(Bundle.BundleEntryComponent entry : entries){
-            Resource resource = entry.getResource();
-            this.remainingPageResults.push(new FlareResourceImpl(resource));
+    static String resourceTypeOf(URI searchUri){
+        String path = searchUri.getPath() == null ? "" : searchUri.getPath();
+        if(path.endsWith("/")){
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private int requestedPageSize(){
+        try {
+            return Integer.parseInt(this.pagecount.trim());
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
     /**
-     * Extracts the Link to the next page of search results from a bundle into {@link #nextPageUri}
-     * @param searchBundle Response to the search request currently being processed
-     * @throws URISyntaxException If the URI contained in the bundle is not valid
+     * Holds the default client, created on first use
      */
-    private void extractNextPageLink(Bundle searchBundle) throws URISyntaxException {
-        Bundle.BundleLinkComponent nextLink = searchBundle.getLink(IBaseBundle.LINK_NEXT);
-        if(nextLink == null){
-            this.nextPageUri = null;
-        }
-        else{
-            this.nextPageUri = new URI(nextLink.getUrl());
-        }
+    private static class DefaultClient {
+        private static final FhirHttpClient INSTANCE =
+                new FhirHttpClient(FlareHttpClientConfig.defaultConfig(), Optional.empty());
     }
 }
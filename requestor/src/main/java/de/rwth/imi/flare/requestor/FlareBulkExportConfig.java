@@ -0,0 +1,30 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareBulkExportConfig {
+
+    @Getter long minEstimatedResources;
+    @Getter long pollIntervalMillis;
+    @Getter long timeoutSeconds;
+
+
+    /**
+     * @param minEstimatedResources number of resources matching a criterion, as counted by the server, from which on
+     *                              the criterion is evaluated by a bulk $export instead of a paged search,
+     *                              0 never uses $export
+     * @param pollIntervalMillis wait between polls of the export status if the server does not send a Retry-After
+     * @param timeoutSeconds time after which a running export is cancelled
+     */
+    public FlareBulkExportConfig(long minEstimatedResources, long pollIntervalMillis, long timeoutSeconds){
+        this.minEstimatedResources = minEstimatedResources;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareBulkExportConfig defaultConfig(){
+        return new FlareBulkExportConfig(0, 2000, 3600);
+    }
+}
@@ -0,0 +1,31 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareConcurrencyLimitConfig {
+
+    @Getter int minLimit;
+    @Getter double latencyTolerance;
+    @Getter double backoffRatio;
+
+
+    /**
+     * The limit of concurrent requests starts at {@link FlareHttpClientConfig#getMaxConnectionsPerHost()} and never
+     * exceeds it, it is lowered while the server answers slowly or signals overload and raised again afterwards.
+     * @param minLimit lowest number of concurrent requests, 0 keeps the limit fixed at maxConnectionsPerHost
+     * @param latencyTolerance factor by which the recent latency of search pages may exceed their long term latency
+     *                         before the server is considered overloaded
+     * @param backoffRatio factor the limit is multiplied with when the server is overloaded, between 0 and 1
+     */
+    public FlareConcurrencyLimitConfig(int minLimit, double latencyTolerance, double backoffRatio){
+        this.minLimit = minLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareConcurrencyLimitConfig defaultConfig(){
+        return new FlareConcurrencyLimitConfig(0, 2.0, 0.9);
+    }
+}
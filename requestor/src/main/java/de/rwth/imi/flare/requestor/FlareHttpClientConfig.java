@@ -0,0 +1,31 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareHttpClientConfig {
+
+    @Getter int connectTimeoutSeconds;
+    @Getter int requestTimeoutSeconds;
+    @Getter int maxConnectionsPerHost;
+    @Getter boolean http2Enabled;
+    @Getter boolean compressionEnabled;
+
+
+    /**
+     * @param compressionEnabled whether gzip or deflate compressed responses are requested from the server
+     */
+    public FlareHttpClientConfig(int connectTimeoutSeconds, int requestTimeoutSeconds, int maxConnectionsPerHost,
+                                 boolean http2Enabled, boolean compressionEnabled){
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+        this.requestTimeoutSeconds = requestTimeoutSeconds;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.http2Enabled = http2Enabled;
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareHttpClientConfig defaultConfig(){
+        return new FlareHttpClientConfig(10, 60, 16, true, true);
+    }
+}
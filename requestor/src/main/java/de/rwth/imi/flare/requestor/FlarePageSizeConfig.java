@@ -0,0 +1,35 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlarePageSizeConfig {
+
+    @Getter int minPageSize;
+    @Getter int maxPageSize;
+    @Getter long targetPageMillis;
+    @Getter long maxPageBytes;
+
+
+    /**
+     * @param minPageSize smallest number of resources per page requested, also used for resource types without
+     *                    observed pages if no page count is configured
+     * @param maxPageSize largest number of resources per page requested, 0 disables adapting the page size and
+     *                    always requests the configured page count
+     * @param targetPageMillis time the server should take for a single page, larger pages save round trips on big
+     *                         searches but risk running into timeouts
+     * @param maxPageBytes upper bound for the size of a single page after decompression
+     */
+    public FlarePageSizeConfig(int minPageSize, int maxPageSize, long targetPageMillis, long maxPageBytes){
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetPageMillis = targetPageMillis;
+        this.maxPageBytes = maxPageBytes;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own, adapting the page
+     * size is disabled unless a maxPageSize is set
+     */
+    public static FlarePageSizeConfig defaultConfig(){
+        return new FlarePageSizeConfig(100, 0, 2000, 16 * 1024 * 1024);
+    }
+}
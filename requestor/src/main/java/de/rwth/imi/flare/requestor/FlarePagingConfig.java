@@ -0,0 +1,33 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlarePagingConfig {
+
+    @Getter int prefetchPages;
+    @Getter int partitionSize;
+    @Getter int maxPartitions;
+    @Getter int batchSize;
+
+
+    /**
+     * @param prefetchPages number of pages fetched ahead of the consumer per search, 0 fetches pages on demand only
+     * @param partitionSize number of matching resources above which a search is split into partitions fetched in
+     *                      parallel, aiming at this many resources per partition, 0 never splits a search
+     * @param maxPartitions upper bound for the number of partitions of a single search
+     * @param batchSize maximum number of criteria whose first pages are requested in one batch Bundle,
+     *                  only used if the server supports batches
+     */
+    public FlarePagingConfig(int prefetchPages, int partitionSize, int maxPartitions, int batchSize){
+        this.prefetchPages = prefetchPages;
+        this.partitionSize = partitionSize;
+        this.maxPartitions = maxPartitions;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlarePagingConfig defaultConfig(){
+        return new FlarePagingConfig(2, 0, 8, 20);
+    }
+}
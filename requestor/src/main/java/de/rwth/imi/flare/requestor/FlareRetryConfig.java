@@ -0,0 +1,38 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareRetryConfig {
+
+    @Getter int maxRetries;
+    @Getter long initialBackoffMillis;
+    @Getter long maxBackoffMillis;
+    @Getter int hedgingPercentile;
+    @Getter long minHedgingDelayMillis;
+
+
+    /**
+     * @param maxRetries number of times a failed request is repeated, 0 disables retries
+     * @param initialBackoffMillis upper bound of the randomized wait before the first retry, doubled for each
+     *                             further retry
+     * @param maxBackoffMillis upper bound of the randomized wait before any retry
+     * @param hedgingPercentile latency percentile of recent page requests after which a duplicate request for
+     *                          the same page is sent, the first answer wins, 0 disables hedging
+     * @param minHedgingDelayMillis time a page request is given at least before it is hedged, so a low percentile
+     *                              does not duplicate the requests of pages that are only slightly slower than usual
+     */
+    public FlareRetryConfig(int maxRetries, long initialBackoffMillis, long maxBackoffMillis, int hedgingPercentile,
+                            long minHedgingDelayMillis){
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.hedgingPercentile = hedgingPercentile;
+        this.minHedgingDelayMillis = minHedgingDelayMillis;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareRetryConfig defaultConfig(){
+        return new FlareRetryConfig(3, 200, 5000, 0, 100);
+    }
+}
@@ -0,0 +1,26 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareSemiJoinConfig {
+
+    @Getter int maxDrivingPatients;
+    @Getter int patientsPerSearch;
+
+
+    /**
+     * @param maxDrivingPatients number of patients of the most selective inclusion group up to which the other
+     *                           criteria are only searched among these patients, 0 always searches all patients
+     * @param patientsPerSearch number of patients restricting a single search, keeps the request body small
+     */
+    public FlareSemiJoinConfig(int maxDrivingPatients, int patientsPerSearch){
+        this.maxDrivingPatients = maxDrivingPatients;
+        this.patientsPerSearch = patientsPerSearch;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareSemiJoinConfig defaultConfig(){
+        return new FlareSemiJoinConfig(0, 100);
+    }
+}
@@ -0,0 +1,28 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareServerCapabilities {
+
+    @Getter boolean reverseChainingSupported;
+    @Getter boolean batchSupported;
+
+
+    /**
+     * @param reverseChainingSupported whether the FHIR server supports the _has search parameter, allowing
+     *                                 criteria to be evaluated as Patient searches returning each patient once
+     * @param batchSupported whether the FHIR server accepts batch Bundles, allowing the first pages of several
+     *                       criteria to be requested in one round trip
+     */
+    public FlareServerCapabilities(boolean reverseChainingSupported, boolean batchSupported){
+        this.reverseChainingSupported = reverseChainingSupported;
+        this.batchSupported = batchSupported;
+    }
+
+    /**
+     * @return capabilities assumed when a {@link FhirRequestorConfig} does not provide its own,
+     * only plain searches are used
+     */
+    public static FlareServerCapabilities defaultConfig(){
+        return new FlareServerCapabilities(false, false);
+    }
+}
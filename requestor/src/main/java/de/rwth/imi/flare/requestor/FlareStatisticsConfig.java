@@ -0,0 +1,26 @@
+package de.rwth.imi.flare.requestor;
+import lombok.Getter;
+
+public class FlareStatisticsConfig {
+
+    @Getter int maxAgeSeconds;
+    @Getter int maxEntries;
+
+
+    /**
+     * @param maxAgeSeconds age after which a cached cardinality estimate is refreshed in the background,
+     *                      0 disables the cache, every estimate is counted anew and queries are not reordered
+     * @param maxEntries number of criteria estimates are cached for, the least recently used ones are dropped
+     */
+    public FlareStatisticsConfig(int maxAgeSeconds, int maxEntries){
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return configuration used when a {@link FhirRequestorConfig} does not provide its own
+     */
+    public static FlareStatisticsConfig defaultConfig(){
+        return new FlareStatisticsConfig(3600, 10000);
+    }
+}
@@ -6,12 +6,22 @@ public class FlareThreadPoolConfig {
     @Getter int corePoolSize;
     @Getter int maxPoolSize;
     @Getter int keepAliveTimeSeconds;
+    @Getter boolean virtualThreads;
 
 
     public FlareThreadPoolConfig(int corePoolSize, int maxPoolSize, int keepAliveTimeSeconds){
+        this(corePoolSize, maxPoolSize, keepAliveTimeSeconds, false);
+    }
+
+    /**
+     * @param virtualThreads runs every blocking fetch on a virtual thread of its own instead of the pool,
+     *                       the pool sizes are ignored then and only the connection limit bounds the requests
+     */
+    public FlareThreadPoolConfig(int corePoolSize, int maxPoolSize, int keepAliveTimeSeconds, boolean virtualThreads){
         this.corePoolSize = corePoolSize;
         this.maxPoolSize = maxPoolSize;
         this.keepAliveTimeSeconds = keepAliveTimeSeconds;
+        this.virtualThreads = virtualThreads;
     }
 
 
@@ -0,0 +1,90 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a single search into disjoint searches over consecutive _lastUpdated windows, which can be fetched
+ * concurrently.<br>
+ * The window boundaries are spread evenly between the oldest and the most recently updated matching resource.
+ * The first window is open towards the past and the last one towards the future, so the partitions together
+ * always cover the complete search, even if resources are updated while it is executed.
+ */
+class LastUpdatedPartitioner {
+    private final FhirHttpClient client;
+    private final BundlePageReader pageReader;
+
+    LastUpdatedPartitioner(FhirHttpClient client){
+        this.client = client;
+        this.pageReader = new BundlePageReader();
+    }
+
+    /**
+     * @param searchUri search to be split
+     * @param partitionCount number of partitions wanted
+     * @return search uris of the partitions, only the searchUri itself if it can not be split
+     */
+    List<URI> partition(URI searchUri, int partitionCount) throws IOException, InterruptedException, URISyntaxException {
+        if(partitionCount <= 1){
+            return List.of(searchUri);
+        }
+        Instant oldest = fetchBoundary(searchUri, "_lastUpdated");
+        Instant newest = fetchBoundary(searchUri, "-_lastUpdated");
+        if(oldest == null || newest == null || !newest.isAfter(oldest)){
+            return List.of(searchUri);
+        }
+
+        Duration windowLength = Duration.between(oldest, newest).dividedBy(partitionCount);
+        List<String> boundaries = new ArrayList<>(partitionCount - 1);
+        for(int i = 1; i < partitionCount; i++){
+            Instant boundary = oldest.plus(windowLength.multipliedBy(i)).truncatedTo(ChronoUnit.SECONDS);
+            boundaries.add(URLEncoder.encode(boundary.toString(), StandardCharsets.UTF_8));
+        }
+
+        List<URI> partitions = new ArrayList<>(partitionCount);
+        partitions.add(withParameters(searchUri, "_lastUpdated=lt" + boundaries.get(0)));
+        for(int i = 1; i < boundaries.size(); i++){
+            partitions.add(withParameters(searchUri,
+                    "_lastUpdated=ge" + boundaries.get(i - 1) + "&_lastUpdated=lt" + boundaries.get(i)));
+        }
+        partitions.add(withParameters(searchUri, "_lastUpdated=ge" + boundaries.get(boundaries.size() - 1)));
+        return partitions;
+    }
+
+    /**
+     * Fetches lastUpdated of the first resource of the search sorted by the given order
+     * @return the boundary, or null if the server can not sort by _lastUpdated or returns no resource
+     */
+    private Instant fetchBoundary(URI searchUri, String sortOrder) throws IOException, InterruptedException, URISyntaxException {
+        String lastUpdated;
+        try {
+            lastUpdated = this.client.fetch(this.client.newSearchRequest(searchUri, "_sort=" + sortOrder + "&_count=1"),
+                    this.pageReader::readFirstLastUpdated);
+        } catch (FhirResponseException e) {
+            return null;
+        }
+        if(lastUpdated == null){
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(lastUpdated).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static URI withParameters(URI searchUri, String parameters) throws URISyntaxException {
+        String uri = searchUri.toString();
+        return new URI(uri + (uri.indexOf('?') < 0 ? "?" : "&") + parameters);
+    }
+}
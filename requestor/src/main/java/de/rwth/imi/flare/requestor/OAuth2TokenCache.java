@@ -0,0 +1,186 @@
+package de.rwth.imi.flare.requestor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches OAuth2 access tokens obtained by the client credentials grant, per token endpoint, client and scope.<br>
+ * A token is refreshed in the background once it enters the last fifth of its lifetime, at most a minute before
+ * it expires, while requests keep using the still valid token. Only an expired or missing token makes requests
+ * wait, and concurrent requests wait for the same token request.
+ */
+class OAuth2TokenCache {
+    static final OAuth2TokenCache SHARED = new OAuth2TokenCache(
+            HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build(), Clock.systemUTC());
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Duration MAX_REFRESH_AHEAD = Duration.ofMinutes(1);
+    // Assumed lifetime of tokens returned without expires_in
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 300;
+
+    private final HttpClient httpClient;
+    private final Clock clock;
+    private final Map<TokenKey, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    OAuth2TokenCache(HttpClient httpClient, Clock clock) {
+        this.httpClient = httpClient;
+        this.clock = clock;
+    }
+
+    /**
+     * @return valid access token for the given client
+     */
+    String getToken(TokenKey key, String clientSecret) throws IOException, InterruptedException {
+        return this.tokens.computeIfAbsent(key, unused -> new CachedToken()).get(key, clientSecret);
+    }
+
+    /**
+     * Drops the token if it is still the cached one, so the next request obtains a new token
+     */
+    void invalidate(TokenKey key, String token) {
+        CachedToken cachedToken = this.tokens.get(key);
+        if (cachedToken != null) {
+            cachedToken.invalidate(token);
+        }
+    }
+
+    private CompletableFuture<AccessToken> requestToken(TokenKey key, String clientSecret) {
+        String credentials = URLEncoder.encode(key.clientId(), StandardCharsets.UTF_8) + ":"
+                + URLEncoder.encode(clientSecret, StandardCharsets.UTF_8);
+        String body = "grant_type=client_credentials"
+                + (key.scope().isEmpty() ? "" : "&scope=" + URLEncoder.encode(key.scope(), StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(key.tokenUri())
+                .timeout(Duration.ofSeconds(30))
+                .header("Authorization", "Basic " + Base64.getEncoder()
+                        .encodeToString(credentials.getBytes(StandardCharsets.UTF_8)))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        Instant requestedAt = this.clock.instant();
+        return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                .thenApply(response -> {
+                    try (InputStream responseBody = response.body()) {
+                        if (response.statusCode() / 100 != 2) {
+                            throw new FhirResponseException(response.statusCode());
+                        }
+                        return readToken(responseBody, requestedAt);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private static AccessToken readToken(InputStream body, Instant requestedAt) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed token response");
+            }
+            String accessToken = null;
+            long expiresIn = DEFAULT_EXPIRES_IN_SECONDS;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                switch (fieldName) {
+                    case "access_token" -> accessToken = parser.getValueAsString();
+                    case "expires_in" -> expiresIn = parser.getValueAsLong(DEFAULT_EXPIRES_IN_SECONDS);
+                    default -> parser.skipChildren();
+                }
+            }
+            if (accessToken == null) {
+                throw new IOException("Token response does not contain an access_token");
+            }
+            // Measured from the request, so the token is never considered valid for longer than it is
+            Duration lifetime = Duration.ofSeconds(expiresIn);
+            Duration refreshAhead = lifetime.dividedBy(5).compareTo(MAX_REFRESH_AHEAD) < 0
+                    ? lifetime.dividedBy(5)
+                    : MAX_REFRESH_AHEAD;
+            Instant expiresAt = requestedAt.plus(lifetime);
+            return new AccessToken(accessToken, expiresAt.minus(refreshAhead), expiresAt);
+        }
+    }
+
+    record TokenKey(URI tokenUri, String clientId, String scope) {
+    }
+
+    private record AccessToken(String value, Instant refreshAt, Instant expiresAt) {
+    }
+
+    /**
+     * Current token of a single client, together with the token request in flight
+     */
+    private class CachedToken {
+        // Guarded by this
+        private AccessToken current;
+        private CompletableFuture<AccessToken> pendingRequest;
+
+        String get(TokenKey key, String clientSecret) throws IOException, InterruptedException {
+            CompletableFuture<AccessToken> request;
+            synchronized (this) {
+                Instant now = OAuth2TokenCache.this.clock.instant();
+                if (this.current != null && now.isBefore(this.current.refreshAt())) {
+                    return this.current.value();
+                }
+                request = this.pendingRequest;
+                if (request == null) {
+                    CompletableFuture<AccessToken> started = requestToken(key, clientSecret);
+                    this.pendingRequest = started;
+                    started.whenComplete((token, error) -> onRequestCompleted(started, token));
+                    request = started;
+                }
+                if (this.current != null && now.isBefore(this.current.expiresAt())) {
+                    return this.current.value();
+                }
+            }
+            try {
+                return request.get().value();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                        ? e.getCause().getCause()
+                        : e.getCause();
+                if (cause instanceof UncheckedIOException uncheckedIOException) {
+                    throw uncheckedIOException.getCause();
+                }
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new IOException("Token request failed", cause);
+            }
+        }
+
+        private synchronized void onRequestCompleted(CompletableFuture<AccessToken> request, AccessToken token) {
+            if (this.pendingRequest == request) {
+                this.pendingRequest = null;
+            }
+            if (token != null) {
+                this.current = token;
+            }
+        }
+
+        synchronized void invalidate(String token) {
+            if (this.current != null && this.current.value().equals(token)) {
+                this.current = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent page requests to estimate percentiles, e.g. for deciding when
+ * a request is slow enough to be hedged
+ */
+class PageLatencyTracker {
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 20;
+
+    // Guarded by this
+    private final long[] latenciesNanos = new long[WINDOW_SIZE];
+    private int samples;
+    private int nextIndex;
+
+    synchronized void record(long latencyNanos){
+        this.latenciesNanos[this.nextIndex] = latencyNanos;
+        this.nextIndex = (this.nextIndex + 1) % WINDOW_SIZE;
+        this.samples = Math.min(this.samples + 1, WINDOW_SIZE);
+    }
+
+    /**
+     * @param percentile percentile between 1 and 100
+     * @return latency below which the given percentage of recent requests completed,
+     * -1 while there are too few samples for a meaningful estimate
+     */
+    long percentileNanos(int percentile){
+        long[] window;
+        synchronized (this){
+            if(this.samples < MIN_SAMPLES){
+                return -1;
+            }
+            window = Arrays.copyOf(this.latenciesNanos, this.samples);
+        }
+        Arrays.sort(window);
+        int index = (int) Math.ceil(percentile / 100.0 * window.length) - 1;
+        return window[Math.max(0, Math.min(index, window.length - 1))];
+    }
+}
@@ -0,0 +1,186 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Bounded pipeline fetching the pages of a single search ahead of its consumer.<br>
+ * The GET for the next page is started as soon as the next link of the current page has been read, while the
+ * remaining entries of the current page are still being parsed on a worker thread. At most {@code capacity} pages
+ * are being fetched or waiting to be consumed at any time, further fetches wait until the consumer catches up.
+ * A consumer giving up on the search has to {@link #close()} the pipeline, so it does not keep fetching.
+ */
+class PagePrefetcher {
+    private final PageFetcher fetcher;
+    private final Executor executor;
+    private final int capacity;
+    private final BlockingQueue<FetchResult> fetchedPages;
+
+    // Guarded by this
+    private int reservedSlots;
+    private int pagesStarted;
+    private int pagesTaken;
+    private URI pendingPageUri;
+    private boolean lastPageSeen;
+    private boolean closed;
+    private final Set<Thread> fetchingThreads = new HashSet<>();
+
+    /**
+     * Starts fetching the first page of the search
+     * @param fetcher executes the request for a single page
+     * @param searchUri uri of the search, fetched by the initial request
+     * @param capacity maximum number of pages in flight or buffered, at least 1
+     * @param executor executes the page fetches
+     */
+    PagePrefetcher(PageFetcher fetcher, URI searchUri, int capacity, Executor executor){
+        this(fetcher, searchUri, true, capacity, executor);
+    }
+
+    /**
+     * Starts fetching the given page of the search
+     * @param fetcher executes the request for a single page
+     * @param pageUri uri of the first page fetched
+     * @param initialRequest whether the pageUri is the search itself or a next link of a page obtained elsewhere
+     * @param capacity maximum number of pages in flight or buffered, at least 1
+     * @param executor executes the page fetches
+     */
+    PagePrefetcher(PageFetcher fetcher, URI pageUri, boolean initialRequest, int capacity, Executor executor){
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.capacity = Math.max(1, capacity);
+        this.fetchedPages = new LinkedBlockingQueue<>();
+        synchronized (this){
+            this.reservedSlots = 1;
+            this.pagesStarted = 1;
+        }
+        startFetch(pageUri, initialRequest);
+    }
+
+    /**
+     * Takes the next fetched page, blocking until one is available
+     * @return next page of the search, or null if all pages have been taken
+     */
+    SearchPage nextPage() throws IOException, URISyntaxException, InterruptedException {
+        synchronized (this){
+            if(this.closed || this.lastPageSeen && this.pagesTaken == this.pagesStarted){
+                return null;
+            }
+        }
+        FetchResult result = this.fetchedPages.take();
+        synchronized (this){
+            this.pagesTaken++;
+            this.reservedSlots--;
+            if(this.pendingPageUri != null){
+                URI pageUri = this.pendingPageUri;
+                this.pendingPageUri = null;
+                reserveAndStartFetch(pageUri);
+            }
+        }
+        return result.get();
+    }
+
+    /**
+     * Stops the pipeline: pages not started yet are not fetched any more, and the threads fetching pages
+     * are interrupted, which aborts their requests
+     */
+    void close(){
+        synchronized (this){
+            this.closed = true;
+            this.pendingPageUri = null;
+            this.fetchingThreads.forEach(Thread::interrupt);
+        }
+    }
+
+    private void startFetch(URI pageUri, boolean initialRequest){
+        this.executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            synchronized (this){
+                if(this.closed){
+                    return;
+                }
+                this.fetchingThreads.add(thread);
+            }
+            FetchResult result;
+            try {
+                result = new FetchResult(this.fetcher.fetch(pageUri, initialRequest, this::onNextLink), null);
+            } catch (IOException | URISyntaxException | InterruptedException | RuntimeException e) {
+                synchronized (this){
+                    this.lastPageSeen = true;
+                }
+                result = new FetchResult(null, e);
+            } finally {
+                synchronized (this){
+                    this.fetchingThreads.remove(thread);
+                }
+                // An interrupt by close arriving after the fetch completed must not hit the next task of the thread
+                Thread.interrupted();
+            }
+            this.fetchedPages.add(result);
+        });
+    }
+
+    /**
+     * Called by the page reader once it knows the next link of a page, schedules the fetch of the next page
+     * if there is a free slot, otherwise leaves it to the consumer to start it
+     */
+    private synchronized void onNextLink(URI nextPageUri){
+        if(this.closed){
+            return;
+        }
+        if(nextPageUri == null){
+            this.lastPageSeen = true;
+        }
+        else if(this.reservedSlots < this.capacity){
+            reserveAndStartFetch(nextPageUri);
+        }
+        else {
+            this.pendingPageUri = nextPageUri;
+        }
+    }
+
+    private void reserveAndStartFetch(URI pageUri){
+        this.reservedSlots++;
+        this.pagesStarted++;
+        startFetch(pageUri, false);
+    }
+
+    /**
+     * Fetches and reads a single page
+     */
+    @FunctionalInterface
+    interface PageFetcher {
+        /**
+         * @param pageUri uri of the page
+         * @param initialRequest whether this is the initial search request or a next link
+         * @param nextLinkListener has to be called exactly once with the next link of the page, or null if there is none
+         * @return the fetched page
+         */
+        SearchPage fetch(URI pageUri, boolean initialRequest, Consumer<URI> nextLinkListener)
+                throws IOException, URISyntaxException, InterruptedException;
+    }
+
+    private record FetchResult(SearchPage page, Exception error) {
+        SearchPage get() throws IOException, URISyntaxException, InterruptedException {
+            if(this.error instanceof IOException e){
+                throw e;
+            }
+            if(this.error instanceof URISyntaxException e){
+                throw e;
+            }
+            if(this.error instanceof InterruptedException e){
+                throw e;
+            }
+            if(this.error instanceof RuntimeException e){
+                throw e;
+            }
+            return this.page;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the _count of new searches per resource type, based on the latency and size of the pages observed
+ * for that type so far.<br>
+ * Each full page updates a smoothed estimate of the time and bytes a single resource costs. The page size is
+ * then set so a page takes about the target time without exceeding the byte limit, at most doubling per page
+ * so a single fast page does not provoke a timeout, but shrinking at once when pages get too slow. The learned
+ * sizes are kept for the lifetime of the tuner, so later queries start with them.
+ */
+class PageSizeTuner {
+    // Weight of the newest page in the smoothed cost estimates
+    private static final double SMOOTHING = 0.3;
+    private static final int MAX_GROWTH_FACTOR = 2;
+    // Pages with fewer resources, e.g. the last page of a search, are dominated by fixed costs
+    private static final int MIN_FILL_DIVISOR = 2;
+
+    private final FlarePageSizeConfig config;
+    private final String configuredPageCount;
+    private final Map<String, PageCost> costs = new ConcurrentHashMap<>();
+
+    /**
+     * @param config bounds and targets of the page size
+     * @param configuredPageCount page count used if adapting is disabled, and initially if it is a number
+     */
+    PageSizeTuner(FlarePageSizeConfig config, String configuredPageCount) {
+        this.config = config;
+        this.configuredPageCount = configuredPageCount;
+    }
+
+    /**
+     * @return value of the _count parameter for a new search of the given resource type,
+     * empty to use the server default
+     */
+    String getPageCount(String resourceType) {
+        if (!isEnabled()) {
+            return this.configuredPageCount;
+        }
+        PageCost cost = this.costs.get(resourceType);
+        return String.valueOf(cost == null ? initialPageSize() : cost.pageSize());
+    }
+
+    /**
+     * @return observer recording the pages of a search of the given resource type
+     */
+    PageObserver observer(String resourceType) {
+        if (!isEnabled()) {
+            return PageObserver.NONE;
+        }
+        return (pageSize, resources, bytes, latencyNanos) -> record(resourceType, pageSize, resources, bytes, latencyNanos);
+    }
+
+    private void record(String resourceType, int pageSize, int resources, long bytes, long latencyNanos) {
+        if (resources == 0 || resources < pageSize / MIN_FILL_DIVISOR) {
+            return;
+        }
+        double nanosPerResource = (double) latencyNanos / resources;
+        double bytesPerResource = (double) bytes / resources;
+        this.costs.compute(resourceType, (unused, cost) -> {
+            if (cost == null) {
+                return nextCost(initialPageSize(), nanosPerResource, bytesPerResource);
+            }
+            return nextCost(cost.pageSize(),
+                    smooth(cost.nanosPerResource(), nanosPerResource),
+                    smooth(cost.bytesPerResource(), bytesPerResource));
+        });
+    }
+
+    private PageCost nextCost(int currentPageSize, double nanosPerResource, double bytesPerResource) {
+        double byLatency = TimeUnit.MILLISECONDS.toNanos(this.config.getTargetPageMillis()) / Math.max(nanosPerResource, 1);
+        double byBytes = this.config.getMaxPageBytes() / Math.max(bytesPerResource, 1);
+        long wanted = (long) Math.min(Math.min(byLatency, byBytes), (double) currentPageSize * MAX_GROWTH_FACTOR);
+        return new PageCost(clamp(wanted), nanosPerResource, bytesPerResource);
+    }
+
+    private int initialPageSize() {
+        try {
+            return clamp(Long.parseLong(this.configuredPageCount.trim()));
+        } catch (NumberFormatException e) {
+            return this.config.getMinPageSize();
+        }
+    }
+
+    private int clamp(long pageSize) {
+        return (int) Math.max(this.config.getMinPageSize(), Math.min(this.config.getMaxPageSize(), pageSize));
+    }
+
+    private boolean isEnabled() {
+        return this.config.getMaxPageSize() > 0;
+    }
+
+    private static double smooth(double previous, double observed) {
+        return previous + SMOOTHING * (observed - previous);
+    }
+
+    private record PageCost(int pageSize, double nanosPerResource, double bytesPerResource) {
+    }
+
+    /**
+     * Notified about every page fetched by a search
+     */
+    @FunctionalInterface
+    interface PageObserver {
+        PageObserver NONE = (pageSize, resources, bytes, latencyNanos) -> {};
+
+        /**
+         * @param pageSize number of resources per page requested by the search
+         * @param resources number of resources on the page
+         * @param bytes size of the page after decompression
+         * @param latencyNanos time from sending the request until the page was read
+         */
+        void pageFetched(int pageSize, int resources, long bytes, long latencyNanos);
+    }
+}
@@ -0,0 +1,178 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Publishes patients that only become available all at once, like the result of a bulk export, as the subscriber
+ * demands them. The patients are requested once there is demand, cancelling the subscription cancels the request.
+ * Only a single subscriber is supported, as the patients are requested once.
+ */
+class PatientIdPublisher implements Flow.Publisher<FlareResource> {
+    private final Supplier<CompletableFuture<? extends Collection<String>>> patientIdRequest;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param patientIdRequest starts requesting the patients, called once there is demand
+     */
+    PatientIdPublisher(Supplier<CompletableFuture<? extends Collection<String>>> patientIdRequest) {
+        this.patientIdRequest = patientIdRequest;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super FlareResource> subscriber) {
+        if (!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Patients have already been subscribed to"));
+            return;
+        }
+        subscriber.onSubscribe(new PatientIdSubscription(subscriber));
+    }
+
+    private class PatientIdSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super FlareResource> subscriber;
+        // Serializes drain, signals are only sent by the thread that incremented it from 0
+        private final AtomicInteger drainRequests = new AtomicInteger();
+
+        // Guarded by this
+        private Deque<String> patientIds;
+        private CompletableFuture<? extends Collection<String>> request;
+        private long demand;
+        private boolean done;
+        private Throwable error;
+
+        PatientIdSubscription(Flow.Subscriber<? super FlareResource> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    this.error = new IllegalArgumentException("Requested " + n + " patients, must be positive");
+                } else {
+                    this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            CompletableFuture<? extends Collection<String>> pending;
+            synchronized (this) {
+                this.done = true;
+                this.patientIds = null;
+                pending = this.request;
+            }
+            if (pending != null) {
+                pending.cancel(true);
+            }
+        }
+
+        /**
+         * Emits the patients as far as demanded once they are available, completes the subscriber once all have
+         * been emitted and otherwise starts requesting them if there is demand
+         */
+        private void drain() {
+            if (this.drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                emitAvailable();
+                boolean startRequest = false;
+                boolean complete = false;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (this.done) {
+                        // Cancelled or terminated
+                    } else if (this.error != null) {
+                        this.done = true;
+                        failure = this.error;
+                    } else if (this.patientIds != null && this.patientIds.isEmpty()) {
+                        this.done = true;
+                        complete = true;
+                    } else if (this.request == null && this.demand > 0) {
+                        startRequest = true;
+                    }
+                }
+                if (failure != null) {
+                    this.subscriber.onError(failure);
+                } else if (complete) {
+                    this.subscriber.onComplete();
+                }
+                if (startRequest) {
+                    startRequest();
+                }
+            } while (this.drainRequests.decrementAndGet() != 0);
+        }
+
+        private void emitAvailable() {
+            while (true) {
+                String patientId;
+                synchronized (this) {
+                    if (this.done || this.error != null || this.demand == 0 || this.patientIds == null
+                            || this.patientIds.isEmpty()) {
+                        return;
+                    }
+                    patientId = this.patientIds.poll();
+                    if (this.demand != Long.MAX_VALUE) {
+                        this.demand--;
+                    }
+                }
+                this.subscriber.onNext(new FlareResourceImpl(patientId));
+            }
+        }
+
+        private void startRequest() {
+            CompletableFuture<? extends Collection<String>> pending;
+            try {
+                pending = patientIdRequest.get();
+            } catch (RuntimeException e) {
+                pending = CompletableFuture.failedFuture(e);
+            }
+            boolean cancelled;
+            synchronized (this) {
+                this.request = pending;
+                cancelled = this.done;
+            }
+            if (cancelled) {
+                pending.cancel(true);
+                return;
+            }
+            pending.whenComplete((patients, requestError) -> {
+                synchronized (this) {
+                    if (this.done) {
+                        // Cancelled meanwhile
+                    } else if (requestError != null) {
+                        this.error = unwrap(requestError);
+                    } else {
+                        this.patientIds = new ArrayDeque<>(patients);
+                    }
+                }
+                drain();
+            });
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -0,0 +1,185 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Receives a whole response body into buffers of a {@link BufferPool}, instead of collecting it into a single
+ * array that has to be allocated anew for every page. The body is read as a {@link Body} stream, closing it
+ * returns the buffers to the pool. Further chunks are only requested once the received ones have been copied,
+ * so while the pool has no buffer left the HTTP client stops reading the response.
+ */
+class PooledBodySubscriber implements HttpResponse.BodySubscriber<PooledBodySubscriber.Body> {
+    private final BufferPool pool;
+    private final CompletableFuture<Body> body = new CompletableFuture<>();
+    // Guarded by this, the signals of the HTTP client race with buffers becoming available
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final Deque<ByteBuffer> uncopied = new ArrayDeque<>();
+    private ByteBuffer current;
+    private Flow.Subscription subscription;
+    private boolean requested;
+    private boolean complete;
+    private boolean terminated;
+
+    PooledBodySubscriber(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public CompletionStage<Body> getBody() {
+        return this.body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            this.subscription = subscription;
+            this.requested = true;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        synchronized (this) {
+            this.requested = false;
+            this.uncopied.addAll(items);
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        List<ByteBuffer> held;
+        synchronized (this) {
+            this.terminated = true;
+            held = List.copyOf(this.buffers);
+            this.buffers.clear();
+            this.uncopied.clear();
+        }
+        this.body.completeExceptionally(throwable);
+        this.pool.received(held.size());
+        held.forEach(this.pool::release);
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            this.complete = true;
+        }
+        drain();
+    }
+
+    /**
+     * Copies the received chunks as far as buffers are available, then requests the next chunk or completes
+     * the body. Called again by the pool once a buffer is released, if it had none left.
+     */
+    private void drain() {
+        Flow.Subscription next = null;
+        Body received = null;
+        synchronized (this) {
+            if (this.terminated) {
+                return;
+            }
+            while (!this.uncopied.isEmpty()) {
+                ByteBuffer item = this.uncopied.peek();
+                if (this.current == null || !this.current.hasRemaining()) {
+                    this.current = this.pool.acquire(this::drain);
+                    if (this.current == null) {
+                        return;
+                    }
+                    this.buffers.add(this.current);
+                }
+                int length = Math.min(item.remaining(), this.current.remaining());
+                this.current.put(this.current.position(), item, item.position(), length);
+                this.current.position(this.current.position() + length);
+                item.position(item.position() + length);
+                if (!item.hasRemaining()) {
+                    this.uncopied.poll();
+                }
+            }
+            if (this.complete) {
+                this.terminated = true;
+                this.buffers.forEach(ByteBuffer::flip);
+                this.pool.received(this.buffers.size());
+                received = new Body(this.buffers, this.pool);
+            } else if (!this.requested) {
+                this.requested = true;
+                next = this.subscription;
+            }
+        }
+        if (received != null) {
+            this.body.complete(received);
+        } else if (next != null) {
+            next.request(1);
+        }
+    }
+
+    /**
+     * Received body, must be closed once read so the buffers can be reused
+     */
+    static class Body extends InputStream {
+        private final List<ByteBuffer> buffers;
+        private final BufferPool pool;
+        private int index;
+        private boolean closed;
+
+        private Body(List<ByteBuffer> buffers, BufferPool pool) {
+            this.buffers = buffers;
+            this.pool = pool;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = nextReadable();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = nextReadable();
+            if (buffer == null) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = nextReadable();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        private ByteBuffer nextReadable() {
+            while (!this.closed && this.index < this.buffers.size()) {
+                ByteBuffer buffer = this.buffers.get(this.index);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                this.index++;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.buffers.forEach(this.pool::release);
+            }
+        }
+    }
+}
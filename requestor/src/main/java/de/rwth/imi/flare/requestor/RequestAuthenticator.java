@@ -0,0 +1,37 @@
+package de.rwth.imi.flare.requestor;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+
+/**
+ * Adds credentials to each request sent to the FHIR server.<br>
+ * In contrast to a {@link java.net.Authenticator}, which only answers a 401 challenge, the credentials are sent
+ * with the first request, saving a round trip per connection, and may be any header, e.g. a bearer token.
+ */
+@FunctionalInterface
+public interface RequestAuthenticator {
+
+    /**
+     * Adds the credentials to a request about to be sent
+     * @param request builder of the request, initialized with everything but the credentials
+     * @throws IOException Thrown if the credentials can not be obtained, e.g. from a token endpoint
+     * @throws InterruptedException Thrown when interrupted while obtaining the credentials
+     */
+    void authenticate(HttpRequest.Builder request) throws IOException, InterruptedException;
+
+    /**
+     * Called when the server rejected credentials added by this authenticator with a 401
+     * @param rejectedRequest request carrying the rejected credentials
+     * @return whether the request should be sent once more, since new credentials will be added
+     */
+    default boolean onRejected(HttpRequest rejectedRequest) {
+        return false;
+    }
+
+    /**
+     * @return authenticator adding no credentials
+     */
+    static RequestAuthenticator none() {
+        return request -> {};
+    }
+}
@@ -0,0 +1,140 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.model.Criterion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Rewrites criteria into parameters of a Patient search using reverse chaining, e.g.
+ * {@code Observation?code=X} becomes {@code _has:Observation:subject:code=X}.<br>
+ * The server then returns each matching patient once instead of every matching resource, and several of
+ * these parameters combined in one Patient search let the server intersect the criteria.
+ * <p>
+ * A reverse chained parameter only constrains a single parameter of the referencing resource, two of them
+ * may be fulfilled by different resources of the same patient. Criteria are therefore only rewritten when
+ * their search consists of a single parameter, all other criteria are left to the regular search.
+ */
+public class ReverseChainPlanner {
+    private static final String PATIENT = "Patient";
+
+    /**
+     * Search parameter referencing the patient, per resource type that can be reverse chained
+     */
+    private static final Map<String, String> PATIENT_REFERENCE_PARAMETERS = Map.ofEntries(
+            Map.entry("Observation", "subject"),
+            Map.entry("Condition", "subject"),
+            Map.entry("Specimen", "subject"),
+            Map.entry("Encounter", "subject"),
+            Map.entry("Procedure", "subject"),
+            Map.entry("MedicationAdministration", "subject"),
+            Map.entry("MedicationStatement", "subject"),
+            Map.entry("DiagnosticReport", "subject"),
+            Map.entry("Immunization", "patient"));
+
+    /**
+     * Rewrites criteria of which at least one has to be fulfilled
+     *
+     * @param criteria criteria combined by OR, all have to search the same resource type by the same parameter
+     * @return url encoded Patient search parameters matching the union of the criteria,
+     * empty if the criteria can not be rewritten
+     */
+    public Optional<String> anyOf(List<Criterion> criteria) {
+        if (criteria.isEmpty()) {
+            return Optional.empty();
+        }
+        List<ParsedSearch> searches = criteria.stream().map(ParsedSearch::of).toList();
+        String resourceType = searches.get(0).resourceType();
+        if (searches.size() == 1 && PATIENT.equals(resourceType)) {
+            // All parameters of a Patient search constrain the same resource
+            return searches.get(0).parameters().isEmpty()
+                    ? Optional.empty()
+                    : Optional.of(String.join("&", searches.get(0).parameters()));
+        }
+
+        String parameterName = null;
+        List<String> values = new ArrayList<>();
+        for (ParsedSearch search : searches) {
+            if (!search.resourceType().equals(resourceType) || search.parameters().size() != 1) {
+                return Optional.empty();
+            }
+            String parameter = search.parameters().get(0);
+            int separator = parameter.indexOf('=');
+            if (separator <= 0) {
+                return Optional.empty();
+            }
+            String name = parameter.substring(0, separator);
+            if (parameterName != null && !parameterName.equals(name)) {
+                return Optional.empty();
+            }
+            parameterName = name;
+            values.add(parameter.substring(separator + 1));
+        }
+
+        // Comma separated values are combined by OR within a single parameter
+        String value = String.join(",", values);
+        if (PATIENT.equals(resourceType)) {
+            return Optional.of(parameterName + "=" + value);
+        }
+        String referenceParameter = PATIENT_REFERENCE_PARAMETERS.get(resourceType);
+        if (referenceParameter == null) {
+            return Optional.empty();
+        }
+        return Optional.of("_has:" + resourceType + ":" + referenceParameter + ":" + parameterName + "=" + value);
+    }
+
+    /**
+     * Rewrites criteria which all have to be fulfilled
+     *
+     * @param criteria criteria combined by AND
+     * @return url encoded Patient search parameters matching the intersection of the criteria,
+     * empty if any of the criteria can not be rewritten
+     */
+    public Optional<String> allOf(List<Criterion> criteria) {
+        return allOfAnyOf(criteria.stream().map(List::of).toList());
+    }
+
+    /**
+     * Rewrites sets of alternatives which all have to be fulfilled
+     *
+     * @param alternatives sets of criteria combined by OR, the sets combined by AND
+     * @return url encoded Patient search parameters matching the intersection of the sets,
+     * empty if any of the sets can not be rewritten
+     */
+    public Optional<String> allOfAnyOf(List<List<Criterion>> alternatives) {
+        if (alternatives.isEmpty()) {
+            return Optional.empty();
+        }
+        List<String> parameters = new ArrayList<>();
+        for (List<Criterion> criteria : alternatives) {
+            Optional<String> parameter = anyOf(criteria);
+            if (parameter.isEmpty()) {
+                return Optional.empty();
+            }
+            parameters.add(parameter.get());
+        }
+        return Optional.of(String.join("&", parameters));
+    }
+
+    /**
+     * Search built for a single criterion, split into its resource type and url encoded parameters
+     */
+    private record ParsedSearch(String resourceType, List<String> parameters) {
+        static ParsedSearch of(Criterion criterion) {
+            String query = SearchQueryStringBuilder.constructQueryString(criterion);
+            int separator = query.indexOf('?');
+            String resourceType = separator < 0 ? query : query.substring(0, separator);
+            List<String> parameters = new ArrayList<>();
+            if (separator >= 0) {
+                for (String parameter : query.substring(separator + 1).split("&")) {
+                    if (!parameter.isEmpty()) {
+                        parameters.add(parameter);
+                    }
+                }
+            }
+            return new ParsedSearch(resourceType, parameters);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package de.rwth.imi.flare.requestor;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Single page of a FHIR search, reduced to what Flare needs from it
+ */
+@Data
+@AllArgsConstructor
+public class SearchPage {
+    /**
+     * Patient ids referenced by the resources of this page, in bundle order
+     */
+    private List<String> patientIds;
+    /**
+     * Link to the next page of results, null if this is the last page
+     */
+    private URI nextPageUri;
+}
@@ -0,0 +1,71 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures where the time of a single search goes, for explaining slow queries.
+ * Updated concurrently by all pages and partitions of the search, retried requests are included.
+ */
+public class SearchProfile {
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong resources = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+
+    /**
+     * @param nanos time a request waited for a connection permit
+     */
+    void queued(long nanos) {
+        this.queueWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param nanos time from sending a request until its whole body was received
+     */
+    void fetched(long nanos) {
+        this.fetchNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param nanos time spent decompressing and reading a received body
+     */
+    void parsed(long nanos) {
+        this.parseNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param resources number of resources on the page
+     * @param bytes size of the page after decompression
+     */
+    void pageRead(int resources, long bytes) {
+        this.pages.incrementAndGet();
+        this.resources.addAndGet(resources);
+        this.bytes.addAndGet(bytes);
+    }
+
+    public long getPages() {
+        return this.pages.get();
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public long getResources() {
+        return this.resources.get();
+    }
+
+    public long getQueueWaitNanos() {
+        return this.queueWaitNanos.get();
+    }
+
+    public long getFetchNanos() {
+        return this.fetchNanos.get();
+    }
+
+    public long getParseNanos() {
+        return this.parseNanos.get();
+    }
+}
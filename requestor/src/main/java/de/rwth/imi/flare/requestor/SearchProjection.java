@@ -0,0 +1,80 @@
+package de.rwth.imi.flare.requestor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Determines which elements the FHIR server should return per resource type, using the _elements search parameter.<br>
+ * Flare only needs the reference to the patient from each resource, restricting the returned elements to it
+ * shrinks the search bundles considerably.
+ */
+public class SearchProjection {
+    private final Map<String, String> elementsByResourceType;
+
+    /**
+     * @param elementsByResourceType value of the _elements parameter keyed by FHIR resource type
+     */
+    public SearchProjection(Map<String, String> elementsByResourceType){
+        this.elementsByResourceType = Map.copyOf(elementsByResourceType);
+    }
+
+    /**
+     * @return projection onto the patient reference for all resource types supported by Flare
+     */
+    public static SearchProjection defaultProjection(){
+        Map<String, String> elements = new HashMap<>();
+        elements.put("Patient", "id");
+        elements.put("Observation", "subject");
+        elements.put("Condition", "subject");
+        elements.put("Specimen", "subject");
+        elements.put("Encounter", "subject");
+        elements.put("Procedure", "subject");
+        elements.put("MedicationAdministration", "subject");
+        elements.put("MedicationStatement", "subject");
+        elements.put("DiagnosticReport", "subject");
+        elements.put("Immunization", "patient");
+        elements.put("Consent", "patient");
+        return new SearchProjection(elements);
+    }
+
+    /**
+     * @return projection that never restricts the returned elements
+     */
+    public static SearchProjection none(){
+        return new SearchProjection(Map.of());
+    }
+
+    /**
+     * Parses per resource type overrides in the form "Observation=subject;Consent=patient" and
+     * applies them on top of the {@link #defaultProjection() default projection}.
+     * An empty element list removes the projection for that resource type.
+     * @param overrides semicolon separated list of resourceType=elements pairs, may be empty
+     * @return default projection with the overrides applied
+     */
+    public static SearchProjection withOverrides(String overrides){
+        Map<String, String> elements = new HashMap<>(defaultProjection().elementsByResourceType);
+        for(String override : overrides.split(";")){
+            if(override.isBlank()){
+                continue;
+            }
+            String[] typeAndElements = override.split("=", 2);
+            String resourceType = typeAndElements[0].trim();
+            String projectedElements = typeAndElements.length > 1 ? typeAndElements[1].trim() : "";
+            if(projectedElements.isEmpty()){
+                elements.remove(resourceType);
+            } else {
+                elements.put(resourceType, projectedElements);
+            }
+        }
+        return new SearchProjection(elements);
+    }
+
+    /**
+     * @param resourceType FHIR resource type being searched
+     * @return value of the _elements parameter, empty if the resources should be returned in full
+     */
+    public Optional<String> getElements(String resourceType){
+        return Optional.ofNullable(this.elementsByResourceType.get(resourceType));
+    }
+}
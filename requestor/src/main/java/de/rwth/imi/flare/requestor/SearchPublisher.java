@@ -0,0 +1,315 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the patients of a paged FHIR search without blocking any thread while waiting for the server.<br>
+ * Pages are requested asynchronously and only while the subscriber's demand exceeds the patients already
+ * buffered, a slow subscriber therefore pauses the paging. A subscriber demanding all patients gets the next page
+ * requested as soon as the link to it has been read, while the entries of the current page are still parsed.
+ * A search split into partitions pages through all of them concurrently. Only a single subscriber is supported, as the search is executed once.
+ */
+class SearchPublisher implements Flow.Publisher<FlareResource> {
+    private final FhirHttpClient client;
+    private final Supplier<CompletableFuture<List<URI>>> partitionPlanner;
+    private final String pagecount;
+    private final PageSizeTuner.PageObserver pageObserver;
+    private final SearchProfile profile;
+    private final BundlePageReader pageReader = new BundlePageReader();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    // Value of the _elements parameter, null once the server rejected it or if no projection is wanted
+    private volatile String elements;
+
+    /**
+     * @param client shared client the pages are fetched with
+     * @param partitionPlanner provides the search urls of the partitions, started once there is demand
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @param pageObserver notified about the latency and size of every page fetched
+     */
+    SearchPublisher(FhirHttpClient client, Supplier<CompletableFuture<List<URI>>> partitionPlanner, String pagecount,
+                    String elements, PageSizeTuner.PageObserver pageObserver) {
+        this(client, partitionPlanner, pagecount, elements, pageObserver, null);
+    }
+
+    /**
+     * @param client shared client the pages are fetched with
+     * @param partitionPlanner provides the search urls of the partitions, started once there is demand
+     * @param pagecount number of resources per page, empty to use the server default
+     * @param elements elements the server should restrict the returned resources to, null to get full resources
+     * @param pageObserver notified about the latency and size of every page fetched
+     * @param profile records the requests and pages of the search, null if it is not profiled
+     */
+    SearchPublisher(FhirHttpClient client, Supplier<CompletableFuture<List<URI>>> partitionPlanner, String pagecount,
+                    String elements, PageSizeTuner.PageObserver pageObserver, SearchProfile profile) {
+        this.client = client;
+        this.profile = profile;
+        this.partitionPlanner = partitionPlanner;
+        this.pagecount = pagecount;
+        this.elements = elements;
+        this.pageObserver = pageObserver;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super FlareResource> subscriber) {
+        if (!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Search has already been subscribed to"));
+            return;
+        }
+        subscriber.onSubscribe(new SearchSubscription(subscriber));
+    }
+
+    /**
+     * Pages of a single partition still to be fetched
+     */
+    private static class Cursor {
+        private String latencyClass;
+        private URI nextPageUri;
+        private boolean initialRequest = true;
+        private boolean fetching;
+        // Pages whose next link has been read but whose entries are still being parsed
+        private int parsing;
+    }
+
+    private class SearchSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super FlareResource> subscriber;
+        // Serializes drain, signals are only sent by the thread that incremented it from 0
+        private final AtomicInteger drainRequests = new AtomicInteger();
+
+        // Guarded by this
+        private final Deque<String> patientIds = new ArrayDeque<>();
+        private long demand;
+        private List<Cursor> cursors;
+        private boolean planning;
+        private boolean done;
+        private Throwable error;
+
+        SearchSubscription(Flow.Subscriber<? super FlareResource> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    this.error = new IllegalArgumentException("Requested " + n + " patients, must be positive");
+                } else {
+                    this.demand = this.demand + n < 0 ? Long.MAX_VALUE : this.demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                this.done = true;
+                this.patientIds.clear();
+            }
+        }
+
+        /**
+         * Emits buffered patients as far as demanded, completes the subscriber once all partitions are exhausted
+         * and otherwise starts fetching pages if the buffer does not cover the demand
+         */
+        private void drain() {
+            if (this.drainRequests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                emitBuffered();
+                List<Cursor> toFetch = new ArrayList<>();
+                boolean startPlanning = false;
+                boolean complete = false;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (this.done) {
+                        // Cancelled or terminated
+                    } else if (this.error != null) {
+                        this.done = true;
+                        failure = this.error;
+                    } else if (this.cursors == null) {
+                        startPlanning = !this.planning && this.demand > 0;
+                        this.planning |= startPlanning;
+                    } else if (this.patientIds.isEmpty() && this.cursors.stream()
+                            .allMatch(cursor -> cursor.nextPageUri == null && !cursor.fetching && cursor.parsing == 0)) {
+                        this.done = true;
+                        complete = true;
+                    } else if (this.patientIds.size() < this.demand) {
+                        for (Cursor cursor : this.cursors) {
+                            if (!cursor.fetching && cursor.nextPageUri != null) {
+                                cursor.fetching = true;
+                                toFetch.add(cursor);
+                            }
+                        }
+                    }
+                }
+                if (failure != null) {
+                    this.subscriber.onError(failure);
+                } else if (complete) {
+                    this.subscriber.onComplete();
+                }
+                if (startPlanning) {
+                    plan();
+                }
+                toFetch.forEach(this::fetch);
+            } while (this.drainRequests.decrementAndGet() != 0);
+        }
+
+        private void emitBuffered() {
+            while (true) {
+                String patientId;
+                synchronized (this) {
+                    if (this.done || this.error != null || this.demand == 0 || this.patientIds.isEmpty()) {
+                        return;
+                    }
+                    patientId = this.patientIds.poll();
+                    if (this.demand != Long.MAX_VALUE) {
+                        this.demand--;
+                    }
+                }
+                this.subscriber.onNext(new FlareResourceImpl(patientId));
+            }
+        }
+
+        private void plan() {
+            CompletableFuture<List<URI>> partitions;
+            try {
+                partitions = partitionPlanner.get();
+            } catch (RuntimeException e) {
+                partitions = CompletableFuture.failedFuture(e);
+            }
+            partitions.whenComplete((partitionUris, planningError) -> {
+                synchronized (this) {
+                    if (planningError != null) {
+                        this.error = unwrap(planningError);
+                    } else {
+                        this.cursors = new ArrayList<>(partitionUris.size());
+                        for (URI partitionUri : partitionUris) {
+                            Cursor cursor = new Cursor();
+                            cursor.nextPageUri = partitionUri;
+                            cursor.latencyClass = FhirSearchRequest.resourceTypeOf(partitionUri);
+                            this.cursors.add(cursor);
+                        }
+                    }
+                }
+                drain();
+            });
+        }
+
+        private void fetch(Cursor cursor) {
+            boolean initialRequest = cursor.initialRequest;
+            String requestedElements = elements;
+            HttpRequest request = initialRequest
+                    ? client.newSearchRequest(cursor.nextPageUri,
+                            FhirSearchRequest.searchParameters(pagecount, requestedElements))
+                    : client.newRequest(cursor.nextPageUri).GET().build();
+            AtomicLong pageBytes = new AtomicLong();
+            // Only the successful attempt counts, waiting for a connection and retries do not depend on the page size
+            AtomicLong latencyNanos = new AtomicLong();
+            // A page may be read more than once when it is retried or hedged, the next page must only be requested once
+            AtomicBoolean linkRead = new AtomicBoolean();
+            client.fetchAsync(request, body -> {
+                CountingInputStream countingBody = new CountingInputStream(body);
+                SearchPage page = pageReader.readPage(countingBody, nextPageUri -> {
+                    if (linkRead.compareAndSet(false, true)) {
+                        nextLinkRead(cursor, nextPageUri);
+                    }
+                });
+                pageBytes.set(countingBody.getCount());
+                return page;
+            }, profile, new FhirHttpClient.PageSampling(cursor.latencyClass, latencyNanos::set)).whenComplete((page, fetchError) -> {
+                synchronized (this) {
+                    if (linkRead.get()) {
+                        // The cursor already moved on to the next page
+                        cursor.parsing--;
+                    } else {
+                        cursor.fetching = false;
+                    }
+                    if (fetchError == null) {
+                        if (!linkRead.get()) {
+                            cursor.initialRequest = false;
+                            cursor.nextPageUri = page.getNextPageUri();
+                        }
+                        if (!this.done) {
+                            this.patientIds.addAll(page.getPatientIds());
+                        }
+                    } else if (!linkRead.get() && initialRequest && requestedElements != null
+                            && isBadRequest(fetchError)) {
+                        // Servers not supporting _elements reject it under strict handling, search again without it
+                        elements = null;
+                    } else {
+                        this.error = unwrap(fetchError);
+                    }
+                }
+                if (page != null) {
+                    if (profile != null) {
+                        profile.pageRead(page.getPatientIds().size(), pageBytes.get());
+                    }
+                    pageObserver.pageFetched(parsePageCount(), page.getPatientIds().size(), pageBytes.get(),
+                            latencyNanos.get());
+                }
+                drain();
+            });
+        }
+
+        /**
+         * Moves the cursor on to the next page while the entries of the current one are still parsed. The next page
+         * is only requested right away if the subscriber demands all patients, otherwise the patients of the current
+         * page may already cover the demand.
+         */
+        private void nextLinkRead(Cursor cursor, URI nextPageUri) {
+            boolean unbounded;
+            synchronized (this) {
+                cursor.fetching = false;
+                cursor.parsing++;
+                cursor.initialRequest = false;
+                cursor.nextPageUri = nextPageUri;
+                unbounded = this.demand == Long.MAX_VALUE;
+            }
+            if (unbounded) {
+                drain();
+            }
+        }
+    }
+
+    private int parsePageCount() {
+        try {
+            return Integer.parseInt(this.pagecount.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isBadRequest(Throwable error) {
+        return unwrap(error) instanceof FhirResponseException responseException
+                && responseException.getStatusCode() == 400;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -0,0 +1,228 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.model.AttributeFilter;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.FilterType;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.TimeRestriction;
+import de.rwth.imi.flare.api.model.ValueFilter;
+import de.rwth.imi.flare.api.model.mapping.AttributeSearchParameter;
+import de.rwth.imi.flare.api.model.mapping.FixedCriteria;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Search query string of a single {@link MappingEntry}, with everything that only depends on the mapping
+ * prepared once: the parameter prefixes and the encoded fixed criteria.
+ * Only the term code, filters and dates of a criterion are encoded when building its query string.<br>
+ * Templates are immutable and cached per mapping instance, neither the mapping nor the criterion is modified.
+ * Mappings are loaded once and shared by all criteria using them, so they must not be modified once used.
+ */
+class SearchUrlTemplate {
+    // Mappings are loaded once, so this only grows large if mappings are created per query
+    private static final int MAX_CACHED_TEMPLATES = 10_000;
+    // Guarded by itself, in access order. Keyed by identity, as hashing a whole mapping costs more than
+    // compiling it, and a mapping modified while being a key would be lost in the map
+    private static final Map<MappingKey, SearchUrlTemplate> TEMPLATES = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MappingKey, SearchUrlTemplate> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+    };
+    // The few code systems in use are encoded once, including the separating pipe
+    private static final Map<String, String> ENCODED_SYSTEM_PREFIXES = new ConcurrentHashMap<>();
+
+    private final String resourcePrefix;
+    private final String termCodePrefix;
+    private final boolean consent;
+    private final String valueParameter;
+    private final boolean codeValues;
+    private final String fixedCriteria;
+    private final Map<AttributeKey, AttributeParameter> attributeParameters;
+    private final String timeRestrictionParameter;
+
+    private SearchUrlTemplate(MappingEntry mapping) {
+        this.resourcePrefix = mapping.getFhirResourceType() + "?";
+        this.termCodePrefix = mapping.getTermCodeSearchParameter() == null ? null : mapping.getTermCodeSearchParameter() + "=";
+        this.consent = "Consent".equals(mapping.getFhirResourceType());
+        this.valueParameter = mapping.getValueSearchParameter();
+        this.codeValues = "code".equals(mapping.getValueTypeFhir());
+        this.fixedCriteria = compileFixedCriteria(mapping.getFixedCriteria());
+        this.attributeParameters = compileAttributeParameters(mapping.getAttributeSearchParameters());
+        this.timeRestrictionParameter = mapping.getTimeRestrictionParameter();
+    }
+
+    /**
+     * @return template of the given mapping, compiled on first use
+     */
+    static SearchUrlTemplate of(MappingEntry mapping) {
+        synchronized (TEMPLATES) {
+            return TEMPLATES.computeIfAbsent(new MappingKey(mapping), key -> new SearchUrlTemplate(mapping));
+        }
+    }
+
+    /**
+     * @param criterion criterion using the mapping this template was compiled from
+     * @return query string that can be appended onto a FHIR Server URI, starts with the resource (e.g. Patient?...)
+     */
+    String build(Criterion criterion) {
+        StringBuilder sb = new StringBuilder(128).append(this.resourcePrefix);
+        if (this.termCodePrefix != null) {
+            TerminologyCode termCode = criterion.getTermCodes().get(0);
+            sb.append(this.termCodePrefix);
+            appendCoding(sb, String.valueOf(termCode.getSystem()), termCode.getCode());
+        }
+
+        if (this.consent) {
+            sb.append('$');
+            appendCodes(sb, criterion.getValueFilter().getSelectedConcepts(), false);
+            return sb.toString();
+        }
+
+        ValueFilter valueFilter = criterion.getValueFilter();
+        if (valueFilter != null) {
+            if (this.termCodePrefix != null) {
+                sb.append('&');
+            }
+            appendValueFilter(sb, valueFilter);
+        }
+
+        sb.append(this.fixedCriteria);
+
+        if (criterion.getAttributeFilters() != null) {
+            for (AttributeFilter attributeFilter : criterion.getAttributeFilters()) {
+                appendAttributeFilter(sb, attributeFilter);
+            }
+        }
+
+        TimeRestriction timeRestriction = criterion.getTimeRestriction();
+        if (this.timeRestrictionParameter != null && timeRestriction != null) {
+            if (timeRestriction.getBeforeDate() != null) {
+                sb.append('&').append(this.timeRestrictionParameter).append("=le").append(timeRestriction.getBeforeDate());
+            }
+            if (timeRestriction.getAfterDate() != null) {
+                sb.append('&').append(this.timeRestrictionParameter).append("=ge").append(timeRestriction.getAfterDate());
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendValueFilter(StringBuilder sb, ValueFilter valueFilter) {
+        FilterType type = valueFilter.getType();
+        if (type == FilterType.QUANTITY_COMPARATOR) {
+            sb.append(this.valueParameter).append('=')
+                    .append(urlEncode(valueFilter.getComparator() + String.valueOf(valueFilter.getValue()) + "|"
+                            + unitString(valueFilter.getUnit())));
+        } else if (type == FilterType.QUANTITY_RANGE) {
+            String unit = unitString(valueFilter.getUnit());
+            sb.append(this.valueParameter).append('=').append(urlEncode("ge " + valueFilter.getMinValue() + unit))
+                    .append('&')
+                    .append(this.valueParameter).append('=').append(urlEncode("le " + valueFilter.getMaxValue() + unit));
+        } else if (type == FilterType.CONCEPT) {
+            sb.append(this.valueParameter).append('=');
+            appendCodes(sb, valueFilter.getSelectedConcepts(), false);
+        }
+    }
+
+    private void appendAttributeFilter(StringBuilder sb, AttributeFilter attributeFilter) {
+        TerminologyCode attributeCode = attributeFilter.getAttributeCode();
+        AttributeParameter parameter = this.attributeParameters.get(
+                new AttributeKey(attributeCode.getCode(), attributeCode.getSystem()));
+        if (parameter == null) {
+            throw new IllegalArgumentException("Mapping has no search parameter for attribute " + attributeCode);
+        }
+        // Separator only needed if a parameter has been written already
+        if (sb.length() > this.resourcePrefix.length()) {
+            sb.append('&');
+        }
+        sb.append(parameter.prefix());
+        appendCodes(sb, attributeFilter.getSelectedConcepts(), parameter.withoutSystem());
+    }
+
+    /**
+     * Appends the codes joined with commas, each as {@code system|code} unless the system is omitted
+     */
+    private void appendCodes(StringBuilder sb, List<TerminologyCode> codes, boolean withoutSystem) {
+        for (int i = 0; i < codes.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            TerminologyCode code = codes.get(i);
+            if (this.codeValues || withoutSystem || code.getSystem() == null || code.getSystem().isEmpty()) {
+                sb.append(urlEncode(code.getCode()));
+            } else {
+                appendCoding(sb, code.getSystem(), code.getCode());
+            }
+        }
+    }
+
+    private static void appendCoding(StringBuilder sb, String system, String code) {
+        // Encoding the parts separately yields the same as encoding system|code at once
+        sb.append(ENCODED_SYSTEM_PREFIXES.computeIfAbsent(system, unused -> urlEncode(system + "|")))
+                .append(urlEncode(code));
+    }
+
+    private String compileFixedCriteria(List<FixedCriteria> fixedCriteria) {
+        if (fixedCriteria == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (FixedCriteria criteria : fixedCriteria) {
+            sb.append('&').append(criteria.getSearchParameter()).append('=');
+            appendCodes(sb, criteria.getValue(), "code".equals(criteria.getType()));
+        }
+        return sb.toString();
+    }
+
+    private static Map<AttributeKey, AttributeParameter> compileAttributeParameters(
+            List<AttributeSearchParameter> attributeSearchParameters) {
+        if (attributeSearchParameters == null) {
+            return Map.of();
+        }
+        Map<AttributeKey, AttributeParameter> parameters = new HashMap<>();
+        for (AttributeSearchParameter parameter : attributeSearchParameters) {
+            TerminologyCode key = parameter.getAttributeKey();
+            // The first parameter of an attribute wins
+            parameters.putIfAbsent(new AttributeKey(key.getCode(), key.getSystem()), new AttributeParameter(
+                    parameter.getAttributeSearchParameter() + "=",
+                    "code".equalsIgnoreCase(parameter.getAttributeType())));
+        }
+        return Map.copyOf(parameters);
+    }
+
+    private static String unitString(TerminologyCode unit) {
+        return (unit.getSystem() == null ? "" : unit.getSystem()) + unit.getCode();
+    }
+
+    private static String urlEncode(String str) {
+        return URLEncoder.encode(str, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Identifies a mapping by identity, the mapping itself compares all of its fields
+     */
+    private record MappingKey(MappingEntry mapping) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MappingKey key && key.mapping == this.mapping;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.mapping);
+        }
+    }
+
+    private record AttributeKey(String code, String system) {
+    }
+
+    private record AttributeParameter(String prefix, boolean withoutSystem) {
+    }
+}
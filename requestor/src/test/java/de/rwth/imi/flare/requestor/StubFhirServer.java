@@ -0,0 +1,114 @@
+package de.rwth.imi.flare.requestor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for a FHIR server, serving fixed search result pages from localhost
+ */
+public class StubFhirServer implements AutoCloseable {
+    // Exchange attributes are shared by all exchanges of a context, so concurrent requests would see each other's body
+    private static final Map<HttpExchange, String> REQUEST_BODIES = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    public StubFhirServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.start();
+    }
+
+    /**
+     * @return base uri of the stub, ending with a slash
+     */
+    public URI getBaseUri() {
+        return URI.create("http://localhost:" + this.server.getAddress().getPort() + "/fhir/");
+    }
+
+    public int getRequestCount() {
+        return this.requestCount.get();
+    }
+
+    /**
+     * Serves a paged search for the given resource type, the initial search is answered with the first page
+     * and each page links to the next one
+     * @param resourceType searched resource type
+     * @param pages patient ids contained in each page
+     */
+    public void servePagedSearch(String resourceType, List<List<String>> pages) {
+        this.server.createContext("/fhir/" + resourceType, counting(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            int page = path.endsWith("/_page") ? Integer.parseInt(exchange.getRequestURI().getQuery().split("=")[1]) : 0;
+            String next = page + 1 < pages.size()
+                    ? getBaseUri() + resourceType + "/_page?page=" + (page + 1)
+                    : null;
+            respond(exchange, 200, searchBundle(resourceType, pages.get(page), next));
+        }));
+    }
+
+    /**
+     * Serves the given handler below /fhir/
+     */
+    public void serve(String path, HttpHandler handler) {
+        this.server.createContext("/fhir/" + path, counting(handler));
+    }
+
+    public static String searchBundle(String resourceType, List<String> patientIds, String nextLink) {
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"link\":[");
+        if (nextLink != null) {
+            bundle.append("{\"relation\":\"next\",\"url\":\"").append(nextLink).append("\"}");
+        }
+        bundle.append("],\"entry\":[");
+        for (int i = 0; i < patientIds.size(); i++) {
+            bundle.append(i == 0 ? "" : ",")
+                    .append("{\"resource\":{\"resourceType\":\"").append(resourceType)
+                    .append("\",\"subject\":{\"reference\":\"Patient/").append(patientIds.get(i)).append("\"}}}");
+        }
+        return bundle.append("]}").toString();
+    }
+
+    public static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return form encoded body of a POST request, as read before the handler was called
+     */
+    public static String requestBody(HttpExchange exchange) {
+        return REQUEST_BODIES.get(exchange);
+    }
+
+    private HttpHandler counting(HttpHandler handler) {
+        return exchange -> {
+            this.requestCount.incrementAndGet();
+            REQUEST_BODIES.put(exchange, new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            try {
+                handler.handle(exchange);
+            } finally {
+                REQUEST_BODIES.remove(exchange);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+    }
+}
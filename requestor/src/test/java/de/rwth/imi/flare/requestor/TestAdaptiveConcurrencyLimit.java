@@ -0,0 +1,110 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TestAdaptiveConcurrencyLimit {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long PAGE = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Test
+    void lowersLimitOnOverloadAndRecovers() throws InterruptedException {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(new FlareConcurrencyLimitConfig(2, 2.0, 0.5), 8);
+
+        limit.onResponse(FAST, 503, null);
+        Assertions.assertEquals(4, limit.getLimit());
+
+        // Keep the limit in use, otherwise it is not raised
+        for (int i = 0; i < 4; i++) {
+            limit.getPermits().acquire();
+        }
+        // Grows by one about every limit responses
+        for (int i = 0; i < 5; i++) {
+            limit.onResponse(FAST, 200, "Observation");
+        }
+        Assertions.assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    void lowersLimitWhenLatencyRises() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(new FlareConcurrencyLimitConfig(2, 2.0, 0.5), 8,
+                clock::get);
+        limit.onResponse(FAST, 200, "Observation");
+
+        // Short term latency has to exceed the tolerance, and the previous decrease must be older than it
+        for (int i = 0; i < 20 && limit.getLimit() == 8; i++) {
+            clock.addAndGet(FAST * 10);
+            limit.onResponse(FAST * 10, 200, "Observation");
+        }
+        Assertions.assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    void holdsLimitWhileCountsAreFasterThanPages() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(new FlareConcurrencyLimitConfig(2, 2.0, 0.9), 8,
+                clock::get);
+        for (int i = 0; i < 8; i++) {
+            limit.getPermits().acquire();
+        }
+
+        // A count before every search, pages close to the targeted page latency
+        for (int i = 0; i < 1000; i++) {
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            limit.onResponse(FAST, 200, null);
+            limit.onResponse(PAGE + (i % 3) * FAST, 200, "Observation");
+        }
+
+        Assertions.assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    void holdsLimitForResourceTypesOfDifferentLatency() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(new FlareConcurrencyLimitConfig(2, 2.0, 0.9), 8,
+                clock::get);
+        for (int i = 0; i < 8; i++) {
+            limit.getPermits().acquire();
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            limit.onResponse(FAST, 200, "Patient");
+            limit.onResponse(PAGE, 200, "Observation");
+        }
+
+        Assertions.assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    void keepsFixedLimitIfDisabled() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(new FlareConcurrencyLimitConfig(0, 2.0, 0.5), 8);
+
+        limit.onResponse(FAST, 429, null);
+        limit.onFailure();
+
+        Assertions.assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    void lowerLimitQueuesUntilRequestsFinish() {
+        ConnectionPermits permits = new ConnectionPermits(2);
+        permits.acquireAsync();
+        permits.acquireAsync();
+
+        permits.setLimit(1);
+        CompletableFuture<Void> queued = permits.acquireAsync();
+        permits.release();
+
+        Assertions.assertFalse(queued.isDone());
+        Assertions.assertEquals(1, permits.getQueued());
+        permits.release();
+        Assertions.assertTrue(queued.isDone());
+        Assertions.assertEquals(1, permits.getInFlight());
+    }
+}
@@ -0,0 +1,121 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class TestBatchSearch {
+    private static final Pattern ENTRY_URL = Pattern.compile("\"url\":\"([^\"]+)\"");
+
+    @Test
+    void requestsFirstPagesInOneBatch() throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.servePagedSearch("Observation", List.of(List.of("1", "2"), List.of("3")));
+            server.serve("Condition", exchange -> StubFhirServer.respond(exchange, 200,
+                    StubFhirServer.searchBundle("Condition", List.of("5"), null)));
+            server.serve("", exchange -> {
+                StringBuilder response = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":[");
+                Matcher entryUrls = ENTRY_URL.matcher(StubFhirServer.requestBody(exchange));
+                for (int i = 0; entryUrls.find(); i++) {
+                    response.append(i == 0 ? "" : ",").append(batchEntry(server, entryUrls.group(1)));
+                }
+                StubFhirServer.respond(exchange, 200, response.append("]}").toString());
+            });
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            List<Set<String>> results = collect(requestor.executeBatch(
+                    List.of(observation("718-7"), observation("4548-4"), condition("I10"))));
+
+            Assertions.assertEquals(List.of(Set.of("1", "2", "3"), Set.of("4"), Set.of("5")), results);
+            // Batch, second page of the first criterion and the regular search for the failed entry
+            Assertions.assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void searchesEachCriterionIfBatchIsRejected() throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.servePagedSearch("Observation", List.of(List.of("1", "2")));
+            server.serve("", exchange -> StubFhirServer.respond(exchange, 405, ""));
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            List<Set<String>> results = collect(requestor.executeBatch(List.of(observation("718-7"), observation("4548-4"))));
+
+            Assertions.assertEquals(List.of(Set.of("1", "2"), Set.of("1", "2")), results);
+            Assertions.assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    /**
+     * Hemoglobin has a second page, other observations a single page, conditions can not be searched in a batch
+     */
+    private static String batchEntry(StubFhirServer server, String entryUrl) {
+        if (entryUrl.startsWith("Condition?")) {
+            return "{\"resource\":{\"resourceType\":\"OperationOutcome\"},\"response\":{\"status\":\"404 Not Found\"}}";
+        }
+        String page = entryUrl.contains("718-7")
+                ? StubFhirServer.searchBundle("Observation", List.of("1", "2"), server.getBaseUri() + "Observation/_page?page=1")
+                : StubFhirServer.searchBundle("Observation", List.of("4"), null);
+        return "{\"resource\":" + page + ",\"response\":{\"status\":\"200 OK\"}}";
+    }
+
+    private static List<Set<String>> collect(List<Stream<FlareResource>> streams) {
+        return streams.stream()
+                .map(stream -> stream.map(FlareResource::getPatientId).collect(Collectors.toSet()))
+                .toList();
+    }
+
+    private static Criterion observation(String loincCode) {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode(loincCode, "http://loinc.org", loincCode)), null, mapping, null, null);
+    }
+
+    private static Criterion condition(String icdCode) {
+        MappingEntry mapping = new MappingEntry(null, "Condition", "code", null, null, null, null);
+        return new Criterion(List.of(new TerminologyCode(icdCode, "http://fhir.de/CodeSystem/dimdi/icd-10-gm", icdCode)),
+                null, mapping, null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlarePagingConfig getPagingConfig() {
+                return new FlarePagingConfig(2, 0, 1, 20);
+            }
+        };
+    }
+}
@@ -0,0 +1,243 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.FilterType;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.ValueFilter;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestBulkExportRequestor {
+
+    @Test
+    void collectsPatientsFromExportedFiles() throws IOException, InterruptedException {
+        AtomicInteger statusPolls = new AtomicInteger();
+        CountDownLatch exportDeleted = new CountDownLatch(1);
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Patient/$export", exchange -> {
+                String query = exchange.getRequestURI().getQuery();
+                boolean filtered = query.contains("_type=Observation")
+                        && query.contains("_typeFilter=Observation?code=http%3A%2F%2Floinc.org%7C718-7")
+                        && "respond-async".equals(exchange.getRequestHeaders().getFirst("Prefer"));
+                exchange.getResponseHeaders().add("Content-Location", "/fhir/export/1");
+                StubFhirServer.respond(exchange, filtered ? 202 : 400, "");
+            });
+            server.serve("export/1", exchange -> {
+                if ("DELETE".equals(exchange.getRequestMethod())) {
+                    exportDeleted.countDown();
+                    StubFhirServer.respond(exchange, 202, "");
+                } else if (statusPolls.incrementAndGet() == 1) {
+                    exchange.getResponseHeaders().add("Retry-After", "0");
+                    StubFhirServer.respond(exchange, 202, "");
+                } else {
+                    StubFhirServer.respond(exchange, 200, "{\"transactionTime\":\"2021-01-01T00:00:00Z\","
+                            + "\"requiresAccessToken\":false,\"output\":["
+                            + "{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"},"
+                            + "{\"type\":\"Observation\",\"url\":\"/fhir/output/2.ndjson\"}],\"error\":[]}");
+                }
+            });
+            server.serve("output/1.ndjson", exchange -> StubFhirServer.respond(exchange, 200,
+                    observation("1") + "\n" + observation("2") + "\n"));
+            server.serve("output/2.ndjson", exchange -> StubFhirServer.respond(exchange, 200,
+                    observation("2") + "\n" + observation("3")));
+            BulkExportRequestor requestor = new BulkExportRequestor(config(server.getBaseUri()));
+
+            Set<String> patientIds = requestor.exportPatientIds(hemoglobin());
+
+            Assertions.assertEquals(Set.of("1", "2", "3"), patientIds);
+            Assertions.assertEquals(2, statusPolls.get());
+            // The export is deleted once its result is complete
+            Assertions.assertTrue(exportDeleted.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void publishesExportedPatientsOnceDemanded() throws Exception {
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveExport(server, "{\"requiresAccessToken\":false,\"output\":["
+                    + "{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"}],\"error\":[]}");
+            server.serve("output/1.ndjson", exchange -> StubFhirServer.respond(exchange, 200,
+                    observation("1") + "\n" + observation("2") + "\n"));
+            Flow.Publisher<FlareResource> publisher = new BulkExportRequestor(config(server.getBaseUri()))
+                    .executeAsync(hemoglobin());
+            // Nothing is exported before there is a subscriber
+            Assertions.assertEquals(0, server.getRequestCount());
+
+            Set<String> patientIds = TestSearchPublisher.collect(publisher).get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(Set.of("1", "2"), patientIds);
+        }
+    }
+
+    @Test
+    void reportsUnsupportedExport() throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Patient/$export", exchange -> StubFhirServer.respond(exchange, 404, ""));
+            BulkExportRequestor requestor = new BulkExportRequestor(config(server.getBaseUri()));
+
+            UncheckedIOException error = Assertions.assertThrows(UncheckedIOException.class,
+                    () -> requestor.exportPatientIds(hemoglobin()));
+
+            Assertions.assertEquals(404, ((FhirResponseException) error.getCause()).getStatusCode());
+        }
+    }
+
+    @Test
+    void sendsCredentialsOnlyToFhirServer() throws IOException {
+        Map<String, Optional<String>> authorizations = new ConcurrentHashMap<>();
+        try (StubFhirServer server = new StubFhirServer(); StubFhirServer fileServer = new StubFhirServer()) {
+            serveExport(server, "{\"requiresAccessToken\":true,\"output\":["
+                    + "{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"},"
+                    + "{\"type\":\"Observation\",\"url\":\"" + fileServer.getBaseUri() + "output/2.ndjson\"}],"
+                    + "\"error\":[]}");
+            server.serve("output/1.ndjson", exchange -> {
+                authorizations.put("server", Optional.ofNullable(exchange.getRequestHeaders().getFirst("Authorization")));
+                StubFhirServer.respond(exchange, 200, observation("1"));
+            });
+            fileServer.serve("output/2.ndjson", exchange -> {
+                authorizations.put("fileServer", Optional.ofNullable(exchange.getRequestHeaders().getFirst("Authorization")));
+                StubFhirServer.respond(exchange, 200, observation("2"));
+            });
+            BulkExportRequestor requestor = new BulkExportRequestor(config(server.getBaseUri(),
+                    new BasicRequestAuthenticator("user", "password")));
+
+            Set<String> patientIds = requestor.exportPatientIds(hemoglobin());
+
+            Assertions.assertEquals(Set.of("1", "2"), patientIds);
+            Assertions.assertEquals(Optional.of("Basic dXNlcjpwYXNzd29yZA=="), authorizations.get("server"));
+            Assertions.assertEquals(Optional.empty(), authorizations.get("fileServer"));
+        }
+    }
+
+    @Test
+    void sendsNoCredentialsForFilesNotRequiringThem() throws IOException {
+        AtomicBoolean authorized = new AtomicBoolean();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveExport(server, "{\"requiresAccessToken\":false,\"output\":["
+                    + "{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"}],\"error\":[]}");
+            server.serve("output/1.ndjson", exchange -> {
+                authorized.set(exchange.getRequestHeaders().containsKey("Authorization"));
+                StubFhirServer.respond(exchange, 200, observation("1"));
+            });
+            BulkExportRequestor requestor = new BulkExportRequestor(config(server.getBaseUri(),
+                    new BasicRequestAuthenticator("user", "password")));
+
+            Assertions.assertEquals(Set.of("1"), requestor.exportPatientIds(hemoglobin()));
+            Assertions.assertFalse(authorized.get());
+        }
+    }
+
+    @Test
+    void reportsExportErrors() throws IOException {
+        AtomicBoolean outputRead = new AtomicBoolean();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveExport(server, "{\"requiresAccessToken\":false,\"output\":["
+                    + "{\"type\":\"Observation\",\"url\":\"/fhir/output/1.ndjson\"}],"
+                    + "\"error\":[{\"type\":\"OperationOutcome\",\"url\":\"/fhir/output/err.ndjson\"}]}");
+            server.serve("output/1.ndjson", exchange -> {
+                outputRead.set(true);
+                StubFhirServer.respond(exchange, 200, observation("1"));
+            });
+            BulkExportRequestor requestor = new BulkExportRequestor(config(server.getBaseUri()));
+
+            UncheckedIOException error = Assertions.assertThrows(UncheckedIOException.class,
+                    () -> requestor.exportPatientIds(hemoglobin()));
+
+            Assertions.assertEquals(1, ((BulkExportFailedException) error.getCause()).getErrorFileCount());
+            Assertions.assertFalse(outputRead.get());
+        }
+    }
+
+    @Test
+    void escapesCommasSeparatingCodesWithinTypeFilter() {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-concept", null, null, null);
+        ValueFilter sex = new ValueFilter(FilterType.CONCEPT, List.of(
+                new TerminologyCode("female", "http://hl7.org/fhir/administrative-gender", "Female"),
+                new TerminologyCode("male", "http://hl7.org/fhir/administrative-gender", "Male")),
+                null, null, null, null, null);
+        Criterion criterion = new Criterion(List.of(new TerminologyCode("76689-9", "http://loinc.org", "Sex")), sex,
+                mapping, null, null);
+        BulkExportRequestor requestor = new BulkExportRequestor(config(URI.create("http://localhost/fhir/")));
+
+        String typeFilter = URI.create(requestor.translateCriterion(criterion)).getQuery().split("&_typeFilter=")[1];
+
+        Assertions.assertEquals("Observation?code=http%3A%2F%2Floinc.org%7C76689-9&value-concept="
+                + "http%3A%2F%2Fhl7.org%2Ffhir%2Fadministrative-gender%7Cfemale%2C"
+                + "http%3A%2F%2Fhl7.org%2Ffhir%2Fadministrative-gender%7Cmale", typeFilter);
+    }
+
+    private static void serveExport(StubFhirServer server, String manifest) {
+        server.serve("Patient/$export", exchange -> {
+            exchange.getResponseHeaders().add("Content-Location", "/fhir/export/1");
+            StubFhirServer.respond(exchange, 202, "");
+        });
+        server.serve("export/1", exchange -> StubFhirServer.respond(exchange,
+                "DELETE".equals(exchange.getRequestMethod()) ? 202 : 200,
+                "DELETE".equals(exchange.getRequestMethod()) ? "" : manifest));
+    }
+
+    private static String observation(String patientId) {
+        return "{\"resourceType\":\"Observation\",\"id\":\"obs-" + patientId
+                + "\",\"subject\":{\"reference\":\"Patient/" + patientId + "\"}}";
+    }
+
+    private static Criterion hemoglobin() {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode("718-7", "http://loinc.org", "Hemoglobin")), null, mapping, null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return config(baseUri, RequestAuthenticator.none());
+    }
+
+    private static FhirRequestorConfig config(URI baseUri, RequestAuthenticator requestAuthenticator) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public RequestAuthenticator getRequestAuthenticator() {
+                return requestAuthenticator;
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlareBulkExportConfig getBulkExportConfig() {
+                return new FlareBulkExportConfig(1, 10, 10);
+            }
+        };
+    }
+}
@@ -0,0 +1,36 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class TestBundlePageReader {
+    private final BundlePageReader reader = new BundlePageReader();
+
+    @Test
+    void readsPatientIdsAndNextLink() throws IOException, URISyntaxException {
+        try (InputStream bundle = this.getClass().getClassLoader().getResourceAsStream("searchset_bundle.json")) {
+            SearchPage page = reader.readPage(bundle);
+            Assertions.assertEquals(List.of("pat-1", "pat-2", "pat-3", "pat-4"), page.getPatientIds());
+            Assertions.assertEquals(new URI("http://localhost:8080/fhir/__page?code=http%3A%2F%2Floinc.org%7C76689-9&_count=4&__t=12&__page-offset=4"),
+                    page.getNextPageUri());
+        }
+    }
+
+    @Test
+    void lastPageHasNoNextLink() throws IOException, URISyntaxException {
+        String lastPage = """
+                {"resourceType": "Bundle", "type": "searchset", "total": 0,
+                 "link": [{"relation": "self", "url": "http://localhost:8080/fhir/Condition"}]}""";
+        SearchPage page = reader.readPage(new ByteArrayInputStream(lastPage.getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertTrue(page.getPatientIds().isEmpty());
+        Assertions.assertNull(page.getNextPageUri());
+    }
+}
@@ -0,0 +1,302 @@
+package de.rwth.imi.flare.requestor;
+
+import com.sun.net.httpserver.HttpExchange;
+import de.rwth.imi.flare.api.FlareResource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+class TestFhirSearchRequest {
+    private static final List<List<String>> PAGES = List.of(
+            List.of("1", "2", "3"), List.of(), List.of("4", "5"), List.of("6"));
+
+    @Test
+    void fetchesAllPagesOnDemand() throws IOException {
+        assertAllPatientsFound(0);
+    }
+
+    @Test
+    void prefetchesPages() throws IOException {
+        assertAllPatientsFound(2);
+    }
+
+    @Test
+    void prefetchesWithSinglePageBuffer() throws IOException {
+        assertAllPatientsFound(1);
+    }
+
+    @Test
+    void closingStopsPrefetching() throws Exception {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = pageOf(exchange);
+                // The second page is held until the test is done, so its prefetch is still in flight when closed
+                if (page == 1) {
+                    held.countDown();
+                    await(release);
+                }
+                StubFhirServer.respond(exchange, 200, pageBundle(server, page));
+            });
+            FhirHttpClient client = retryingClient();
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), client, "3", null, 1);
+
+            try {
+                request.next();
+                Assertions.assertTrue(held.await(10, TimeUnit.SECONDS));
+                request.close();
+
+                // The prefetch of the held page is aborted, and no page is fetched after it
+                awaitIdle(client);
+                Assertions.assertEquals(2, server.getRequestCount());
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    @Test
+    void resumesFromFailedPage() throws IOException {
+        AtomicBoolean failed = new AtomicBoolean();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = pageOf(exchange);
+                if (page == 2 && failed.compareAndSet(false, true)) {
+                    StubFhirServer.respond(exchange, 503, "");
+                    return;
+                }
+                StubFhirServer.respond(exchange, 200, pageBundle(server, page));
+            });
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), retryingClient(), "3", null, 1);
+
+            Assertions.assertEquals(Set.of("1", "2", "3", "4", "5", "6"), collectPatientIds(request));
+            // Only the failed page is fetched again
+            Assertions.assertEquals(PAGES.size() + 1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void reportsLatencyOfSuccessfulAttemptOnly() throws IOException {
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Long> latencies = new CopyOnWriteArrayList<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = pageOf(exchange);
+                if (page == 2 && failed.compareAndSet(false, true)) {
+                    // Slow failure, its time must not be attributed to the page size
+                    sleep(500);
+                    StubFhirServer.respond(exchange, 503, "");
+                    return;
+                }
+                StubFhirServer.respond(exchange, 200, pageBundle(server, page));
+            });
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), retryingClient(), "3", null, 0, null,
+                    (pageSize, resources, bytes, latencyNanos) -> latencies.add(latencyNanos));
+
+            collectPatientIds(request);
+
+            Assertions.assertEquals(PAGES.size(), latencies.size());
+            Assertions.assertTrue(latencies.get(2) < TimeUnit.MILLISECONDS.toNanos(500), "failed attempt was timed");
+        }
+    }
+
+    @Test
+    void doesNotRetryClientErrors() throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = pageOf(exchange);
+                StubFhirServer.respond(exchange, page == 1 ? 404 : 200, page == 1 ? "" : pageBundle(server, page));
+            });
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), retryingClient(), "3", null, 0);
+
+            Assertions.assertThrows(UncheckedIOException.class, () -> collectPatientIds(request));
+            Assertions.assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void hedgesSlowPageAndAbortsTheSlowRequest() throws Exception {
+        int pageCount = 40;
+        int slowPage = pageCount - 1;
+        AtomicBoolean held = new AtomicBoolean();
+        CountDownLatch release = new CountDownLatch(1);
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = pageOf(exchange);
+                // Only the first request of the slow page is held, until the test is done
+                if (page == slowPage && held.compareAndSet(false, true)) {
+                    await(release);
+                }
+                String next = page + 1 < pageCount ? server.getBaseUri() + "Observation/_page?page=" + (page + 1) : null;
+                StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation", List.of("" + page), next));
+            });
+            FhirHttpClient client = new FhirHttpClient(FlareHttpClientConfig.defaultConfig(),
+                    new FlareRetryConfig(2, 1, 10, 95, 200), RequestAuthenticator.none(), Optional.empty());
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), client, "1", null, 0);
+
+            try {
+                Set<String> patientIds = collectPatientIds(request);
+
+                Assertions.assertEquals(pageCount, patientIds.size());
+                // Fast pages stay below the minimum hedging delay, only the held page was requested twice
+                Assertions.assertEquals(pageCount + 1, server.getRequestCount());
+                // The held request is aborted, releasing its connection although the server did not answer it
+                awaitIdle(client);
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    @Test
+    void searchesWithoutProjectionIfServerRejectsIt() throws IOException {
+        List<String> requestBodies = new CopyOnWriteArrayList<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                String body = StubFhirServer.requestBody(exchange);
+                requestBodies.add(body);
+                if (body.contains("_elements")) {
+                    StubFhirServer.respond(exchange, 400, "");
+                } else {
+                    StubFhirServer.respond(exchange, 200, pageBundle(server, pageOf(exchange)));
+                }
+            });
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), retryingClient(), "3", "subject", 0);
+
+            Assertions.assertEquals(Set.of("1", "2", "3", "4", "5", "6"), collectPatientIds(request));
+            Assertions.assertTrue(requestBodies.get(0).endsWith("&_count=3&_elements=subject"));
+            Assertions.assertTrue(requestBodies.get(1).endsWith("&_count=3"));
+            Assertions.assertEquals(PAGES.size() + 1, requestBodies.size());
+        }
+    }
+
+    @Test
+    void decompressesGzipResponses() throws IOException {
+        assertCompressedPagesRead("gzip", GZIPOutputStream::new);
+    }
+
+    @Test
+    void decompressesDeflateResponses() throws IOException {
+        assertCompressedPagesRead("deflate", DeflaterOutputStream::new);
+    }
+
+    @Test
+    void decompressesRawDeflateResponses() throws IOException {
+        assertCompressedPagesRead("deflate", out -> new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true)));
+    }
+
+    private void assertCompressedPagesRead(String contentEncoding, Compressor compressor) throws IOException {
+        Set<String> acceptedEncodings = ConcurrentHashMap.newKeySet();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                acceptedEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = compressor.wrap(compressed)) {
+                    out.write(pageBundle(server, pageOf(exchange)).getBytes(StandardCharsets.UTF_8));
+                }
+                exchange.getResponseHeaders().add("Content-Encoding", contentEncoding);
+                exchange.sendResponseHeaders(200, compressed.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    compressed.writeTo(out);
+                }
+            });
+            FhirSearchRequest request = new FhirSearchRequest(searchUri(server), retryingClient(), "3", null, 0);
+
+            Assertions.assertEquals(Set.of("1", "2", "3", "4", "5", "6"), collectPatientIds(request));
+            // Initial POST as well as the GETs for further pages ask for compression
+            Assertions.assertEquals(Set.of("gzip, deflate"), acceptedEncodings);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Compressor {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    private static FhirHttpClient retryingClient() {
+        return new FhirHttpClient(FlareHttpClientConfig.defaultConfig(), new FlareRetryConfig(2, 1, 10, 0, 0),
+                RequestAuthenticator.none(), Optional.empty());
+    }
+
+    private static URI searchUri(StubFhirServer server) {
+        return server.getBaseUri().resolve("Observation?code=http%3A%2F%2Floinc.org%7C76689-9");
+    }
+
+    private static int pageOf(HttpExchange exchange) {
+        return exchange.getRequestURI().getPath().endsWith("/_page")
+                ? Integer.parseInt(exchange.getRequestURI().getQuery().split("=")[1])
+                : 0;
+    }
+
+    private static String pageBundle(StubFhirServer server, int page) {
+        String next = page + 1 < PAGES.size() ? server.getBaseUri() + "Observation/_page?page=" + (page + 1) : null;
+        return StubFhirServer.searchBundle("Observation", PAGES.get(page), next);
+    }
+
+    private static Set<String> collectPatientIds(FhirSearchRequest request) {
+        Set<String> patientIds = new HashSet<>();
+        request.forEachRemaining(resource -> patientIds.add(resource.getPatientId()));
+        return patientIds;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitIdle(FhirHttpClient client) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getConcurrencyLimit().getInFlight() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, client.getConcurrencyLimit().getInFlight());
+    }
+
+    private void assertAllPatientsFound(int prefetchPages) throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.servePagedSearch("Observation", PAGES);
+            FhirHttpClient client = new FhirHttpClient(FlareHttpClientConfig.defaultConfig(), Optional.empty());
+            URI searchUri = server.getBaseUri().resolve("Observation?code=http%3A%2F%2Floinc.org%7C76689-9");
+
+            FhirSearchRequest request = new FhirSearchRequest(searchUri, client, "3", "subject", prefetchPages);
+            Set<String> patientIds = new HashSet<>();
+            while (request.hasNext()) {
+                FlareResource resource = request.next();
+                patientIds.add(resource.getPatientId());
+            }
+
+            Assertions.assertEquals(Set.of("1", "2", "3", "4", "5", "6"), patientIds);
+            Assertions.assertEquals(PAGES.size(), server.getRequestCount());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+class TestPageSizeTuner {
+    private static final FlarePageSizeConfig CONFIG = new FlarePageSizeConfig(10, 1000, 1000, 100_000);
+
+    @Test
+    void growsAtMostTwofoldPerFastPage() {
+        PageSizeTuner tuner = new PageSizeTuner(CONFIG, "");
+        Assertions.assertEquals("10", tuner.getPageCount("Observation"));
+
+        fetchPage(tuner, "Observation", 10, 1000, 1);
+        Assertions.assertEquals("20", tuner.getPageCount("Observation"));
+        fetchPage(tuner, "Observation", 20, 2000, 1);
+        Assertions.assertEquals("40", tuner.getPageCount("Observation"));
+        // Other resource types keep their own page size
+        Assertions.assertEquals("10", tuner.getPageCount("Condition"));
+    }
+
+    @Test
+    void shrinksSlowPagesToTargetLatency() {
+        PageSizeTuner tuner = new PageSizeTuner(CONFIG, "800");
+
+        // 5ms per resource, a page of 200 takes the targeted second
+        fetchPage(tuner, "Observation", 800, 800, 4000);
+
+        Assertions.assertEquals("200", tuner.getPageCount("Observation"));
+    }
+
+    @Test
+    void limitsPageBytes() {
+        PageSizeTuner tuner = new PageSizeTuner(CONFIG, "400");
+
+        fetchPage(tuner, "Observation", 400, 400 * 1000, 1);
+
+        Assertions.assertEquals("100", tuner.getPageCount("Observation"));
+    }
+
+    @Test
+    void ignoresPartialPages() {
+        PageSizeTuner tuner = new PageSizeTuner(CONFIG, "400");
+
+        fetchPage(tuner, "Observation", 3, 300, 1000);
+
+        Assertions.assertEquals("400", tuner.getPageCount("Observation"));
+    }
+
+    @Test
+    void keepsConfiguredPageCountIfDisabled() {
+        PageSizeTuner tuner = new PageSizeTuner(new FlarePageSizeConfig(10, 0, 1000, 100_000), "");
+
+        tuner.observer("Observation").pageFetched(0, 10, 100, TimeUnit.MILLISECONDS.toNanos(1));
+
+        Assertions.assertEquals("", tuner.getPageCount("Observation"));
+    }
+
+    private static void fetchPage(PageSizeTuner tuner, String resourceType, int resources, long bytes, long millis) {
+        int pageSize = Integer.parseInt(tuner.getPageCount(resourceType));
+        tuner.observer(resourceType).pageFetched(pageSize, resources, bytes, TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
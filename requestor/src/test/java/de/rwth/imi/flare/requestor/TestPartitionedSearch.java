@@ -0,0 +1,139 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+class TestPartitionedSearch {
+    private static final int RESOURCE_COUNT = 100;
+    private static final Instant FIRST_UPDATE = Instant.parse("2021-01-01T00:00:00Z");
+
+    @Test
+    void partitionsLargeSearchAndMergesAllPatients() throws IOException {
+        AtomicInteger partitionSearches = new AtomicInteger();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveResources(server, partitionSearches);
+
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+            Set<String> patientIds = requestor.execute(criterion())
+                    .map(FlareResource::getPatientId)
+                    .collect(Collectors.toSet());
+
+            Assertions.assertEquals(40, patientIds.size());
+            Assertions.assertEquals(4, partitionSearches.get());
+        }
+    }
+
+    @Test
+    void partitionsLargeSearchWithoutBlocking() throws Exception {
+        AtomicInteger partitionSearches = new AtomicInteger();
+        try (StubFhirServer server = new StubFhirServer()) {
+            serveResources(server, partitionSearches);
+
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+            Set<String> patientIds = TestSearchPublisher.collect(requestor.executeAsync(criterion()))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(40, patientIds.size());
+            Assertions.assertEquals(4, partitionSearches.get());
+        }
+    }
+
+    private static void serveResources(StubFhirServer server, AtomicInteger partitionSearches) {
+        List<StoredResource> resources = new ArrayList<>();
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            resources.add(new StoredResource("patient-" + (i % 40), FIRST_UPDATE.plusSeconds(3600L * i)));
+        }
+        server.serve("Observation/_search", exchange -> {
+            List<String> parameters = List.of(StubFhirServer.requestBody(exchange).split("&"));
+            List<StoredResource> matches = resources.stream()
+                    .filter(resource -> parameters.stream().allMatch(resource::matches))
+                    .sorted(Comparator.comparing(StoredResource::lastUpdated))
+                    .collect(Collectors.toList());
+            if (parameters.contains("_summary=count")) {
+                StubFhirServer.respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"total\":" + matches.size() + "}");
+                return;
+            }
+            if (parameters.contains("_sort=-_lastUpdated")) {
+                matches = List.of(matches.get(matches.size() - 1));
+            } else if (parameters.contains("_sort=_lastUpdated")) {
+                matches = List.of(matches.get(0));
+            } else {
+                partitionSearches.incrementAndGet();
+            }
+            StubFhirServer.respond(exchange, 200, bundle(matches));
+        });
+    }
+
+    private static String bundle(List<StoredResource> resources) {
+        return resources.stream()
+                .map(resource -> "{\"resource\":{\"resourceType\":\"Observation\",\"meta\":{\"lastUpdated\":\""
+                        + resource.lastUpdated() + "\"},\"subject\":{\"reference\":\"Patient/" + resource.patientId() + "\"}}}")
+                .collect(Collectors.joining(",", "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[", "]}"));
+    }
+
+    private static Criterion criterion() {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode("718-7", "http://loinc.org", "Hemoglobin")), null, mapping, null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlarePagingConfig getPagingConfig() {
+                return new FlarePagingConfig(2, 25, 8, 20);
+            }
+        };
+    }
+
+    private record StoredResource(String patientId, Instant lastUpdated) {
+        boolean matches(String parameter) {
+            String decoded = URLDecoder.decode(parameter, StandardCharsets.UTF_8);
+            if (decoded.startsWith("_lastUpdated=lt")) {
+                return lastUpdated.isBefore(Instant.parse(decoded.substring("_lastUpdated=lt".length())));
+            }
+            if (decoded.startsWith("_lastUpdated=ge")) {
+                return !lastUpdated.isBefore(Instant.parse(decoded.substring("_lastUpdated=ge".length())));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TestPooledBodySubscriber {
+
+    @Test
+    void readsChunksSpanningSeveralBuffers() throws Exception {
+        BufferPool pool = new BufferPool(4, 8);
+        PooledBodySubscriber subscriber = subscribe(pool, new AtomicLong());
+
+        subscriber.onNext(List.of(chunk("{\"resou"), chunk("rceType\"")));
+        subscriber.onNext(List.of(chunk(":\"Bundle\"}")));
+        subscriber.onComplete();
+
+        try (InputStream body = subscriber.getBody().toCompletableFuture().get()) {
+            Assertions.assertEquals("{\"resourceType\":\"Bundle\"}",
+                    new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            Assertions.assertEquals(-1, body.read());
+        }
+    }
+
+    @Test
+    void returnsBuffersToPoolOnceBodyIsClosed() throws Exception {
+        BufferPool pool = new BufferPool(4, 8);
+        ByteBuffer pooled = pool.acquire(() -> {});
+        pool.received(1);
+        pool.release(pooled);
+        PooledBodySubscriber subscriber = subscribe(pool, new AtomicLong());
+        subscriber.onNext(List.of(chunk("abc")));
+        subscriber.onComplete();
+
+        PooledBodySubscriber.Body body = subscriber.getBody().toCompletableFuture().get();
+        body.close();
+        body.close();
+
+        // The body was received into the pooled buffer, which is returned exactly once
+        Assertions.assertSame(pooled, pool.acquire(() -> {}));
+        Assertions.assertNotSame(pooled, pool.acquire(() -> {}));
+    }
+
+    @Test
+    void stopsRequestingWhileReceivedBodiesHoldAllBuffers() throws Exception {
+        BufferPool pool = new BufferPool(4, 2);
+        PooledBodySubscriber unread = subscribe(pool, new AtomicLong());
+        unread.onNext(List.of(chunk("abcdefgh")));
+        unread.onComplete();
+        AtomicLong requested = new AtomicLong();
+        PooledBodySubscriber waiting = subscribe(pool, requested);
+
+        waiting.onNext(List.of(chunk("xy")));
+
+        CompletableFuture<PooledBodySubscriber.Body> waitingBody = waiting.getBody().toCompletableFuture();
+        Assertions.assertEquals(1, requested.get());
+        unread.getBody().toCompletableFuture().get().close();
+        Assertions.assertEquals(2, requested.get());
+        waiting.onComplete();
+        try (InputStream body = waitingBody.get()) {
+            Assertions.assertEquals("xy", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void receivesBodyLargerThanPool() throws Exception {
+        BufferPool pool = new BufferPool(4, 1);
+        AtomicLong requested = new AtomicLong();
+        PooledBodySubscriber subscriber = subscribe(pool, requested);
+
+        // No other body could release a buffer, so waiting would never end
+        subscriber.onNext(List.of(chunk("abcdefghij")));
+        subscriber.onComplete();
+
+        try (InputStream body = subscriber.getBody().toCompletableFuture().get()) {
+            Assertions.assertEquals("abcdefghij", new String(body.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        Assertions.assertEquals(2, requested.get());
+    }
+
+    /**
+     * @param requested counts the chunks the subscriber requests
+     */
+    private static PooledBodySubscriber subscribe(BufferPool pool, AtomicLong requested) {
+        PooledBodySubscriber subscriber = new PooledBodySubscriber(pool);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                requested.addAndGet(n);
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        return subscriber;
+    }
+
+    private static ByteBuffer chunk(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,85 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestRequestAuthentication {
+
+    @Test
+    void sendsBasicCredentialsWithFirstRequest() throws Exception {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Patient", exchange -> {
+                boolean authorized = "Basic dXNlcjpwYXNzd29yZA==".equals(exchange.getRequestHeaders().getFirst("Authorization"));
+                StubFhirServer.respond(exchange, authorized ? 200 : 401, authorized ? "{\"total\":3}" : "");
+            });
+            FhirHttpClient client = client(new BasicRequestAuthenticator("user", "password"));
+
+            Assertions.assertEquals(3, count(client, server));
+            Assertions.assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void sharesCachedTokenAcrossClients() throws Exception {
+        AtomicInteger tokenRequests = new AtomicInteger();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("token", exchange -> {
+                tokenRequests.incrementAndGet();
+                boolean validGrant = "grant_type=client_credentials&scope=system%2F*.read"
+                        .equals(StubFhirServer.requestBody(exchange));
+                StubFhirServer.respond(exchange, validGrant ? 200 : 400,
+                        "{\"access_token\":\"token-1\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+            });
+            serveCountRequiringToken(server, Set.of("token-1"));
+            URI tokenUri = server.getBaseUri().resolve("token");
+
+            for (int i = 0; i < 3; i++) {
+                FhirHttpClient client = client(new ClientCredentialsAuthenticator(tokenUri, "flare", "secret", "system/*.read"));
+                Assertions.assertEquals(3, count(client, server));
+            }
+            Assertions.assertEquals(1, tokenRequests.get());
+        }
+    }
+
+    @Test
+    void replacesRejectedToken() throws Exception {
+        AtomicInteger tokenRequests = new AtomicInteger();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("token", exchange -> StubFhirServer.respond(exchange, 200,
+                    "{\"access_token\":\"token-" + tokenRequests.incrementAndGet() + "\",\"expires_in\":3600}"));
+            serveCountRequiringToken(server, Set.of("token-2"));
+            URI tokenUri = server.getBaseUri().resolve("token");
+            FhirHttpClient client = client(new ClientCredentialsAuthenticator(tokenUri, "flare", "secret", "",
+                    new OAuth2TokenCache(HttpClient.newHttpClient(), Clock.systemUTC())));
+
+            Assertions.assertEquals(3, count(client, server));
+            Assertions.assertEquals(2, tokenRequests.get());
+        }
+    }
+
+    private static void serveCountRequiringToken(StubFhirServer server, Set<String> acceptedTokens) {
+        server.serve("Patient", exchange -> {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            boolean authorized = authorization != null && authorization.startsWith("Bearer ")
+                    && acceptedTokens.contains(authorization.substring("Bearer ".length()));
+            StubFhirServer.respond(exchange, authorized ? 200 : 401, authorized ? "{\"total\":3}" : "");
+        });
+    }
+
+    private static FhirHttpClient client(RequestAuthenticator authenticator) {
+        return new FhirHttpClient(FlareHttpClientConfig.defaultConfig(), new FlareRetryConfig(0, 0, 0, 0, 0),
+                authenticator, Optional.empty());
+    }
+
+    private static long count(FhirHttpClient client, StubFhirServer server) throws Exception {
+        return client.fetch(client.newSearchRequest(server.getBaseUri().resolve("Patient"), "_summary=count"),
+                new BundlePageReader()::readTotal);
+    }
+}
@@ -0,0 +1,101 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+class TestRestrictedSearch {
+
+    @Test
+    void searchesAmongPatientsInChunks() throws IOException {
+        Set<String> searchedPatients = ConcurrentHashMap.newKeySet();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation/_search", exchange -> {
+                String body = URLDecoder.decode(StubFhirServer.requestBody(exchange), StandardCharsets.UTF_8);
+                List<String> references = Arrays.stream(body.split("&"))
+                        .filter(parameter -> parameter.startsWith("patient="))
+                        .flatMap(parameter -> Arrays.stream(parameter.substring("patient=".length()).split(",")))
+                        .toList();
+                Assertions.assertTrue(body.startsWith("code=http://loinc.org|718-7&patient="));
+                Assertions.assertTrue(references.size() <= 2);
+                searchedPatients.addAll(references);
+                // Only patients with an even id have a matching observation
+                List<String> matches = references.stream()
+                        .map(reference -> reference.substring("Patient/".length()))
+                        .filter(id -> Integer.parseInt(id) % 2 == 0)
+                        .toList();
+                StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation", matches, null));
+            });
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            Set<String> patientIds = requestor.executeForPatients(observation(), List.of("1", "2", "3", "4", "5"))
+                    .map(FlareResource::getPatientId)
+                    .collect(Collectors.toSet());
+
+            Assertions.assertEquals(Set.of("2", "4"), patientIds);
+            Assertions.assertEquals(Set.of("Patient/1", "Patient/2", "Patient/3", "Patient/4", "Patient/5"),
+                    searchedPatients);
+            Assertions.assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void searchesNothingWithoutPatients() throws IOException {
+        try (StubFhirServer server = new StubFhirServer()) {
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            Assertions.assertEquals(0, requestor.executeForPatients(observation(), List.of()).count());
+            Assertions.assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    private static Criterion observation() {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode("718-7", "http://loinc.org", "Hemoglobin")), null, mapping,
+                null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlareSemiJoinConfig getSemiJoinConfig() {
+                return new FlareSemiJoinConfig(10, 2);
+            }
+        };
+    }
+}
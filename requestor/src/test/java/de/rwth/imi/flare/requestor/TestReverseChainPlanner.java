@@ -0,0 +1,86 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.FilterType;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.TimeRestriction;
+import de.rwth.imi.flare.api.model.ValueFilter;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+class TestReverseChainPlanner {
+    private static final String HEMOGLOBIN = "_has:Observation:subject:code=http%3A%2F%2Floinc.org%7C718-7";
+
+    private final ReverseChainPlanner planner = new ReverseChainPlanner();
+
+    @Test
+    void rewritesSingleParameterCriterion() {
+        Assertions.assertEquals(Optional.of(HEMOGLOBIN), planner.anyOf(List.of(observation("718-7", null))));
+    }
+
+    @Test
+    void combinesAlternativesOfSameParameterWithComma() {
+        Optional<String> parameters = planner.anyOf(List.of(observation("718-7", null), observation("4548-4", null)));
+
+        Assertions.assertEquals(Optional.of(HEMOGLOBIN + ",http%3A%2F%2Floinc.org%7C4548-4"), parameters);
+    }
+
+    @Test
+    void combinesRequiredCriteriaWithAmpersand() {
+        Optional<String> parameters = planner.allOf(List.of(observation("718-7", null), condition("I10")));
+
+        Assertions.assertEquals(
+                Optional.of(HEMOGLOBIN + "&_has:Condition:subject:code=http%3A%2F%2Ffhir.de%2FCodeSystem%2Fdimdi%2Ficd-10-gm%7CI10"),
+                parameters);
+    }
+
+    @Test
+    void combinesRequiredAlternativesWithAmpersand() {
+        Optional<String> parameters = planner.allOfAnyOf(List.of(
+                List.of(observation("718-7", null), observation("4548-4", null)), List.of(condition("I10"))));
+
+        Assertions.assertEquals(Optional.of(HEMOGLOBIN + ",http%3A%2F%2Floinc.org%7C4548-4"
+                + "&_has:Condition:subject:code=http%3A%2F%2Ffhir.de%2FCodeSystem%2Fdimdi%2Ficd-10-gm%7CI10"), parameters);
+    }
+
+    @Test
+    void keepsAllParametersOfPatientCriterion() {
+        MappingEntry mapping = new MappingEntry(null, "Patient", null, "gender", null, "birthdate", null);
+        ValueFilter female = new ValueFilter(FilterType.CONCEPT,
+                List.of(new TerminologyCode("female", "", "Female")), null, null, null, null, null);
+        Criterion criterion = new Criterion(List.of(new TerminologyCode("gender", "", "Gender")), female, mapping, null,
+                new TimeRestriction("2000-01-01", null));
+
+        Assertions.assertEquals(Optional.of("gender=female&birthdate=le2000-01-01"), planner.anyOf(List.of(criterion)));
+    }
+
+    @Test
+    void leavesMultiParameterCriterionToRegularSearch() {
+        // Both parameters have to match the same Observation, which reverse chaining can not express
+        Criterion restricted = observation("718-7", new TimeRestriction("2021-01-01", null));
+
+        Assertions.assertEquals(Optional.empty(), planner.anyOf(List.of(restricted)));
+        Assertions.assertEquals(Optional.empty(), planner.allOf(List.of(observation("718-7", null), restricted)));
+    }
+
+    @Test
+    void leavesAlternativesOfDifferentResourceTypesToRegularSearch() {
+        Assertions.assertEquals(Optional.empty(), planner.anyOf(List.of(observation("718-7", null), condition("I10"))));
+    }
+
+    private static Criterion observation(String loincCode, TimeRestriction timeRestriction) {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, "date", null);
+        return new Criterion(List.of(new TerminologyCode(loincCode, "http://loinc.org", loincCode)), null, mapping, null,
+                timeRestriction);
+    }
+
+    private static Criterion condition(String icdCode) {
+        MappingEntry mapping = new MappingEntry(null, "Condition", "code", null, null, null, null);
+        return new Criterion(List.of(new TerminologyCode(icdCode, "http://fhir.de/CodeSystem/dimdi/icd-10-gm", icdCode)),
+                null, mapping, null, null);
+    }
+}
@@ -0,0 +1,42 @@
+package de.rwth.imi.flare.requestor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+class TestSearchProjection {
+
+    @Test
+    void appliesOverridesOnTopOfDefaults() {
+        SearchProjection projection = SearchProjection.withOverrides("Observation=subject,code; Consent = patient");
+
+        Assertions.assertEquals(Optional.of("subject,code"), projection.getElements("Observation"));
+        Assertions.assertEquals(Optional.of("patient"), projection.getElements("Consent"));
+        Assertions.assertEquals(Optional.of("subject"), projection.getElements("Condition"));
+    }
+
+    @Test
+    void addsResourceTypesWithoutDefault() {
+        SearchProjection projection = SearchProjection.withOverrides("ServiceRequest=subject");
+
+        Assertions.assertEquals(Optional.of("subject"), projection.getElements("ServiceRequest"));
+    }
+
+    @Test
+    void emptyElementsRemoveProjection() {
+        SearchProjection projection = SearchProjection.withOverrides("Observation=;Consent");
+
+        Assertions.assertEquals(Optional.empty(), projection.getElements("Observation"));
+        Assertions.assertEquals(Optional.empty(), projection.getElements("Consent"));
+        Assertions.assertEquals(Optional.of("subject"), projection.getElements("Condition"));
+    }
+
+    @Test
+    void ignoresEmptyOverrides() {
+        SearchProjection projection = SearchProjection.withOverrides(";;");
+
+        Assertions.assertEquals(Optional.of("subject"), projection.getElements("Observation"));
+        Assertions.assertEquals(Optional.of("id"), projection.getElements("Patient"));
+    }
+}
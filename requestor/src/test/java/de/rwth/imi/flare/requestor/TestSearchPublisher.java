@@ -0,0 +1,224 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TestSearchPublisher {
+
+    @Test
+    void fetchesPagesOnlyAsDemanded() throws Exception {
+        try (StubFhirServer server = new StubFhirServer()) {
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            AtomicInteger receivedBeforeSecondPage = new AtomicInteger(-1);
+            server.serve("Observation", exchange -> {
+                boolean secondPage = exchange.getRequestURI().getPath().endsWith("/_page");
+                if (secondPage) {
+                    receivedBeforeSecondPage.set(subscriber.patientIds.size());
+                }
+                String next = secondPage ? null : server.getBaseUri() + "Observation/_page?page=1";
+                StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation",
+                        secondPage ? List.of("3") : List.of("1", "2"), next));
+            });
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            requestor.executeAsync(observation()).subscribe(subscriber);
+            Flow.Subscription subscription = subscriber.subscription.get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 3; i++) {
+                subscription.request(1);
+                Assertions.assertNotNull(subscriber.received.poll(10, TimeUnit.SECONDS));
+            }
+            subscriber.completed.get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(Set.of("1", "2", "3"), subscriber.patientIds);
+            // The first page covered the demand until both of its patients were received
+            Assertions.assertEquals(2, receivedBeforeSecondPage.get());
+            Assertions.assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void hedgesSlowPage() throws Exception {
+        int pageCount = 40;
+        int slowPage = pageCount - 1;
+        AtomicBoolean held = new AtomicBoolean();
+        CountDownLatch release = new CountDownLatch(1);
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                int page = exchange.getRequestURI().getPath().endsWith("/_page")
+                        ? Integer.parseInt(exchange.getRequestURI().getQuery().split("=")[1]) : 0;
+                // Only the first request of the slow page is held, until the test is done
+                if (page == slowPage && held.compareAndSet(false, true)) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String next = page + 1 < pageCount ? server.getBaseUri() + "Observation/_page?page=" + (page + 1) : null;
+                StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation", List.of("" + page), next));
+            });
+            FhirHttpClient client = new FhirHttpClient(FlareHttpClientConfig.defaultConfig(),
+                    new FlareRetryConfig(2, 1, 10, 95, 200), RequestAuthenticator.none(), Optional.empty());
+            FhirRequestorConfig config = config(server.getBaseUri());
+
+            try {
+                Set<String> patientIds = collect(new FhirRequestor(config, client).executeAsync(observation()))
+                        .get(5, TimeUnit.SECONDS);
+
+                Assertions.assertEquals(pageCount, patientIds.size());
+                // Fast pages stay below the minimum hedging delay, only the held page was requested twice
+                Assertions.assertEquals(pageCount + 1, server.getRequestCount());
+            } finally {
+                release.countDown();
+            }
+        }
+    }
+
+    @Test
+    void searchesWithoutProjectionIfServerRejectsIt() throws Exception {
+        List<String> requestBodies = new CopyOnWriteArrayList<>();
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.serve("Observation", exchange -> {
+                String body = StubFhirServer.requestBody(exchange);
+                requestBodies.add(body);
+                StubFhirServer.respond(exchange, body.contains("_elements") ? 400 : 200,
+                        StubFhirServer.searchBundle("Observation", List.of("1", "2"), null));
+            });
+
+            // The default projection restricts Observations to their subject
+            Set<String> patientIds = collect(new FhirRequestor(config(server.getBaseUri())).executeAsync(observation()))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(Set.of("1", "2"), patientIds);
+            Assertions.assertEquals(2, requestBodies.size());
+            Assertions.assertTrue(requestBodies.get(0).endsWith("&_elements=subject"));
+            Assertions.assertFalse(requestBodies.get(1).contains("_elements"));
+        }
+    }
+
+    @Test
+    void rejectsSecondSubscriber() throws Exception {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.servePagedSearch("Observation", List.of(List.of("1")));
+            Flow.Publisher<FlareResource> publisher = new FhirRequestor(config(server.getBaseUri()))
+                    .executeAsync(observation());
+            publisher.subscribe(new RecordingSubscriber());
+            RecordingSubscriber second = new RecordingSubscriber();
+
+            publisher.subscribe(second);
+
+            Assertions.assertTrue(second.completed.isCompletedExceptionally());
+            Assertions.assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void recordsPagesOfProfiledSearch() throws Exception {
+        try (StubFhirServer server = new StubFhirServer()) {
+            server.servePagedSearch("Observation", List.of(List.of("1", "2"), List.of("2")));
+            SearchProfile profile = new SearchProfile();
+
+            collect(new FhirRequestor(config(server.getBaseUri())).executeAsync(observation(), profile))
+                    .get(10, TimeUnit.SECONDS);
+
+            Assertions.assertEquals(2, profile.getPages());
+            Assertions.assertEquals(3, profile.getResources());
+            Assertions.assertTrue(profile.getBytes() > 0);
+            Assertions.assertTrue(profile.getFetchNanos() > 0);
+            Assertions.assertTrue(profile.getParseNanos() > 0);
+        }
+    }
+
+    /**
+     * Requests all patients of the publisher
+     */
+    static CompletableFuture<Set<String>> collect(Flow.Publisher<FlareResource> publisher) {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.thenAccept(subscription -> subscription.request(Long.MAX_VALUE));
+        return subscriber.completed.thenApply(unused -> subscriber.patientIds);
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<FlareResource> {
+        private final CompletableFuture<Flow.Subscription> subscription = new CompletableFuture<>();
+        private final Set<String> patientIds = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.complete(subscription);
+        }
+
+        @Override
+        public void onNext(FlareResource item) {
+            this.patientIds.add(item.getPatientId());
+            this.received.add(item.getPatientId());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.completed.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed.complete(null);
+        }
+    }
+
+    private static Criterion observation() {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode("718-7", "http://loinc.org", "Hemoglobin")), null, mapping,
+                null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlarePagingConfig getPagingConfig() {
+                return new FlarePagingConfig(2, 0, 1, 20);
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.model.AttributeFilter;
+import de.rwth.imi.flare.api.model.Comparator;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.FilterType;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.TimeRestriction;
+import de.rwth.imi.flare.api.model.ValueFilter;
+import de.rwth.imi.flare.api.model.mapping.AttributeSearchParameter;
+import de.rwth.imi.flare.api.model.mapping.FixedCriteria;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class TestSearchQueryStringBuilder {
+    private static final TerminologyCode HEMOGLOBIN = new TerminologyCode("718-7", "http://loinc.org", "Hemoglobin");
+    private static final TerminologyCode GRAMS_PER_DECILITER = new TerminologyCode("g/dL", "http://unitsofmeasure.org", "g/dL");
+    private static final String OBSERVATION_STATUS = "http://hl7.org/fhir/observation-status";
+
+    @Test
+    void buildsQuantityComparatorWithTimeRestriction() {
+        ValueFilter valueFilter = new ValueFilter(FilterType.QUANTITY_COMPARATOR, null, Comparator.gt, 5.0,
+                GRAMS_PER_DECILITER, null, null);
+        Criterion criterion = new Criterion(List.of(HEMOGLOBIN), valueFilter, observationMapping(null), null,
+                new TimeRestriction("2021-12-31", "2021-01-01"));
+
+        Assertions.assertEquals("Observation?code=http%3A%2F%2Floinc.org%7C718-7"
+                        + "&value-quantity=gt5.0%7Chttp%3A%2F%2Funitsofmeasure.orgg%2FdL"
+                        + "&date=le2021-12-31&date=ge2021-01-01",
+                SearchQueryStringBuilder.constructQueryString(criterion));
+    }
+
+    @Test
+    void buildsQuantityRangeWithFixedCriteria() {
+        ValueFilter valueFilter = new ValueFilter(FilterType.QUANTITY_RANGE, null, null, null,
+                GRAMS_PER_DECILITER, 1.0, 2.5);
+        FixedCriteria status = new FixedCriteria("status", null, "code", List.of(
+                new TerminologyCode("final", OBSERVATION_STATUS, "Final"),
+                new TerminologyCode("amended", OBSERVATION_STATUS, "Amended")), "status");
+        Criterion criterion = new Criterion(List.of(HEMOGLOBIN), valueFilter, observationMapping(List.of(status)), null,
+                null);
+
+        Assertions.assertEquals("Observation?code=http%3A%2F%2Floinc.org%7C718-7"
+                        + "&value-quantity=ge+1.0http%3A%2F%2Funitsofmeasure.orgg%2FdL"
+                        + "&value-quantity=le+2.5http%3A%2F%2Funitsofmeasure.orgg%2FdL"
+                        + "&status=final,amended",
+                SearchQueryStringBuilder.constructQueryString(criterion));
+        // Fixed criteria of type code are searched without system, but the mapping keeps it
+        Assertions.assertEquals(OBSERVATION_STATUS, status.getValue().get(0).getSystem());
+    }
+
+    @Test
+    void buildsConceptFilterWithCodingFixedCriteria() {
+        ValueFilter valueFilter = new ValueFilter(FilterType.CONCEPT, List.of(
+                new TerminologyCode("LA6576-8", "http://loinc.org", "Positive"),
+                new TerminologyCode("LA6577-6", "http://loinc.org", "Negative")), null, null, null, null, null);
+        FixedCriteria category = new FixedCriteria("category", null, "coding", List.of(
+                new TerminologyCode("laboratory", "http://terminology.hl7.org/CodeSystem/observation-category", "")),
+                "category");
+        MappingEntry mapping = new MappingEntry("CodeableConcept", "Observation", "code", "value-concept",
+                List.of(category), null, null);
+        Criterion criterion = new Criterion(List.of(HEMOGLOBIN), valueFilter, mapping, null, null);
+
+        Assertions.assertEquals("Observation?code=http%3A%2F%2Floinc.org%7C718-7"
+                        + "&value-concept=http%3A%2F%2Floinc.org%7CLA6576-8,http%3A%2F%2Floinc.org%7CLA6577-6"
+                        + "&category=http%3A%2F%2Fterminology.hl7.org%2FCodeSystem%2Fobservation-category%7Claboratory",
+                SearchQueryStringBuilder.constructQueryString(criterion));
+    }
+
+    @Test
+    void buildsCodeValuesWithoutSystem() {
+        ValueFilter valueFilter = new ValueFilter(FilterType.CONCEPT, List.of(
+                new TerminologyCode("female", "http://hl7.org/fhir/administrative-gender", "Female")),
+                null, null, null, null, null);
+        MappingEntry mapping = new MappingEntry("code", "Patient", null, "gender", null, "birthdate", null);
+        Criterion criterion = new Criterion(List.of(new TerminologyCode("76689-9", "http://loinc.org", "Sex")),
+                valueFilter, mapping, null, new TimeRestriction(null, "1970-01-01"));
+
+        Assertions.assertEquals("Patient?gender=female&birthdate=ge1970-01-01",
+                SearchQueryStringBuilder.constructQueryString(criterion));
+    }
+
+    @Test
+    void buildsAttributeFilterAsFirstParameter() {
+        TerminologyCode bodySiteKey = new TerminologyCode("body-site", "mii.abide", "Body site");
+        TerminologyCode bodySite = new TerminologyCode("C34", "http://snomed.info/sct", "Lung");
+        AttributeSearchParameter bodySiteParameter = new AttributeSearchParameter("bodySite", bodySiteKey, "code", "bodysite");
+        MappingEntry mapping = new MappingEntry(null, "Specimen", null, null, null, null, List.of(bodySiteParameter));
+        AttributeFilter bodySiteFilter = new AttributeFilter(FilterType.CONCEPT,
+                new TerminologyCode("body-site", "mii.abide", ""), List.of(bodySite), null, null, null, null, null);
+        Criterion criterion = new Criterion(List.of(new TerminologyCode("119376003", "http://snomed.info/sct", "Tissue")),
+                null, mapping, List.of(bodySiteFilter), null);
+
+        Assertions.assertEquals("Specimen?bodysite=C34", SearchQueryStringBuilder.constructQueryString(criterion));
+        Assertions.assertEquals("http://snomed.info/sct", bodySite.getSystem());
+    }
+
+    @Test
+    void buildsConsentProvisions() {
+        ValueFilter valueFilter = new ValueFilter(FilterType.CONCEPT, List.of(
+                new TerminologyCode("2.16.840.1.113883.3.1937.777.24.5.3.8", "urn:oid:2.16.840.1.113883.3.1937.777.24.5.3", "")),
+                null, null, null, null, null);
+        MappingEntry mapping = new MappingEntry(null, "Consent", "mii-provision-provision-code-type", null, null, null, null);
+        Criterion criterion = new Criterion(List.of(new TerminologyCode("permit", "", "")), valueFilter, mapping, null, null);
+
+        Assertions.assertEquals("Consent?mii-provision-provision-code-type=%7Cpermit"
+                        + "$urn%3Aoid%3A2.16.840.1.113883.3.1937.777.24.5.3%7C2.16.840.1.113883.3.1937.777.24.5.3.8",
+                SearchQueryStringBuilder.constructQueryString(criterion));
+    }
+
+    private static MappingEntry observationMapping(List<FixedCriteria> fixedCriteria) {
+        return new MappingEntry("Quantity", "Observation", "code", "value-quantity", fixedCriteria, "date", null);
+    }
+}
@@ -0,0 +1,91 @@
+package de.rwth.imi.flare.requestor;
+
+import de.rwth.imi.flare.api.FlareResource;
+import de.rwth.imi.flare.api.model.Criterion;
+import de.rwth.imi.flare.api.model.TerminologyCode;
+import de.rwth.imi.flare.api.model.mapping.MappingEntry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.Authenticator;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+class TestSharedHttpClient {
+
+    @Test
+    void searchesOfOneRequestorShareConnectionPermits() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        try (StubFhirServer server = new StubFhirServer();
+             ExecutorService searches = Executors.newFixedThreadPool(4)) {
+            server.serve("Observation", exchange -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                StubFhirServer.respond(exchange, 200, StubFhirServer.searchBundle("Observation", List.of("1"), null));
+            });
+            FhirRequestor requestor = new FhirRequestor(config(server.getBaseUri()));
+
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for (String code : List.of("718-7", "4548-4", "2339-0", "2093-3")) {
+                results.add(searches.submit(() -> requestor.execute(observation(code))
+                        .map(FlareResource::getPatientId).collect(Collectors.toSet())));
+            }
+
+            for (Future<Set<String>> result : results) {
+                Assertions.assertEquals(Set.of("1"), result.get(10, TimeUnit.SECONDS));
+            }
+            Assertions.assertEquals(4, server.getRequestCount());
+            // A client per search would send all four at once, the shared one allows a single request at a time
+            Assertions.assertEquals(1, maxInFlight.get());
+        }
+    }
+
+    private static Criterion observation(String loincCode) {
+        MappingEntry mapping = new MappingEntry(null, "Observation", "code", "value-quantity", null, null, null);
+        return new Criterion(List.of(new TerminologyCode(loincCode, "http://loinc.org", loincCode)), null, mapping, null, null);
+    }
+
+    private static FhirRequestorConfig config(URI baseUri) {
+        return new FhirRequestorConfig() {
+            @Override
+            public Optional<Authenticator> getAuthentication() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI getBaseURI() {
+                return baseUri;
+            }
+
+            @Override
+            public String getPageCount() {
+                return "";
+            }
+
+            @Override
+            public FlareThreadPoolConfig getThreadPoolConfig() {
+                return new FlareThreadPoolConfig(4, 16, 10);
+            }
+
+            @Override
+            public FlareHttpClientConfig getHttpClientConfig() {
+                return new FlareHttpClientConfig(10, 60, 1, true, false);
+            }
+        };
+    }
+}
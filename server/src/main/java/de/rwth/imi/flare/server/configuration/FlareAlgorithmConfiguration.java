@@ -11,23 +11,40 @@ import de.rwth.imi.flare.mapping.expansion.ExpansionTreeNode;
 import de.rwth.imi.flare.mapping.expansion.QueryExpander;
 import de.rwth.imi.flare.mapping.lookup.NaiveLookupMapping;
 import de.rwth.imi.flare.mapping.lookup.SourceMappingEntry;
+import de.rwth.imi.flare.requestor.BasicRequestAuthenticator;
+import de.rwth.imi.flare.requestor.ClientCredentialsAuthenticator;
+import de.rwth.imi.flare.requestor.ConcurrencyLimitMXBean;
+import de.rwth.imi.flare.requestor.FhirHttpClient;
 import de.rwth.imi.flare.requestor.FhirRequestorConfig;
+import de.rwth.imi.flare.requestor.FlareBulkExportConfig;
+import de.rwth.imi.flare.requestor.FlareConcurrencyLimitConfig;
+import de.rwth.imi.flare.requestor.FlareHttpClientConfig;
+import de.rwth.imi.flare.requestor.FlarePageSizeConfig;
+import de.rwth.imi.flare.requestor.FlarePagingConfig;
+import de.rwth.imi.flare.requestor.FlareRetryConfig;
+import de.rwth.imi.flare.requestor.FlareSemiJoinConfig;
+import de.rwth.imi.flare.requestor.FlareServerCapabilities;
+import de.rwth.imi.flare.requestor.FlareStatisticsConfig;
 import de.rwth.imi.flare.requestor.FlareThreadPoolConfig;
+import de.rwth.imi.flare.requestor.RequestAuthenticator;
+import de.rwth.imi.flare.requestor.SearchProjection;
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
 import java.net.Authenticator;
-import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Optional;
-import org.springframework.lang.Nullable;
 
 @Configuration
 public class FlareAlgorithmConfiguration {
@@ -62,34 +79,76 @@ public class FlareAlgorithmConfiguration {
         return new NaiveLookupMapping(loadMFile, expander);
     }
 
+    /**
+     * Uses an OAuth2 client credentials token if a token endpoint is configured, otherwise preemptive Basic auth
+     * if user and password are set
+     */
     @Bean
-    public Authenticator createAuthenticator(
+    public RequestAuthenticator createRequestAuthenticator(
         @Value("${flare.fhir.user}") String userName,
-        @Value("${flare.fhir.password}") String password) {
+        @Value("${flare.fhir.password}") String password,
+        @Value("${flare.fhir.oauth.tokenUri}") String tokenUri,
+        @Value("${flare.fhir.oauth.clientId}") String clientId,
+        @Value("${flare.fhir.oauth.clientSecret}") String clientSecret,
+        @Value("${flare.fhir.oauth.scope}") String scope) {
+        if(!tokenUri.equals("")){
+            return new ClientCredentialsAuthenticator(URI.create(tokenUri), clientId, clientSecret, scope);
+        }
         if(!userName.equals("") && !password.equals("")){
-            Authenticator auth = new Authenticator() {
-                @Override
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(
-                        userName,
-                        password.toCharArray());
-                }
-            };
-            return auth;
+            return new BasicRequestAuthenticator(userName, password);
         }
-        return null;
+        return RequestAuthenticator.none();
     }
 
     @Bean
-    public Executor executor(@Nullable Authenticator auth,
+    public Executor executor(RequestAuthenticator requestAuthenticator,
         @Value("${flare.fhir.server}") String fhirBaseUri,@Value("${flare.fhir.pagecount}") String fhirSearchPageCount,
                 @Value("${flare.exec.corePoolSize}") int corePoolSize, @Value("${flare.exec.maxPoolSize}") int maxPoolSize,
-                @Value("${flare.exec.keepAliveTimeSeconds}") int keepAliveTimeSeconds){
-
-        return new FlareExecutor(new FhirRequestorConfig() {
+                @Value("${flare.exec.keepAliveTimeSeconds}") int keepAliveTimeSeconds,
+                @Value("${flare.exec.virtualThreads}") boolean virtualThreads,
+                @Value("${flare.fhir.http.connectTimeoutSeconds}") int connectTimeoutSeconds,
+                @Value("${flare.fhir.http.requestTimeoutSeconds}") int requestTimeoutSeconds,
+                @Value("${flare.fhir.http.maxConnectionsPerHost}") int maxConnectionsPerHost,
+                @Value("${flare.fhir.http.http2Enabled}") boolean http2Enabled,
+                @Value("${flare.fhir.http.compressionEnabled}") boolean compressionEnabled,
+                @Value("${flare.fhir.concurrency.minLimit}") int minConcurrencyLimit,
+                @Value("${flare.fhir.concurrency.latencyTolerance}") double latencyTolerance,
+                @Value("${flare.fhir.concurrency.backoffRatio}") double backoffRatio,
+                @Value("${flare.fhir.projection.enabled}") boolean projectionEnabled,
+                @Value("${flare.fhir.projection.elements}") String projectionElements,
+                @Value("${flare.fhir.paging.prefetchPages}") int prefetchPages,
+                @Value("${flare.fhir.paging.partitionSize}") int partitionSize,
+                @Value("${flare.fhir.paging.maxPartitions}") int maxPartitions,
+                @Value("${flare.fhir.paging.batchSize}") int batchSize,
+                @Value("${flare.fhir.pageSize.min}") int minPageSize,
+                @Value("${flare.fhir.pageSize.max}") int maxPageSize,
+                @Value("${flare.fhir.pageSize.targetPageMillis}") long targetPageMillis,
+                @Value("${flare.fhir.pageSize.maxPageBytes}") long maxPageBytes,
+                @Value("${flare.fhir.bulkExport.minEstimatedResources}") long bulkExportMinEstimatedResources,
+                @Value("${flare.fhir.bulkExport.pollIntervalMillis}") long bulkExportPollIntervalMillis,
+                @Value("${flare.fhir.bulkExport.timeoutSeconds}") long bulkExportTimeoutSeconds,
+                @Value("${flare.fhir.semiJoin.maxDrivingPatients}") int semiJoinMaxDrivingPatients,
+                @Value("${flare.fhir.semiJoin.patientsPerSearch}") int semiJoinPatientsPerSearch,
+                @Value("${flare.fhir.statistics.maxAgeSeconds}") int statisticsMaxAgeSeconds,
+                @Value("${flare.fhir.statistics.maxEntries}") int statisticsMaxEntries,
+                @Value("${flare.fhir.capabilities.reverseChaining}") boolean reverseChainingSupported,
+                @Value("${flare.fhir.capabilities.batch}") boolean batchSupported,
+                @Value("${flare.fhir.retry.maxRetries}") int maxRetries,
+                @Value("${flare.fhir.retry.initialBackoffMillis}") long initialBackoffMillis,
+                @Value("${flare.fhir.retry.maxBackoffMillis}") long maxBackoffMillis,
+                @Value("${flare.fhir.retry.hedgingPercentile}") int hedgingPercentile,
+                @Value("${flare.fhir.retry.minHedgingDelayMillis}") long minHedgingDelayMillis){
+
+        SearchProjection projection = projectionEnabled ? SearchProjection.withOverrides(projectionElements) : SearchProjection.none();
+        FhirRequestorConfig requestorConfig = new FhirRequestorConfig() {
             @Override
             public Optional<Authenticator> getAuthentication() {
-                return Optional.ofNullable(auth);
+                return Optional.empty();
+            }
+
+            @Override
+            public RequestAuthenticator getRequestAuthenticator() {
+                return requestAuthenticator;
             }
 
             @Override
@@ -110,9 +169,82 @@ public class FlareAlgorithmConfiguration {
 
             @Override
             public FlareThreadPoolConfig getThreadPoolConfig() {
-                return new FlareThreadPoolConfig(corePoolSize,maxPoolSize,keepAliveTimeSeconds);
+                return new FlareThreadPoolConfig(corePoolSize,maxPoolSize,keepAliveTimeSeconds,virtualThreads);
+            }
+
+            @Override
+            public FlareHttpClientConfig getHttpClientConfig() {
+                return new FlareHttpClientConfig(connectTimeoutSeconds, requestTimeoutSeconds,
+                        maxConnectionsPerHost, http2Enabled, compressionEnabled);
+            }
+
+            @Override
+            public FlareConcurrencyLimitConfig getConcurrencyLimitConfig() {
+                return new FlareConcurrencyLimitConfig(minConcurrencyLimit, latencyTolerance, backoffRatio);
+            }
+
+            @Override
+            public SearchProjection getSearchProjection() {
+                return projection;
+            }
+
+            @Override
+            public FlarePagingConfig getPagingConfig() {
+                return new FlarePagingConfig(prefetchPages, partitionSize, maxPartitions, batchSize);
+            }
+
+            @Override
+            public FlarePageSizeConfig getPageSizeConfig() {
+                return new FlarePageSizeConfig(minPageSize, maxPageSize, targetPageMillis, maxPageBytes);
+            }
+
+            @Override
+            public FlareBulkExportConfig getBulkExportConfig() {
+                return new FlareBulkExportConfig(bulkExportMinEstimatedResources, bulkExportPollIntervalMillis,
+                        bulkExportTimeoutSeconds);
+            }
+
+            @Override
+            public FlareSemiJoinConfig getSemiJoinConfig() {
+                return new FlareSemiJoinConfig(semiJoinMaxDrivingPatients, semiJoinPatientsPerSearch);
+            }
+
+            @Override
+            public FlareStatisticsConfig getStatisticsConfig() {
+                return new FlareStatisticsConfig(statisticsMaxAgeSeconds, statisticsMaxEntries);
             }
-        });
+
+            @Override
+            public FlareServerCapabilities getServerCapabilities() {
+                return new FlareServerCapabilities(reverseChainingSupported, batchSupported);
+            }
+
+            @Override
+            public FlareRetryConfig getRetryConfig() {
+                return new FlareRetryConfig(maxRetries, initialBackoffMillis, maxBackoffMillis, hedgingPercentile,
+                        minHedgingDelayMillis);
+            }
+        };
+        // One client for all queries, so its concurrency limit protects the FHIR server from all of them together
+        FhirHttpClient client = new FhirHttpClient(requestorConfig);
+        registerConcurrencyLimit(client.getConcurrencyLimit());
+        return new FlareExecutor(requestorConfig, client);
+    }
+
+    /**
+     * Exposes the current limit, requests in flight and queued requests via JMX
+     */
+    private static void registerConcurrencyLimit(ConcurrencyLimitMXBean concurrencyLimit) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("de.rwth.imi.flare:type=FhirConcurrencyLimit");
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(concurrencyLimit, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the FHIR concurrency limit", e);
+        }
     }
 
 
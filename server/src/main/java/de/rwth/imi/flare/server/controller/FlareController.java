@@ -1,13 +1,17 @@
 package de.rwth.imi.flare.server.controller;
 
+import de.rwth.imi.flare.api.model.plan.QueryPlan;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
 import de.rwth.imi.flare.server.services.QueryEvaluator;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import javax.xml.transform.TransformerConfigurationException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
 @RestController
@@ -25,18 +29,66 @@ public class FlareController {
      * Enables post mapping of structured queries to the specified endpoint "/executeQuery"
      * @param query Query from body
      * @param format Encoding, either I2B2 or CSQ
+     * @return population count, answered asynchronously. The query is cancelled if the request ends before,
+     * e.g. because the client disconnected or it timed out.
      */
 
     @PostMapping(path = "/execute")
-    public ResponseEntity<String> executeQuery(@RequestBody String query, @RequestHeader("Content-Type") String format) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
+    public DeferredResult<ResponseEntity<String>> executeQuery(@RequestBody String query, @RequestHeader("Content-Type") String format) throws TransformerConfigurationException, IOException {
 
+        DeferredResult<ResponseEntity<String>> response = new DeferredResult<>();
         try {
             var queryResponse = this.queryEval.evaluate(query, format);
-            return ResponseEntity.ok().body(String.valueOf(queryResponse.get()));
+            // Stops the FHIR requests still outstanding, cancelling an answered query has no effect
+            response.onCompletion(() -> queryResponse.cancel(true));
+            response.onError(error -> queryResponse.cancel(true));
+            response.onTimeout(() -> queryResponse.cancel(true));
+            queryResponse.whenComplete((count, error) -> {
+                if (error != null) {
+                    response.setErrorResult(error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error);
+                } else {
+                    response.setResult(ResponseEntity.ok().body(String.valueOf(count)));
+                }
+            });
         }
         catch (NoSuchElementException e){
-            return ResponseEntity.badRequest().body(e.getMessage());
+            response.setResult(ResponseEntity.badRequest().body(e.getMessage()));
         }
+        return response;
+    }
+
+    /**
+     * Executes the query like "/execute", but answers with the pages, sizes and times of each criterion
+     * @param query Query from body
+     * @param format Encoding, either I2B2 or CSQ
+     * @return population count and measurements, answered asynchronously. The query is cancelled if the request
+     * ends before.
+     */
+    @PostMapping(path = "/explain")
+    public DeferredResult<ResponseEntity<QueryProfile>> explainQuery(@RequestBody String query, @RequestHeader("Content-Type") String format) throws TransformerConfigurationException, IOException {
+
+        DeferredResult<ResponseEntity<QueryProfile>> response = new DeferredResult<>();
+        try {
+            var queryProfile = this.queryEval.explain(query, format);
+            response.onCompletion(() -> queryProfile.cancel(true));
+            response.onError(error -> queryProfile.cancel(true));
+            response.onTimeout(() -> queryProfile.cancel(true));
+            queryProfile.whenComplete((profile, error) -> {
+                if (error != null) {
+                    response.setErrorResult(error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause()
+                            : error);
+                } else {
+                    response.setResult(ResponseEntity.ok().body(profile));
+                }
+            });
+        }
+        catch (NoSuchElementException e){
+            response.setResult(ResponseEntity.badRequest().build());
+        }
+        return response;
     }
 
     @PostMapping(path = "/translate")
@@ -59,4 +111,20 @@ public class FlareController {
         }
         return ResponseEntity.ok().body(new ArrayList<>());
     }
+
+    /**
+     * Shows the plan of the query instead of its search urls, "/translate?plan"
+     * @param query Query from body
+     * @param format Encoding, either I2B2 or CSQ
+     */
+    @PostMapping(path = "/translate", params = "plan")
+    public ResponseEntity<QueryPlan> planQuery(@RequestBody String query, @RequestHeader("Content-Type") String format) throws TransformerConfigurationException, IOException {
+
+        try {
+            return ResponseEntity.ok().body(this.queryEval.plan(query, format));
+        }
+        catch (NoSuchElementException e){
+            return ResponseEntity.badRequest().build();
+        }
+    }
 }
@@ -3,6 +3,8 @@ package de.rwth.imi.flare.server.services;
 import de.rwth.imi.flare.api.Executor;
 import de.rwth.imi.flare.api.FhirResourceMapper;
 import de.rwth.imi.flare.api.FlareParser;
+import de.rwth.imi.flare.api.model.plan.QueryPlan;
+import de.rwth.imi.flare.api.model.plan.QueryProfile;
 
 import de.rwth.imi.flare.server.QueryFormat;
 import org.springframework.stereotype.Service;
@@ -42,10 +44,8 @@ public class QueryEvaluator {
      * @return population count
      * @throws TransformerConfigurationException
      * @throws IOException
-     * @throws ExecutionException
-     * @throws InterruptedException
      */
-    public CompletableFuture<Integer> evaluate(String query, String format) throws TransformerConfigurationException, IOException, ExecutionException, InterruptedException {
+    public CompletableFuture<Integer> evaluate(String query, String format) throws TransformerConfigurationException, IOException {
         Query parsedQuery = parseQuery(query, format);
         Query mappedQuery = mapQuery(parsedQuery);
         return executeQuery(mappedQuery);
@@ -67,6 +67,33 @@ public class QueryEvaluator {
         return translateQuery(mappedQuery);
     }
 
+    /**
+     * parses, mappes and plans a posted query without executing it.
+     * @param query posted query from post request
+     * @param format parser format requested
+     * @return order and strategies the query would be evaluated with
+     * @throws TransformerConfigurationException
+     * @throws IOException
+     */
+    public QueryPlan plan(String query, String format) throws TransformerConfigurationException, IOException {
+        Query parsedQuery = parseQuery(query, format);
+        Query mappedQuery = mapQuery(parsedQuery);
+        return this.executor.planQuery(mappedQuery);
+    }
+
+    /**
+     * parses, mappes and executes a posted query, measuring each of its criteria.
+     * @param query posted query from post request
+     * @param format parser format requested
+     * @return population count together with the measurements of all criteria
+     * @throws TransformerConfigurationException
+     * @throws IOException
+     */
+    public CompletableFuture<QueryProfile> explain(String query, String format) throws TransformerConfigurationException, IOException {
+        Query parsedQuery = parseQuery(query, format);
+        Query mappedQuery = mapQuery(parsedQuery);
+        return this.executor.explainQuery(mappedQuery);
+    }
 
     private Query parseQuery(String query, String format) throws IOException, TransformerConfigurationException {
         FlareParser parser = getParser(format);
@@ -91,7 +118,7 @@ public class QueryEvaluator {
         return mappedQuery;
     }
 
-    private CompletableFuture<Integer> executeQuery(Query mappedQuery) throws ExecutionException, InterruptedException {
+    private CompletableFuture<Integer> executeQuery(Query mappedQuery) {
         return this.executor.calculatePatientCount(mappedQuery);
     }
 